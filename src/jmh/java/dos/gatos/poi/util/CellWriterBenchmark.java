@@ -0,0 +1,128 @@
+package dos.gatos.poi.util;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+import dos.gatos.poi.util.WorkbookConfig.WorkbookConfigBuilder;
+import lombok.Value;
+
+/**
+ * Writes one row of mixed columns into reused cells, so that with
+ * {@code -prof gc} the {@code gc.alloc.rate.norm} metric is the allocation per
+ * row caused by the value extraction alone. {@code dispatch} replays the
+ * Optional and target type dispatch the generator used before the writers
+ * were compiled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellWriterBenchmark {
+
+	private WorkbookConfig<Model> config;
+	private List<ColumnConfig<Model, ?>> columns;
+	private SXSSFWorkbook workbook;
+	private Cell[] cells;
+	private Model model;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		WorkbookConfigBuilder<Model> builder = WorkbookConfig.builder(Model.class);
+		builder.name("Benchmark").sheetName("Rows").defaultHeaderStyle().defaultBodyStyle();
+		builder.stringCol("Name", Model::getName);
+		builder.numberCol("ID", Model::getId);
+		builder.doubleCol("Amount", Model::getAmount, StyleConfig.builder().dataFormat("#,##0.00").build());
+		builder.longCol("Count", Model::getCount);
+		builder.dateCol("Date", Model::getDate, StyleConfig.builder().dataFormat("yyyy-mm-dd").build());
+		builder.datetimeCol("Updated", Model::getUpdated, StyleConfig.builder().dataFormat("yyyy-mm-dd hh:mm").build());
+		builder.booleanCol("Active", Model::getActive);
+		builder.flagCol("Deleted", Model::isDeleted);
+		config = builder.build();
+		columns = config.getColumns();
+		workbook = new SXSSFWorkbook();
+		Row row = workbook.createSheet().createRow(0);
+		cells = new Cell[columns.size()];
+		for (int c = 0; c < cells.length; c++) {
+			cells[c] = row.createCell(c);
+		}
+		model = new Model("Dan", 1234, 98765.43, 42L, LocalDate.of(2019, 11, 1), LocalDateTime.of(2019, 11, 1, 12, 30),
+				Boolean.TRUE, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workbook.dispose();
+	}
+
+	@Benchmark
+	public int compiled() {
+		int length = 0;
+		for (int c = 0; c < cells.length; c++) {
+			length += columns.get(c).getWriter().write(cells[c], model);
+		}
+		return length;
+	}
+
+	@Benchmark
+	public void dispatch(Blackhole blackhole) {
+		for (int c = 0; c < cells.length; c++) {
+			dispatch(cells[c], columns.get(c), blackhole);
+		}
+	}
+
+	private <U> void dispatch(Cell cell, ColumnConfig<Model, U> column, Blackhole blackhole) {
+		Optional<U> value = Optional.ofNullable(column.getMapper().apply(model));
+		if (value.isPresent()) {
+			if (column.getTarget() == String.class) {
+				cell.setCellValue(String.class.cast(value.get()));
+			} else if (column.getTarget() == Double.class) {
+				cell.setCellValue(Double.class.cast(value.get()));
+			} else if (column.getTarget() == Date.class) {
+				cell.setCellValue(Date.class.cast(value.get()));
+			} else if (column.getTarget() == Boolean.class) {
+				cell.setCellValue(Boolean.class.cast(value.get()));
+			}
+		}
+		blackhole.consume(value);
+	}
+
+	@Value
+	public static class Model {
+
+		String name;
+		Integer id;
+		double amount;
+		long count;
+		LocalDate date;
+		LocalDateTime updated;
+		Boolean active;
+		boolean deleted;
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dos.gatos.poi.util.WorkbookBenchmark.Model;
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthConfig;
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthStrategy;
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+
+/**
+ * Time spent serializing the same workbook per deflate level, against the
+ * {@code outputBytes} it is written to. Only the write is measured, the rows
+ * are generated beforehand.
+ * <p>
+ * {@code mvn -Pbenchmark test-compile exec:exec -Djmh.args="CompressionBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompressionBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Compression {
+
+		@Param({ "100000" })
+		public int rows;
+
+		/** -1 is the default level of the JDK deflater, 6 */
+		@Param({ "0", "1", "3", "-1", "9" })
+		public int level;
+
+		@Param({ "false", "true" })
+		public boolean storeSmallParts;
+
+		WorkbookConfig<Model> config;
+		CompressionConfig compression;
+		XSSFWorkbook inMemory;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			config = WorkbookBenchmark.config(ColumnWidthConfig.builder().strategy(ColumnWidthStrategy.SAMPLED).build());
+			compression = CompressionConfig.builder().level(level).storeSmallParts(storeSmallParts).build();
+			inMemory = WorkbookGenerator.compression(WorkbookGenerator.of(config, data()), compression);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			inMemory.close();
+		}
+
+		Stream<Model> data() {
+			return IntStream.range(0, rows).mapToObj(Model::of);
+		}
+	}
+
+	/**
+	 * A streaming workbook can only be written once, so one is generated per
+	 * invocation, outside of the measurement.
+	 */
+	@State(Scope.Thread)
+	public static class Streaming {
+
+		SXSSFWorkbook workbook;
+
+		@Setup(Level.Invocation)
+		public void setup(Compression compression) {
+			workbook = WorkbookGenerator.compression(WorkbookGenerator.streaming(compression.config, compression.data()),
+					compression.compression);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() throws IOException {
+			workbook.dispose();
+			workbook.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Output {
+
+		public long outputBytes;
+	}
+
+	@Benchmark
+	public void streaming(Streaming streaming, Output output) throws IOException {
+		output.outputBytes = write(streaming.workbook);
+	}
+
+	@Benchmark
+	public void inMemory(Compression compression, Output output) throws IOException {
+		output.outputBytes = write(compression.inMemory);
+	}
+
+	private static long write(Workbook workbook) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		XlsxZipOutputStream.write(workbook, out);
+		return out.count;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
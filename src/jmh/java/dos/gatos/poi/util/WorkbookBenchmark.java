@@ -0,0 +1,318 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthConfig;
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthStrategy;
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+import dos.gatos.poi.util.WorkbookConfig.WorkbookConfigBuilder;
+import lombok.Value;
+
+/**
+ * End to end benchmarks of the export pipeline, from building the config to
+ * serializing the workbook through the message converter. Run them with
+ * {@code -prof gc} for the allocation rate. The {@code outputBytes} secondary
+ * result is the size of the last workbook written.
+ * <p>
+ * {@code mvn -Pbenchmark test-compile exec:exec -Djmh.args="WorkbookBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WorkbookBenchmark {
+
+	public abstract static class Rows {
+
+		WorkbookConfig<Model> config;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			config = config(ColumnWidthConfig.builder().strategy(strategy()).build());
+		}
+
+		abstract int size();
+
+		abstract ColumnWidthStrategy strategy();
+
+		Stream<Model> data() {
+			return IntStream.range(0, size()).mapToObj(Model::of);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class StreamingRows extends Rows {
+
+		@Param({ "1000", "100000", "1000000" })
+		public int rows;
+
+		@Param({ "FULL", "SAMPLED", "FIXED" })
+		public ColumnWidthStrategy widths;
+
+		@Override
+		int size() {
+			return rows;
+		}
+
+		@Override
+		ColumnWidthStrategy strategy() {
+			return widths;
+		}
+	}
+
+	/** a million rows do not fit an XSSFWorkbook in a reasonable heap */
+	@State(Scope.Benchmark)
+	public static class InMemoryRows extends Rows {
+
+		@Param({ "1000", "100000" })
+		public int rows;
+
+		@Param({ "FULL", "SAMPLED", "FIXED" })
+		public ColumnWidthStrategy widths;
+
+		@Override
+		int size() {
+			return rows;
+		}
+
+		@Override
+		ColumnWidthStrategy strategy() {
+			return widths;
+		}
+	}
+
+	/**
+	 * The benchmark model written with the mappers of its columns or with its
+	 * generated row extractor, stored rather than deflated so the rows make
+	 * most of the time, after {@code models} other configs were written
+	 * so the shared column writers have seen that many mappers each, like in an
+	 * application exporting many models.
+	 */
+	@State(Scope.Benchmark)
+	public static class ExtractedRows {
+
+		@Param({ "1", "8" })
+		public int models;
+
+		WorkbookConfig<Model> mapped;
+		WorkbookConfig<Model> extracted;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			ColumnWidthConfig widths = ColumnWidthConfig.builder().strategy(ColumnWidthStrategy.FIXED).build();
+			mapped = WorkbookBenchmark_ModelWorkbook.builder().columnWidth(widths).compression(CompressionConfig.STORE).rowExtractor(null).build();
+			extracted = WorkbookBenchmark_ModelWorkbook.builder().columnWidth(widths).compression(CompressionConfig.STORE).build();
+			for (int m = 1; m < models; m++) {
+				int offset = m;
+				WorkbookConfigBuilder<Integer> builder = WorkbookConfig.builder(Integer.class);
+				builder.name("Other" + m).sheetName("Rows").defaultHeaderStyle().defaultBodyStyle();
+				builder.numberCol("ID", i -> i + offset);
+				builder.stringCol("Name", i -> "Other " + (i + offset));
+				builder.doubleCol("Amount", i -> i * (double) offset);
+				builder.dateCol("Date", i -> LocalDate.ofEpochDay(i + offset));
+				builder.datetimeCol("Updated", i -> LocalDateTime.of(2019, 1, 1, 8, 0).plusMinutes(i + offset));
+				builder.booleanCol("Active", i -> i % (offset + 1) == 0);
+				builder.columnWidth(widths);
+				WorkbookConfig<Integer> other = builder.build();
+				for (int i = 0; i < 20; i++) {
+					WorkbookWriter.write(other, IntStream.range(0, 10000).boxed(), OutputStream.nullOutputStream());
+				}
+			}
+		}
+
+		Stream<Model> data() {
+			return IntStream.range(0, 100000).mapToObj(Model::of);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AutoSize {
+
+		XSSFWorkbook workbook;
+		XSSFSheet sheet;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			workbook = WorkbookGenerator.of(config(ColumnWidthConfig.builder().strategy(ColumnWidthStrategy.FIXED).build()),
+					IntStream.range(0, 1000).mapToObj(Model::of));
+			sheet = workbook.getSheetAt(0);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			workbook.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Output {
+
+		public long outputBytes;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public WorkbookConfig<Model> build() {
+		return config(ColumnWidthConfig.DEFAULT);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object buildTemplate() {
+		return config(ColumnWidthConfig.DEFAULT).getTemplate();
+	}
+
+	@Benchmark
+	public void streaming(StreamingRows rows, Output output) throws IOException {
+		write(WorkbookGenerator.streaming(rows.config, rows.data()), output);
+	}
+
+	/**
+	 * The same workbook as {@link #streaming}, written by the
+	 * {@link WorkbookWriter} instead of the POI usermodel.
+	 */
+	@Benchmark
+	public void direct(StreamingRows rows, Output output) throws IOException {
+		CountingOutputMessage message = new CountingOutputMessage();
+		WorkbookWriter.write(rows.config, rows.data(), message.getBody());
+		output.outputBytes = message.count;
+	}
+
+	@Benchmark
+	public void mapped(ExtractedRows rows, Output output) throws IOException {
+		CountingOutputMessage message = new CountingOutputMessage();
+		WorkbookWriter.write(rows.mapped, rows.data(), message.getBody());
+		output.outputBytes = message.count;
+	}
+
+	/**
+	 * {@link #mapped} with the row extractor generated for {@link Model}.
+	 */
+	@Benchmark
+	public void extracted(ExtractedRows rows, Output output) throws IOException {
+		CountingOutputMessage message = new CountingOutputMessage();
+		WorkbookWriter.write(rows.extracted, rows.data(), message.getBody());
+		output.outputBytes = message.count;
+	}
+
+	@Benchmark
+	public void inMemory(InMemoryRows rows, Output output) throws IOException {
+		write(WorkbookGenerator.of(rows.config, rows.data()), output);
+	}
+
+	/**
+	 * The {@code autoSizeColumn} pass the generator used before widths were
+	 * estimated during the row writes, over 1000 rows.
+	 */
+	@Benchmark
+	public void autoSizeColumn(AutoSize autoSize) {
+		for (int i = 0; i < autoSize.sheet.getRow(0).getLastCellNum(); i++) {
+			autoSize.sheet.autoSizeColumn(i);
+		}
+	}
+
+	private static void write(Object workbook, Output output) throws IOException {
+		CountingOutputMessage message = new CountingOutputMessage();
+		new WorkbookHttpMessageConverter().write(workbook, WorkbookHttpMessageConverter.MEDIA_TYPE, message);
+		output.outputBytes = message.count;
+	}
+
+	static WorkbookConfig<Model> config(ColumnWidthConfig widths) {
+		WorkbookConfigBuilder<Model> builder = WorkbookConfig.builder(Model.class);
+		builder.name("Benchmark").sheetName("Rows").defaultHeaderStyle().defaultBodyStyle();
+		builder.numberCol("ID", Model::getId);
+		builder.stringCol("Name", Model::getName);
+		builder.stringCol("Department", Model::getDepartment);
+		builder.doubleCol("Amount", Model::getAmount, StyleConfig.builder().dataFormat("#,##0.00").build());
+		builder.dateCol("Date", Model::getDate, StyleConfig.builder().dataFormat("yyyy-mm-dd").build());
+		builder.datetimeCol("Updated", Model::getUpdated, StyleConfig.builder().dataFormat("yyyy-mm-dd hh:mm").build());
+		builder.booleanCol("Active", Model::getActive);
+		builder.columnWidth(widths);
+		return builder.build();
+	}
+
+	/** the columns of {@link WorkbookBenchmark#config} */
+	@Value
+	@WorkbookModel(name = "Benchmark", sheetName = "Rows")
+	public static class Model {
+
+		private static final String[] DEPARTMENTS = { "Sales", "Finance", "Engineering", "Support", "Legal" };
+		private static final LocalDateTime EPOCH = LocalDateTime.of(2019, 1, 1, 8, 0);
+
+		@WorkbookColumn(name = "ID")
+		Integer id;
+		@WorkbookColumn(name = "Name")
+		String name;
+		@WorkbookColumn(name = "Department")
+		String department;
+		@WorkbookColumn(name = "Amount", format = "#,##0.00")
+		double amount;
+		@WorkbookColumn(name = "Date", format = "yyyy-mm-dd")
+		LocalDate date;
+		@WorkbookColumn(name = "Updated", format = "yyyy-mm-dd hh:mm")
+		LocalDateTime updated;
+		@WorkbookColumn(name = "Active")
+		Boolean active;
+
+		static Model of(int i) {
+			LocalDateTime updated = EPOCH.plusMinutes(i);
+			return new Model(i, "Employee " + i, DEPARTMENTS[i % DEPARTMENTS.length], i * 1.25, updated.toLocalDate(), updated,
+					i % 3 == 0);
+		}
+	}
+
+	private static class CountingOutputMessage extends OutputStream implements HttpOutputMessage {
+
+		private final HttpHeaders headers = new HttpHeaders();
+		private long count;
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+
+		@Override
+		public OutputStream getBody() {
+			return this;
+		}
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
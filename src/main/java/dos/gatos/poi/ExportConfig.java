@@ -0,0 +1,122 @@
+package dos.gatos.poi;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+
+import dos.gatos.poi.util.WorkbookCache;
+import dos.gatos.poi.util.WorkbookConfig;
+import dos.gatos.poi.util.WorkbookConfig.LimitsConfig;
+import dos.gatos.poi.util.WorkbookJobs;
+import dos.gatos.poi.util.WorkbookLimits;
+import dos.gatos.poi.util.WorkbookPool;
+import dos.gatos.poi.util.WorkbookRegistry;
+import dos.gatos.poi.util.WorkbookSpill;
+
+@Configuration
+public class ExportConfig {
+
+	@Bean
+	public WorkbookCache workbookCache(
+			@Value("${workbooks.cache.max-size:64MB}") DataSize maxSize,
+			@Value("${workbooks.cache.spill-threshold:4MB}") DataSize spillThreshold,
+			@Value("${workbooks.cache.spill-directory:}") String spillDirectory,
+			@Value("${workbooks.cache.max-spill-size:1GB}") DataSize maxSpillSize) {
+		if (!StringUtils.hasText(spillDirectory)) {
+			return new WorkbookCache(maxSize.toBytes());
+		}
+		return new WorkbookCache(maxSize.toBytes(), spillThreshold.toBytes(), Path.of(spillDirectory), maxSpillSize.toBytes());
+	}
+
+	@Bean
+	public WorkbookJobs workbookJobs(
+			@Value("${workbooks.jobs.directory:${java.io.tmpdir}/workbook-jobs}") Path directory,
+			@Value("${workbooks.jobs.threads:2}") int threads,
+			@Value("${workbooks.jobs.max-per-tenant:1}") int maxPerTenant,
+			@Value("${workbooks.jobs.max-queued:100}") int maxQueued,
+			@Value("${workbooks.jobs.ttl:1h}") Duration ttl,
+			ObjectProvider<WorkbookSpill> spill) {
+		return new WorkbookJobs(directory, threads, maxPerTenant, maxQueued, ttl, spill.getIfAvailable());
+	}
+
+	@Bean
+	public WorkbookPool workbookPool(
+			@Value("${workbooks.pool.max-idle:16}") int maxIdle,
+			@Value("${workbooks.pool.max-retained-size:1MB}") DataSize maxRetainedSize,
+			ObjectProvider<WorkbookSpill> spill) {
+		return new WorkbookPool(maxIdle, maxRetainedSize.toBytes(), spill.getIfAvailable());
+	}
+
+	/**
+	 * Converts the rows of uploaded workbooks read with
+	 * {@code WorkbookReader.readAll}, so imports neither share the common pool
+	 * nor take more than {@code threads} threads between them.
+	 */
+	@Bean(destroyMethod = "shutdownNow")
+	public ExecutorService workbookImportExecutor(@Value("${workbooks.import.threads:4}") int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "workbook-import-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Given to the writers of the pool, the jobs and the endpoints, unless the
+	 * directory is set to nothing, in which case there is no such bean and
+	 * they spill to temp files.
+	 */
+	@Bean
+	@ConditionalOnExpression("T(org.springframework.util.StringUtils).hasText('${workbooks.spill.directory:default}')")
+	public WorkbookSpill workbookSpill(
+			@Value("${workbooks.spill.directory:${java.io.tmpdir}/workbook-spill}") Path directory,
+			@Value("${workbooks.spill.segment-size:4MB}") DataSize segmentSize,
+			@Value("${workbooks.spill.quota:2GB}") DataSize quota) {
+		return new WorkbookSpill(directory, Math.toIntExact(segmentSize.toBytes()), quota.toBytes());
+	}
+
+	/**
+	 * Installed as the default limits of the exports, each unset bound being
+	 * unlimited unless the config of the workbook sets it.
+	 */
+	@Bean
+	public LimitsConfig workbookLimits(
+			@Value("${workbooks.limits.max-rows:}") Long maxRows,
+			@Value("${workbooks.limits.max-cells:}") Long maxCells,
+			@Value("${workbooks.limits.max-size:}") DataSize maxSize,
+			@Value("${workbooks.limits.timeout:}") Duration timeout) {
+		LimitsConfig limits = LimitsConfig.builder()
+				.maxRows(maxRows)
+				.maxCells(maxCells)
+				.maxBytes(maxSize == null ? null : maxSize.toBytes())
+				.timeout(timeout)
+				.build();
+		WorkbookLimits.setDefault(limits);
+		return limits;
+	}
+
+	/**
+	 * Fails the startup if any config bean is invalid, then warms them up while
+	 * the rest of the context starts, the health staying out of service until
+	 * done.
+	 */
+	@Bean
+	public WorkbookRegistry workbookRegistry(ObjectProvider<WorkbookConfig<?>> configs) {
+		WorkbookRegistry registry = new WorkbookRegistry(configs.orderedStream().collect(Collectors.toList()));
+		registry.warmUp();
+		return registry;
+	}
+
+}
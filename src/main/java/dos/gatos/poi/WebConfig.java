@@ -2,23 +2,41 @@ package dos.gatos.poi;
 
 import java.util.List;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.reactive.ServletHttpHandlerAdapter;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import dos.gatos.poi.service.ReactiveWorkbookService;
 import dos.gatos.poi.util.WorkbookHttpMessageConverter;
+import dos.gatos.poi.util.WorkbookSpill;
 
 @Configuration
 public class WebConfig {
 
 	@Bean
-	public WebMvcConfigurer webMvcConfigurer() {
+	public WebMvcConfigurer webMvcConfigurer(ObjectProvider<WorkbookSpill> spill) {
 		return new WebMvcConfigurer() {
 			@Override
 			public void configureMessageConverters(List<HttpMessageConverter<?>> converters) {
-				converters.add(new WorkbookHttpMessageConverter());
+				converters.add(new WorkbookHttpMessageConverter(spill.getIfAvailable()));
 			}
 		};
 	}
+
+	/**
+	 * The reactive endpoint runs in its own servlet, where the adapter writes
+	 * with Servlet 3.1 non-blocking IO, instead of the dispatcher servlet.
+	 */
+	@Bean
+	public ServletRegistrationBean<ServletHttpHandlerAdapter> reactiveWorkbooks(ReactiveWorkbookService service) {
+		ServletRegistrationBean<ServletHttpHandlerAdapter> registration = new ServletRegistrationBean<>(
+				new ServletHttpHandlerAdapter(service), "/workbooks/reactive/*");
+		registration.setName("reactiveWorkbooks");
+		registration.setAsyncSupported(true);
+		return registration;
+	}
 }
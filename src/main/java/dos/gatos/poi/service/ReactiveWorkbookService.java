@@ -0,0 +1,38 @@
+package dos.gatos.poi.service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+
+import dos.gatos.poi.util.WorkbookFlux;
+import dos.gatos.poi.util.WorkbookSpill;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Serves the workbook of {@link WorkbookService} with non-blocking writes,
+ * mapped next to the MVC endpoints by {@code WebConfig}.
+ */
+@Component
+public class ReactiveWorkbookService implements HttpHandler {
+
+	private final WorkbookSpill spill;
+
+	public ReactiveWorkbookService(ObjectProvider<WorkbookSpill> spill) {
+		this.spill = spill.getIfAvailable();
+	}
+
+	@Override
+	public Mono<Void> handle(ServerHttpRequest request, ServerHttpResponse response) {
+		if (request.getMethod() != HttpMethod.GET) {
+			response.setStatusCode(HttpStatus.METHOD_NOT_ALLOWED);
+			return response.setComplete();
+		}
+		return WorkbookFlux.write(WorkbookService.CONFIG, spill, Flux.defer(() -> Flux.fromIterable(WorkbookService.data())), response);
+	}
+
+}
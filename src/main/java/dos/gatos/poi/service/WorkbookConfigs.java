@@ -0,0 +1,21 @@
+package dos.gatos.poi.service;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import dos.gatos.poi.service.WorkbookService.MyModel;
+import dos.gatos.poi.util.WorkbookConfig;
+
+/**
+ * The workbook configs of the services, as beans so the registry validates and
+ * warms them up on startup.
+ */
+@Configuration
+public class WorkbookConfigs {
+
+	@Bean
+	public WorkbookConfig<MyModel> staffWorkbook() {
+		return WorkbookService.CONFIG;
+	}
+
+}
@@ -0,0 +1,80 @@
+package dos.gatos.poi.service;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import dos.gatos.poi.util.WorkbookBytes;
+import dos.gatos.poi.util.WorkbookJob;
+import dos.gatos.poi.util.WorkbookJob.Priority;
+import dos.gatos.poi.util.WorkbookJob.Status;
+import dos.gatos.poi.util.WorkbookJobs;
+
+/**
+ * Exports run in the background: submitting returns the job, to be polled
+ * until it is done and its workbook downloaded, or cancelled. Jobs are only
+ * visible to the tenant that submitted them.
+ */
+@RestController
+@RequestMapping("/workbooks/jobs")
+public class WorkbookJobService {
+
+	private static final String TENANT = "X-Tenant";
+
+	private final WorkbookJobs jobs;
+
+	public WorkbookJobService(WorkbookJobs jobs) {
+		this.jobs = jobs;
+	}
+
+	@PostMapping
+	public ResponseEntity<WorkbookJob> submit(@RequestHeader(name = TENANT, defaultValue = "default") String tenant,
+			@RequestParam(defaultValue = "NORMAL") Priority priority) {
+		WorkbookJob job;
+		try {
+			job = jobs.submit(tenant, priority, WorkbookService.CONFIG, () -> WorkbookService.data().stream());
+		} catch (RejectedExecutionException e) {
+			throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, e.getMessage(), e);
+		}
+		return ResponseEntity.accepted()
+				.location(ServletUriComponentsBuilder.fromCurrentRequestUri().path("/{id}").buildAndExpand(job.getId()).toUri())
+				.body(job);
+	}
+
+	@GetMapping("/{id}")
+	public WorkbookJob getJob(@RequestHeader(name = TENANT, defaultValue = "default") String tenant, @PathVariable String id) {
+		return jobs.get(id)
+				.filter(job -> job.getTenant().equals(tenant))
+				.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no job " + id));
+	}
+
+	@DeleteMapping("/{id}")
+	public ResponseEntity<WorkbookJob> cancel(@RequestHeader(name = TENANT, defaultValue = "default") String tenant, @PathVariable String id) {
+		WorkbookJob job = getJob(tenant, id);
+		if (!jobs.cancel(id)) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, "job " + id + " is " + job.getStatus());
+		}
+		return ResponseEntity.accepted().body(job);
+	}
+
+	@GetMapping(path = "/{id}/workbook", produces = "application/vnd.ms-excel")
+	public WorkbookBytes getWorkbook(@RequestHeader(name = TENANT, defaultValue = "default") String tenant, @PathVariable String id) {
+		WorkbookJob job = getJob(tenant, id);
+		if (job.getStatus() != Status.DONE) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, "job " + id + " is " + job.getStatus());
+		}
+		return job.getResult();
+	}
+
+}
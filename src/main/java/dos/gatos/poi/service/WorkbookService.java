@@ -1,18 +1,46 @@
 package dos.gatos.poi.service;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import dos.gatos.poi.util.WorkbookBytes;
+import dos.gatos.poi.util.WorkbookCache;
+import dos.gatos.poi.util.WorkbookColumn;
 import dos.gatos.poi.util.WorkbookConfig;
-import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
-import dos.gatos.poi.util.WorkbookConfig.WorkbookConfigBuilder;
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+import dos.gatos.poi.util.WorkbookData;
 import dos.gatos.poi.util.WorkbookGenerator;
+import dos.gatos.poi.util.WorkbookLimitException;
+import dos.gatos.poi.util.WorkbookLimitException.Limit;
+import dos.gatos.poi.util.WorkbookModel;
+import dos.gatos.poi.util.WorkbookPool;
+import dos.gatos.poi.util.WorkbookReader;
+import dos.gatos.poi.util.WorkbookReader.RowError;
+import dos.gatos.poi.util.WorkbookSpill;
+import dos.gatos.poi.util.WorkbookUpload;
+import dos.gatos.poi.util.WorkbookStreamingResponseBody;
 import lombok.Builder;
 import lombok.Value;
 
@@ -20,34 +48,115 @@ import lombok.Value;
 @RequestMapping("/workbooks")
 public class WorkbookService {
 
-	private static final WorkbookConfig<MyModel> CONFIG;
+	static final WorkbookConfig<MyModel> CONFIG;
+	private final WorkbookCache cache;
+	private final WorkbookPool pool;
+	private final WorkbookSpill spill;
+	private final ExecutorService importExecutor;
 	static {
-		WorkbookConfigBuilder<MyModel> config = WorkbookConfig.builder(MyModel.class);
-		config.name("Staff").sheetName("MyList").defaultHeaderStyle().defaultBodyStyle();
-		config.numberCol("ID", MyModel::getId);
-		config.stringCol("Name", MyModel::getName);
-		config.dateCol("BirthDate", MyModel::getDate, StyleConfig.builder().dataFormat("yyyy-mm-dd").build());
-		CONFIG = config.build();
+		CONFIG = WorkbookService_MyModelWorkbook.builder().build();
+	}
+
+	public WorkbookService(WorkbookCache cache, WorkbookPool pool, ObjectProvider<WorkbookSpill> spill,
+			@Qualifier("workbookImportExecutor") ExecutorService importExecutor) {
+		this.cache = cache;
+		this.pool = pool;
+		this.spill = spill.getIfAvailable();
+		this.importExecutor = importExecutor;
 	}
 
 	@GetMapping(produces = "application/vnd.ms-excel")
-	public XSSFWorkbook getExcel() {
+	public WorkbookPool.Lease<MyModel> getExcel(@RequestParam(required = false) Integer level) throws IOException {
+		CompressionConfig compression;
+		try {
+			compression = level == null ? CONFIG.getCompression() : CompressionConfig.builder().level(level).build();
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		return pool.lease(CONFIG).write(compression, data().spliterator());
+	}
+
+	@GetMapping(path = "/generated", produces = "application/vnd.ms-excel")
+	public XSSFWorkbook getGeneratedExcel() {
+		return WorkbookGenerator.of(CONFIG, data());
+	}
+
+	@GetMapping(path = "/streaming", produces = "application/vnd.ms-excel")
+	public SXSSFWorkbook getStreamingExcel() {
+		return WorkbookGenerator.streaming(CONFIG, data().spliterator(), spill);
+	}
+
+	@GetMapping(path = "/stream", produces = "application/vnd.ms-excel")
+	public ResponseEntity<StreamingResponseBody> getExcelStream() {
+		return WorkbookStreamingResponseBody.of(CONFIG, CONFIG.getCompression(), spill, () -> data().stream());
+	}
+
+	@GetMapping(path = "/cached", produces = "application/vnd.ms-excel")
+	public WorkbookBytes getCachedExcel(WebRequest request) {
+		List<MyModel> data = data();
+		String version = Integer.toHexString(data.hashCode());
+		WorkbookBytes workbook = cache.get(CONFIG, version, () -> WorkbookGenerator.of(CONFIG, data));
+		return request.checkNotModified(workbook.getEtag()) ? null : workbook;
+	}
+
+	@GetMapping(path = "/export", produces = { "application/vnd.ms-excel", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+			"text/csv", "application/x-workbook-columnar" })
+	public WorkbookData<MyModel> getExport() {
+		return WorkbookData.of(CONFIG, () -> data().stream());
+	}
+
+	@PostMapping(consumes = { "application/vnd.ms-excel", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet" })
+	public ImportResult postExcel(@RequestBody WorkbookUpload upload) throws IOException {
+		try (upload; WorkbookReader<MyModel> reader = upload.reader(CONFIG)) {
+			long[] count = { 0 };
+			reader.readAll(importExecutor, false, (sheet, rows) -> count[0] += rows.size());
+			return new ImportResult(count[0], reader.getErrorCount(), reader.getErrors());
+		}
+	}
+
+	/**
+	 * An export stopped by its limits before the response was committed is
+	 * answered with 413, or 503 if it ran out of time.
+	 */
+	@ExceptionHandler
+	public void limitExceeded(WorkbookLimitException e, HttpServletResponse response) throws IOException {
+		if (response.isCommitted()) {
+			throw e;
+		}
+		HttpStatus status = e.getLimit() == Limit.TIMEOUT ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.PAYLOAD_TOO_LARGE;
+		response.sendError(status.value(), e.getMessage());
+	}
+
+	static List<MyModel> data() {
 		List<MyModel> data = new ArrayList<>();
 		data.add(new MyModel(1, "Dan", LocalDate.of(2019, 11, 1)));
 		data.add(new MyModel(2, "Chris", LocalDate.of(2019, 11, 2)));
 		data.add(new MyModel(3, "Peter", LocalDate.of(2019, 11, 3)));
 		data.add(new MyModel(4, "Kate", LocalDate.of(2019, 11, 4)));
 		data.add(new MyModel(5, "Jeff", LocalDate.of(2019, 11, 5)));
-		return WorkbookGenerator.of(CONFIG, data);
+		return data;
 	}
 
 	@Value
 	@Builder
+	@WorkbookModel(name = "Staff", sheetName = "MyList")
 	public static class MyModel {
 
+		@WorkbookColumn(name = "ID")
 		Integer id;
+		@WorkbookColumn(name = "Name")
 		String name;
-		LocalDate date;
+		@WorkbookColumn(name = "BirthDate", format = "yyyy-mm-dd")
+		LocalDate birthDate;
+
+	}
+
+	@Value
+	public static class ImportResult {
+
+		long rows;
+		int errorCount;
+		List<RowError> errors;
 
 	}
 }
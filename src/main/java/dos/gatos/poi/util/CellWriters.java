@@ -0,0 +1,281 @@
+package dos.gatos.poi.util;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+import dos.gatos.poi.util.WorkbookConfig.CellWriter;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+
+/**
+ * Factories for the specialized {@link CellWriter} of each column type, which
+ * are {@link ColumnWriter}s so the {@link WorkbookWriter} can use them as well.
+ * Anything that only depends on the column, like its data format, is resolved
+ * here once instead of for every cell.
+ */
+final class CellWriters {
+
+	/** days between the Excel epoch (1899-12-30) and 1970-01-01 */
+	private static final long EXCEL_EPOCH_OFFSET = 25569;
+	/** before this day Excel serials are skewed by the 1900 leap year bug */
+	private static final LocalDate EXCEL_LEAP_BUG = LocalDate.of(1900, 3, 1);
+	private static final double MILLIS_PER_DAY = 86_400_000d;
+
+	private CellWriters() {
+	}
+
+	static <T> ColumnWriter<T> string(Function<T, String> mapper) {
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				String value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				cell.setCellValue(value);
+				return ColumnWidths.estimate(value);
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				String value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				sheet.value(value);
+				return ColumnWidths.estimate(value);
+			}
+		};
+	}
+
+	/**
+	 * A string writer for the cells of an {@link XSSFWorkbook}, sharing only
+	 * the values the shared strings table accepts. The others are set as inline
+	 * strings on the underlying XML, which {@link XSSFCell} reads but offers no
+	 * setter for.
+	 */
+	static <T> CellWriter<T> string(Function<T, String> mapper, int column, SharedStrings strings) {
+		return (cell, data) -> {
+			String value = mapper.apply(data);
+			if (value == null) {
+				return 0;
+			}
+			if (strings.index(column, value) >= 0) {
+				cell.setCellValue(value);
+			} else {
+				CTCell ctCell = ((XSSFCell) cell).getCTCell();
+				ctCell.setT(STCellType.INLINE_STR);
+				ctCell.setIs(new XSSFRichTextString(value).getCTRst());
+			}
+			return ColumnWidths.estimate(value);
+		};
+	}
+
+	static <T> ColumnWriter<T> number(Function<T, Number> mapper, StyleConfig style) {
+		String dataFormat = style.getDataFormat().orElse(null);
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				Number value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				double number = value.doubleValue();
+				cell.setCellValue(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				Number value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				double number = value.doubleValue();
+				sheet.value(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+		};
+	}
+
+	static <T> ColumnWriter<T> number(ToDoubleFunction<T> mapper, StyleConfig style) {
+		String dataFormat = style.getDataFormat().orElse(null);
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				double number = mapper.applyAsDouble(data);
+				cell.setCellValue(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				double number = mapper.applyAsDouble(data);
+				sheet.value(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+		};
+	}
+
+	static <T> ColumnWriter<T> number(ToLongFunction<T> mapper, StyleConfig style) {
+		String dataFormat = style.getDataFormat().orElse(null);
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				double number = mapper.applyAsLong(data);
+				cell.setCellValue(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				double number = mapper.applyAsLong(data);
+				sheet.value(number);
+				return ColumnWidths.estimate(number, dataFormat);
+			}
+		};
+	}
+
+	/**
+	 * Dates are written as Excel serial numbers computed from the local date, so
+	 * no {@link Date} or {@code Calendar} is allocated per cell.
+	 */
+	static <T> ColumnWriter<T> date(Function<T, LocalDate> mapper, StyleConfig style) {
+		int width = ColumnWidths.estimateDate(style.getDataFormat());
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				LocalDate value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				if (value.isBefore(EXCEL_LEAP_BUG)) {
+					cell.setCellValue(toDate(value.atStartOfDay()));
+				} else {
+					cell.setCellValue(toExcelDate(value));
+				}
+				return width;
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				LocalDate value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				sheet.value(serial(value));
+				return width;
+			}
+		};
+	}
+
+	static <T> ColumnWriter<T> datetime(Function<T, LocalDateTime> mapper, StyleConfig style) {
+		int width = ColumnWidths.estimateDate(style.getDataFormat());
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				LocalDateTime value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				if (value.toLocalDate().isBefore(EXCEL_LEAP_BUG)) {
+					cell.setCellValue(toDate(value));
+				} else {
+					cell.setCellValue(toExcelDate(value));
+				}
+				return width;
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				LocalDateTime value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				sheet.value(serial(value));
+				return width;
+			}
+		};
+	}
+
+	static <T> ColumnWriter<T> bool(Function<T, Boolean> mapper) {
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				Boolean value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				cell.setCellValue(value.booleanValue());
+				return ColumnWidths.estimate(value.booleanValue());
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				Boolean value = mapper.apply(data);
+				if (value == null) {
+					return 0;
+				}
+				sheet.value(value.booleanValue());
+				return ColumnWidths.estimate(value.booleanValue());
+			}
+		};
+	}
+
+	static <T> ColumnWriter<T> flag(Predicate<T> mapper) {
+		return new ColumnWriter<T>() {
+			@Override
+			public int write(Cell cell, T data) {
+				boolean value = mapper.test(data);
+				cell.setCellValue(value);
+				return ColumnWidths.estimate(value);
+			}
+
+			@Override
+			public int write(SheetXml sheet, T data) {
+				boolean value = mapper.test(data);
+				sheet.value(value);
+				return ColumnWidths.estimate(value);
+			}
+		};
+	}
+
+	/**
+	 * The Excel serial number of the date, computed by POI before the leap year
+	 * bug.
+	 */
+	static double serial(LocalDate date) {
+		return date.isBefore(EXCEL_LEAP_BUG) ? DateUtil.getExcelDate(toDate(date.atStartOfDay())) : toExcelDate(date);
+	}
+
+	static double serial(LocalDateTime dateTime) {
+		return dateTime.toLocalDate().isBefore(EXCEL_LEAP_BUG) ? DateUtil.getExcelDate(toDate(dateTime)) : toExcelDate(dateTime);
+	}
+
+	static double toExcelDate(LocalDate date) {
+		return date.toEpochDay() + EXCEL_EPOCH_OFFSET;
+	}
+
+	static double toExcelDate(LocalDateTime dateTime) {
+		// millisecond precision, like DateUtil.getExcelDate
+		return toExcelDate(dateTime.toLocalDate()) + (dateTime.toLocalTime().toNanoOfDay() / 1_000_000) / MILLIS_PER_DAY;
+	}
+
+	private static Date toDate(LocalDateTime dateTime) {
+		return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+	}
+
+}
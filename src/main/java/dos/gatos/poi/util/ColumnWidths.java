@@ -0,0 +1,118 @@
+package dos.gatos.poi.util;
+
+import java.util.Optional;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthConfig;
+import dos.gatos.poi.util.WorkbookConfig.ColumnWidthStrategy;
+
+/**
+ * Single pass column width estimation. Instead of laying out every cell with
+ * AWT like {@code Sheet.autoSizeColumn}, each written value reports the number
+ * of characters it renders to and only the maximum per column is kept.
+ */
+final class ColumnWidths {
+
+	private static final int PADDING = 200;
+	private static final int MAX_WIDTH = 255 * 256;
+
+	private final ColumnWidthConfig config;
+	private final int[] widths;
+	private final int trackedRows;
+
+	ColumnWidths(ColumnWidthConfig config, int columns) {
+		this.config = config;
+		this.widths = new int[columns];
+		switch (config.getStrategy()) {
+		case FULL:
+			trackedRows = Integer.MAX_VALUE;
+			break;
+		case SAMPLED:
+			trackedRows = config.getSampleSize();
+			break;
+		default:
+			trackedRows = -1;
+		}
+	}
+
+	/**
+	 * @param row the zero based row index, the header being row 0
+	 */
+	boolean isTracking(int row) {
+		return row <= trackedRows;
+	}
+
+	void track(int column, int length) {
+		if (length > widths[column]) {
+			widths[column] = length;
+		}
+	}
+
+	/**
+	 * @return the width of the column in 1/256th of a character, as expected by
+	 *         {@code Sheet.setColumnWidth}
+	 */
+	int getWidth(int column) {
+		float chars = config.getStrategy() == ColumnWidthStrategy.FIXED ? config.getFixedWidth() : widths[column];
+		chars = Math.max(config.getMinWidth(), Math.min(config.getMaxWidth(), chars));
+		return Math.min(MAX_WIDTH, Math.round(chars * 256) + PADDING);
+	}
+
+	static int estimate(String value) {
+		return value.length();
+	}
+
+	static int estimate(boolean value) {
+		return value ? 4 : 5;
+	}
+
+	static int estimate(double value, String dataFormat) {
+		return dataFormat == null ? estimateGeneral(value) : estimateFormatted(value, dataFormat);
+	}
+
+	/**
+	 * Date formats render to roughly as many characters as the pattern itself,
+	 * month names aside.
+	 */
+	static int estimateDate(Optional<String> dataFormat) {
+		return dataFormat.map(df -> df.contains("mmmm") ? df.length() + 6 : df.length()).orElse(10);
+	}
+
+	private static int estimateGeneral(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e11) {
+			return digits((long) value);
+		}
+		// General shows at most 11 significant characters
+		return Math.min(11, Double.toString(value).length());
+	}
+
+	private static int estimateFormatted(double value, String dataFormat) {
+		if ("General".equalsIgnoreCase(dataFormat)) {
+			return estimateGeneral(value);
+		}
+		int length = digits((long) value);
+		if (dataFormat.indexOf(',') >= 0) {
+			length += (length - 1) / 3;
+		}
+		int decimal = dataFormat.indexOf('.');
+		if (decimal >= 0) {
+			int i = decimal + 1;
+			while (i < dataFormat.length() && (dataFormat.charAt(i) == '0' || dataFormat.charAt(i) == '#')) {
+				i++;
+			}
+			length += i - decimal;
+		}
+		if (dataFormat.indexOf('%') >= 0) {
+			length += 3;
+		}
+		return length;
+	}
+
+	private static int digits(long value) {
+		int digits = value < 0 ? 2 : 1;
+		for (long v = Math.abs(value); v >= 10; v /= 10) {
+			digits++;
+		}
+		return digits;
+	}
+
+}
@@ -0,0 +1,21 @@
+package dos.gatos.poi.util;
+
+import dos.gatos.poi.util.WorkbookConfig.CellWriter;
+
+/**
+ * A {@link CellWriter} that can also write its value as SpreadsheetML, for the
+ * {@link WorkbookWriter}. Both methods map the row the same way, so either
+ * engine renders the same cells.
+ */
+interface ColumnWriter<T> extends CellWriter<T> {
+
+	/**
+	 * Writes the value into the current cell of the sheet, or nothing when the
+	 * cell is to be left empty.
+	 *
+	 * @return the number of characters the value renders to, 0 when the cell
+	 *         is left empty
+	 */
+	int write(SheetXml sheet, T data);
+
+}
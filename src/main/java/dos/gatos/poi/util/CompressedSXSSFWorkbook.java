@@ -0,0 +1,214 @@
+package dos.gatos.poi.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.poi.openxml4j.util.ZipArchiveThresholdInputStream;
+import org.apache.poi.openxml4j.util.ZipEntrySource;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SheetDataWriter;
+import org.apache.poi.xssf.usermodel.XSSFChartSheet;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * Streaming workbook written with the compression of the
+ * {@link CompressedXSSFWorkbook} it wraps. {@link SXSSFWorkbook} packages the
+ * flushed sheets into a zip stream of its own with the default level, so the
+ * injection of the sheet data into the template is reproduced here on top of
+ * an {@link XlsxZipOutputStream}.
+ * <p>
+ * The flushed rows of each sheet are spilled to the {@link WorkbookSpill} of
+ * the workbook when it has one, to temp files otherwise, and counted across
+ * the sheets for the byte limit of the generator.
+ */
+class CompressedSXSSFWorkbook extends SXSSFWorkbook {
+
+	private static final String SHEET_DATA = "<sheetData";
+	private static final String EMPTY_SHEET_DATA = "<sheetData/>";
+	private static final String SHEET_DATA_END = "</sheetData>";
+
+	private final boolean compressTmpFiles;
+	private final WorkbookSpill spill;
+	private final AtomicLong flushed = new AtomicLong();
+
+	CompressedSXSSFWorkbook(CompressedXSSFWorkbook workbook, int rowAccessWindowSize, boolean compressTmpFiles, WorkbookSpill spill) {
+		super(workbook, rowAccessWindowSize, compressTmpFiles);
+		this.compressTmpFiles = compressTmpFiles;
+		this.spill = spill;
+	}
+
+	/**
+	 * @return the bytes of rows flushed so far by all the sheets, gzipped if
+	 *         the temp files are
+	 */
+	long getFlushedBytes() {
+		return flushed.get();
+	}
+
+	@Override
+	protected SheetDataWriter createSheetDataWriter() throws IOException {
+		return new CountingSheetDataWriter();
+	}
+
+	@Override
+	protected void injectData(ZipEntrySource zipEntrySource, OutputStream out) throws IOException {
+		ZipArchiveOutputStream zos = new XlsxZipOutputStream(out, ((CompressedXSSFWorkbook) getXSSFWorkbook()).getCompression());
+		try {
+			Enumeration<? extends ZipArchiveEntry> entries = zipEntrySource.getEntries();
+			while (entries.hasMoreElements()) {
+				ZipArchiveEntry entry = entries.nextElement();
+				ZipArchiveEntry copy = new ZipArchiveEntry(entry.getName());
+				copy.setTime(entry.getTime());
+				zos.putArchiveEntry(copy);
+				try (InputStream is = zipEntrySource.getInputStream(entry)) {
+					if (is instanceof ZipArchiveThresholdInputStream) {
+						// the template was written by POI itself
+						((ZipArchiveThresholdInputStream) is).setGuardState(false);
+					}
+					SXSSFSheet sheet = getSheet(entry);
+					if (sheet == null) {
+						IOUtils.copy(is, zos);
+					} else {
+						try (InputStream sheetData = sheet.getWorksheetXMLInputStream()) {
+							inject(is, sheetData, zos);
+						}
+					}
+				}
+				zos.closeArchiveEntry();
+			}
+			zos.finish();
+		} finally {
+			zipEntrySource.close();
+		}
+	}
+
+	private SXSSFSheet getSheet(ZipArchiveEntry entry) {
+		for (int i = 0; i < getNumberOfSheets(); i++) {
+			XSSFSheet sheet = getXSSFWorkbook().getSheetAt(i);
+			if (!(sheet instanceof XSSFChartSheet) && sheet.getPackagePart().getPartName().getName().equals("/" + entry.getName())) {
+				return getSheetAt(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the empty sheet data of the template, a few hundred bytes of
+	 * sheet properties, with the flushed rows.
+	 */
+	private static void inject(InputStream template, InputStream sheetData, OutputStream out) throws IOException {
+		String xml = new String(IOUtils.toByteArray(template), StandardCharsets.UTF_8);
+		int start = xml.indexOf(SHEET_DATA);
+		int end;
+		if (start < 0) {
+			start = end = xml.lastIndexOf("</worksheet>");
+		} else if (xml.startsWith(EMPTY_SHEET_DATA, start)) {
+			end = start + EMPTY_SHEET_DATA.length();
+		} else {
+			end = xml.indexOf(SHEET_DATA_END, start) + SHEET_DATA_END.length();
+		}
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		writer.write(xml, 0, start);
+		writer.write("<sheetData>\n");
+		writer.flush();
+		IOUtils.copy(sheetData, out);
+		writer.write(SHEET_DATA_END);
+		writer.write(xml, end, xml.length() - end);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the rows to a spill file, which {@link SheetDataWriter} knows as a
+	 * file whose deletion deletes the spill file, or to a temp file without a
+	 * spill, counting the bytes either way. Its constructor creates the file
+	 * and the writer, hence the fields assigned from there and left without
+	 * initializer.
+	 */
+	private class CountingSheetDataWriter extends SheetDataWriter {
+
+		private WorkbookSpill.SpillFile spilled;
+		private boolean compressed;
+
+		CountingSheetDataWriter() throws IOException {
+			super();
+		}
+
+		@Override
+		public File createTempFile() throws IOException {
+			if (spill == null) {
+				return super.createTempFile();
+			}
+			WorkbookSpill.SpillFile file = spill.create("poi-sxssf-sheet");
+			spilled = file;
+			return new File(file.getName()) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public boolean delete() {
+					return file.delete();
+				}
+
+			};
+		}
+
+		@Override
+		public Writer createWriter(File fd) throws IOException {
+			if (spilled == null) {
+				return super.createWriter(fd);
+			}
+			compressed = compressTmpFiles;
+			return new BufferedWriter(new OutputStreamWriter(decorate(spilled), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		protected OutputStream decorateOutputStream(FileOutputStream fos) throws IOException {
+			return decorate(fos);
+		}
+
+		@Override
+		protected InputStream decorateInputStream(FileInputStream fis) throws IOException {
+			return compressTmpFiles ? new GZIPInputStream(fis) : fis;
+		}
+
+		private OutputStream decorate(OutputStream out) throws IOException {
+			OutputStream counting = new CountingOutputStream(out) {
+
+				@Override
+				protected void count(long written) {
+					super.count(written);
+					flushed.addAndGet(written);
+				}
+
+			};
+			return compressTmpFiles ? new GZIPOutputStream(counting) : counting;
+		}
+
+		@Override
+		public InputStream getWorksheetXMLInputStream() throws IOException {
+			if (spilled == null) {
+				return super.getWorksheetXMLInputStream();
+			}
+			return compressed ? new GZIPInputStream(spilled.getInputStream()) : spilled.getInputStream();
+		}
+
+	}
+
+}
@@ -0,0 +1,25 @@
+package dos.gatos.poi.util;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * Workbook carrying the compression it is to be written with, see
+ * {@link XlsxZipOutputStream#write}.
+ */
+@Getter
+@Setter
+class CompressedXSSFWorkbook extends XSSFWorkbook {
+
+	@NonNull
+	private CompressionConfig compression;
+
+	CompressedXSSFWorkbook(CompressionConfig compression) {
+		this.compression = compression;
+	}
+
+}
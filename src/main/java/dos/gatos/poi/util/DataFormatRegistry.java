@@ -0,0 +1,42 @@
+package dos.gatos.poi.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+
+/**
+ * Resolves the data formats of a {@link WorkbookTemplate} to number format ids
+ * once. Built-in Excel formats map straight to their built-in id and are never
+ * written to the styles part, custom formats get consecutive ids starting at
+ * {@link #FIRST_CUSTOM_FORMAT} and are registered once per workbook. Equal
+ * formats of different styles resolve to the same id, the formats being held
+ * no longer than the template.
+ */
+final class DataFormatRegistry {
+
+	/** first id Excel leaves for custom number formats */
+	static final short FIRST_CUSTOM_FORMAT = 164;
+
+	private final Map<String, Short> indexes = new HashMap<>();
+	private final Map<Short, String> customFormats = new LinkedHashMap<>();
+
+	short register(String format) {
+		return indexes.computeIfAbsent(format, f -> {
+			int builtin = BuiltinFormats.getBuiltinFormat(f);
+			if (builtin >= 0) {
+				return (short) builtin;
+			}
+			short index = (short) (FIRST_CUSTOM_FORMAT + customFormats.size());
+			customFormats.put(index, f);
+			return index;
+		});
+	}
+
+	Map<Short, String> getCustomFormats() {
+		return Collections.unmodifiableMap(customFormats);
+	}
+
+}
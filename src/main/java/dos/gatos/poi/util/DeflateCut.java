@@ -0,0 +1,348 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+import org.apache.commons.compress.utils.BoundedInputStream;
+
+/**
+ * A cut of a raw deflate stream before one of its blocks, so the stream can be
+ * continued by another deflater without inflating and deflating again what
+ * precedes the cut. Deflate marks the last block of a stream and packs blocks
+ * bit by bit, so a stream cannot simply be resumed: the {@link #head} of the
+ * cut is the bytes of the blocks before it, followed by an empty stored block
+ * that brings the stream back to a byte boundary, after which the blocks of
+ * any raw deflater can follow.
+ * <p>
+ * The blocks are found by decoding the Huffman codes of the stream without
+ * producing the inflated bytes, which only the
+ * {@link java.util.zip.Inflater} does quickly. That takes about as long as
+ * inflating, far less than deflating.
+ */
+final class DeflateCut {
+
+	private static final int MAX_BITS = 15;
+	private static final int FAST_BITS = 9;
+	private static final int LITERALS = 288;
+	private static final int DISTANCES = 30;
+	private static final int END_OF_BLOCK = 256;
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131,
+			163, 195, 227, 258 };
+	private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13,
+			13 };
+	private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+	private static final Huffman FIXED_LITERALS;
+	private static final Huffman FIXED_DISTANCES;
+	static {
+		int[] lengths = new int[LITERALS];
+		for (int symbol = 0; symbol < LITERALS; symbol++) {
+			lengths[symbol] = symbol < 144 ? 8 : symbol < 256 ? 9 : symbol < 280 ? 7 : 8;
+		}
+		FIXED_LITERALS = new Huffman(lengths, 0, LITERALS);
+		int[] distances = new int[DISTANCES];
+		Arrays.fill(distances, 5);
+		FIXED_DISTANCES = new Huffman(distances, 0, DISTANCES);
+	}
+
+	/** the bit of the raw stream the cut block starts at */
+	private final long bit;
+	/** the inflated bytes before the cut */
+	private final long offset;
+	/** the bits of the cut byte before the cut, and the empty stored block */
+	private final byte[] joint;
+
+	private DeflateCut(long bit, long offset, int cutByte) {
+		this.bit = bit;
+		this.offset = offset;
+		int before = (int) (bit % 8);
+		// BFINAL 0 and BTYPE 00 then padding, all zero bits, then LEN 0 and NLEN ~0
+		byte[] padding = before + 3 > 8 ? new byte[] { 0 } : new byte[0];
+		this.joint = new byte[1 + padding.length + 4];
+		this.joint[0] = (byte) (cutByte & (1 << before) - 1);
+		this.joint[joint.length - 2] = (byte) 0xFF;
+		this.joint[joint.length - 1] = (byte) 0xFF;
+	}
+
+	/**
+	 * Finds the last block of the stream that starts at or before the given
+	 * inflated offset.
+	 *
+	 * @param raw the deflate stream, without zlib or gzip wrapper
+	 */
+	static DeflateCut find(InputStream raw, long before) throws IOException {
+		return new Walker(raw).find(before);
+	}
+
+	long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the bytes of {@link #head}
+	 */
+	long getHeadLength() {
+		return bit / 8 + joint.length;
+	}
+
+	/**
+	 * @param raw the stream the cut was found in, read from its start
+	 * @return the stream up to the cut, ending on a byte boundary with no last
+	 *         block
+	 */
+	InputStream head(InputStream raw) {
+		return new SequenceInputStream(new BoundedInputStream(raw, bit / 8), new ByteArrayInputStream(joint));
+	}
+
+	/**
+	 * Canonical Huffman code, decoded through a table of its short codes and a
+	 * bit at a time past them.
+	 */
+	private static final class Huffman {
+
+		/** the number of codes of each length */
+		private final int[] count = new int[MAX_BITS + 1];
+		/** the symbols ordered by code */
+		private final int[] symbol;
+		/** the symbol and length of the codes of up to {@value #FAST_BITS} bits, by their next bits */
+		private final int[] fast = new int[1 << FAST_BITS];
+
+		Huffman(int[] lengths, int from, int symbols) {
+			symbol = new int[symbols];
+			for (int s = 0; s < symbols; s++) {
+				count[lengths[from + s]]++;
+			}
+			count[0] = 0;
+			int[] offsets = new int[MAX_BITS + 1];
+			int[] codes = new int[MAX_BITS + 1];
+			for (int length = 1; length < MAX_BITS; length++) {
+				offsets[length + 1] = offsets[length] + count[length];
+				codes[length + 1] = codes[length] + count[length] << 1;
+			}
+			for (int s = 0; s < symbols; s++) {
+				int length = lengths[from + s];
+				if (length == 0) {
+					continue;
+				}
+				symbol[offsets[length]++] = s;
+				int code = codes[length]++;
+				if (length <= FAST_BITS) {
+					// the code is read from its first bit, the lowest of the stream
+					int reversed = Integer.reverse(code) >>> 32 - length;
+					for (int next = reversed; next < fast.length; next += 1 << length) {
+						fast[next] = s << 4 | length;
+					}
+				}
+			}
+		}
+
+	}
+
+	private static final class Walker {
+
+		private final InputStream in;
+		private final byte[] buffer = new byte[64 * 1024];
+		private int position;
+		private int limit;
+		private boolean ended;
+		private long bytesRead;
+		/** the last bytes read, the latest lowest */
+		private long recent;
+		private int bits;
+		private int bitCount;
+		private long inflated;
+
+		Walker(InputStream in) {
+			this.in = in;
+		}
+
+		DeflateCut find(long before) throws IOException {
+			DeflateCut cut = null;
+			boolean last;
+			do {
+				if (cut == null || inflated <= before) {
+					long bit = bytesRead * 8 - bitCount;
+					int back = (int) (bytesRead - 1 - bit / 8);
+					cut = new DeflateCut(bit, inflated, bit % 8 == 0 ? 0 : (int) (recent >>> 8 * back));
+				}
+				last = bits(1) == 1;
+				switch (bits(2)) {
+				case 0:
+					stored();
+					break;
+				case 1:
+					codes(FIXED_LITERALS, FIXED_DISTANCES);
+					break;
+				case 2:
+					dynamic();
+					break;
+				default:
+					throw new IOException("invalid deflate block type");
+				}
+			} while (!last);
+			return cut;
+		}
+
+		private void stored() throws IOException {
+			bits(bitCount % 8);
+			int length = bits(16);
+			if ((bits(16) ^ 0xFFFF) != length) {
+				throw new IOException("invalid deflate stored block length");
+			}
+			inflated += length;
+			for (; length > 0 && bitCount > 0; length--) {
+				bits(8);
+			}
+			while (length > 0) {
+				if (position == limit && !read()) {
+					throw new EOFException("deflate stream ends in a stored block");
+				}
+				int skipped = Math.min(length, limit - position);
+				position += skipped;
+				bytesRead += skipped;
+				length -= skipped;
+				recent = buffer[position - 1] & 0xFF;
+			}
+		}
+
+		private void dynamic() throws IOException {
+			int literals = bits(5) + 257;
+			int distances = bits(5) + 1;
+			int codes = bits(4) + 4;
+			if (literals > LITERALS - 2 || distances > DISTANCES) {
+				throw new IOException("invalid deflate code counts");
+			}
+			int[] lengths = new int[LITERALS + DISTANCES];
+			for (int i = 0; i < codes; i++) {
+				lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+			}
+			Huffman lengthCode = new Huffman(lengths, 0, CODE_LENGTH_ORDER.length);
+			Arrays.fill(lengths, 0);
+			for (int i = 0; i < literals + distances;) {
+				int symbol = decode(lengthCode);
+				if (symbol < 16) {
+					lengths[i++] = symbol;
+					continue;
+				}
+				int repeated = 0;
+				int times;
+				if (symbol == 16) {
+					if (i == 0) {
+						throw new IOException("invalid deflate code length repeat");
+					}
+					repeated = lengths[i - 1];
+					times = 3 + bits(2);
+				} else if (symbol == 17) {
+					times = 3 + bits(3);
+				} else {
+					times = 11 + bits(7);
+				}
+				if (i + times > literals + distances) {
+					throw new IOException("invalid deflate code length repeat");
+				}
+				while (times-- > 0) {
+					lengths[i++] = repeated;
+				}
+			}
+			if (lengths[END_OF_BLOCK] == 0) {
+				throw new IOException("deflate block has no end code");
+			}
+			// the distances follow the literals without a gap
+			System.arraycopy(lengths, literals, lengths, LITERALS, distances);
+			Arrays.fill(lengths, literals, LITERALS, 0);
+			codes(new Huffman(lengths, 0, LITERALS), new Huffman(lengths, LITERALS, DISTANCES));
+		}
+
+		private void codes(Huffman literals, Huffman distances) throws IOException {
+			while (true) {
+				int symbol = decode(literals);
+				if (symbol < END_OF_BLOCK) {
+					inflated++;
+				} else if (symbol == END_OF_BLOCK) {
+					return;
+				} else {
+					symbol -= END_OF_BLOCK + 1;
+					if (symbol >= LENGTH_BASE.length) {
+						throw new IOException("invalid deflate length code");
+					}
+					inflated += LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+					int distance = decode(distances);
+					if (distance >= DISTANCES) {
+						throw new IOException("invalid deflate distance code");
+					}
+					bits(DISTANCE_EXTRA[distance]);
+				}
+			}
+		}
+
+		private int decode(Huffman huffman) throws IOException {
+			if (bitCount < FAST_BITS) {
+				prefetch();
+			}
+			int entry = huffman.fast[bits & (1 << FAST_BITS) - 1];
+			int length = entry & 15;
+			if (length > 0 && length <= bitCount) {
+				bits >>>= length;
+				bitCount -= length;
+				return entry >>> 4;
+			}
+			int code = 0;
+			int first = 0;
+			int index = 0;
+			for (length = 1; length <= MAX_BITS; length++) {
+				code |= bits(1);
+				int count = huffman.count[length];
+				if (code - count < first) {
+					return huffman.symbol[index + code - first];
+				}
+				index += count;
+				first = first + count << 1;
+				code <<= 1;
+			}
+			throw new IOException("invalid deflate code");
+		}
+
+		private int bits(int need) throws IOException {
+			if (bitCount < need) {
+				prefetch();
+				if (bitCount < need) {
+					throw new EOFException("deflate stream ends before its last block");
+				}
+			}
+			int value = bits & (1 << need) - 1;
+			bits >>>= need;
+			bitCount -= need;
+			return value;
+		}
+
+		/**
+		 * Reads whole bytes into the bit buffer while they fit, unless the stream
+		 * has ended.
+		 */
+		private void prefetch() throws IOException {
+			while (bitCount <= 24 && (position < limit || read())) {
+				int next = buffer[position++] & 0xFF;
+				bytesRead++;
+				recent = recent << 8 | next;
+				bits |= next << bitCount;
+				bitCount += 8;
+			}
+		}
+
+		private boolean read() throws IOException {
+			if (ended) {
+				return false;
+			}
+			limit = in.read(buffer);
+			position = 0;
+			ended = limit <= 0;
+			return !ended;
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+package dos.gatos.poi.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.SharedStringsConfig;
+import dos.gatos.poi.util.WorkbookConfig.StringStorage;
+
+/**
+ * The shared strings table of one workbook, deciding per value whether it is
+ * shared or inline according to the {@link StringStorage} of its column and
+ * the {@link SharedStringsConfig} of the workbook. Strings are indexed in an
+ * open addressing table of parallel arrays, so an entry costs a reference and
+ * an int in each of them and a lookup allocates nothing.
+ * <p>
+ * Not thread safe, a workbook writes its sheets one after the other.
+ */
+final class SharedStrings {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final StringStorage[] storage;
+	/** number of distinct values each column added */
+	private final int[] added;
+	private final int maxSize;
+	private final int threshold;
+	private String[] keys = new String[INITIAL_CAPACITY];
+	private int[] indexes = new int[INITIAL_CAPACITY];
+	private String[] values = new String[INITIAL_CAPACITY / 2];
+	private int size;
+	private long count;
+
+	SharedStrings(WorkbookConfig<?> config) {
+		List<? extends ColumnConfig<?, ?>> columns = config.getColumns();
+		storage = columns.stream()
+				.map(column -> column.getTarget() == String.class ? column.getStringStorage() : StringStorage.INLINE)
+				.toArray(StringStorage[]::new);
+		added = new int[columns.size()];
+		maxSize = config.getSharedStrings().getMaxSize();
+		threshold = config.getSharedStrings().getThreshold();
+	}
+
+	/**
+	 * @return whether any column of the config may share its strings
+	 */
+	static boolean isUsed(WorkbookConfig<?> config) {
+		return config.getColumns().stream()
+				.anyMatch(column -> column.getTarget() == String.class && column.getStringStorage() != StringStorage.INLINE);
+	}
+
+	/**
+	 * @return the index of the value in the table, added if need be, or -1 when
+	 *         the value is to be written inline
+	 */
+	int index(int column, String value) {
+		StringStorage columnStorage = storage[column];
+		if (columnStorage == StringStorage.INLINE) {
+			return -1;
+		}
+		int mask = keys.length - 1;
+		int slot = spread(value.hashCode()) & mask;
+		for (String key = keys[slot]; key != null; key = keys[slot]) {
+			if (key.equals(value)) {
+				count++;
+				return indexes[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == maxSize || columnStorage == StringStorage.ADAPTIVE && added[column] == threshold) {
+			return -1;
+		}
+		added[column]++;
+		keys[slot] = value;
+		indexes[slot] = size;
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size] = value;
+		count++;
+		if (++size > keys.length / 2) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of cells referencing a shared string
+	 */
+	long count() {
+		return count;
+	}
+
+	String get(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Empties the table for the next workbook, keeping its capacity.
+	 */
+	void clear() {
+		Arrays.fill(keys, null);
+		Arrays.fill(values, 0, size, null);
+		Arrays.fill(added, 0);
+		size = 0;
+		count = 0;
+	}
+
+	/**
+	 * @return roughly the bytes the arrays of the table take, not counting the
+	 *         strings
+	 */
+	long retained() {
+		return (long) keys.length * 8 + (long) values.length * 4;
+	}
+
+	private void rehash() {
+		String[] oldKeys = keys;
+		int[] oldIndexes = indexes;
+		keys = new String[oldKeys.length * 2];
+		indexes = new int[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = spread(oldKeys[i].hashCode()) & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				indexes[slot] = oldIndexes[i];
+			}
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -0,0 +1,291 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the rows of a worksheet as SpreadsheetML into a reusable byte buffer,
+ * flushed to the underlying stream whenever it fills up. Values are encoded
+ * straight into the buffer, so a row allocates nothing but what its mappers
+ * do, except for the rare number that is not an integer.
+ * <p>
+ * Cells are written in two steps: {@link #cell} selects the column and style,
+ * then one of the {@code value} methods writes the cell, or {@link #endCell}
+ * writes it empty but styled when the column had no value.
+ */
+final class SheetXml {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** the longest a single char can be encoded to, {@code &quot;} */
+	private static final int MAX_CHAR_BYTES = 6;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final byte[][] columnNames;
+	private final byte[] rowNumber = new byte[10];
+	private final SharedStrings strings;
+	private OutputStream out;
+	private int position;
+	private int rowNumberLength;
+	private int column;
+	private int style;
+	private boolean written;
+
+	/**
+	 * @param strings the shared strings table string values are looked up in,
+	 *                null to write them all inline
+	 */
+	SheetXml(int columns, SharedStrings strings) {
+		this.strings = strings;
+		columnNames = new byte[columns][];
+		for (int i = 0; i < columns; i++) {
+			columnNames[i] = columnName(i).getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Flushes what was written so far to the current stream and writes the rest
+	 * to the given one.
+	 */
+	void setOut(OutputStream out) {
+		flushBuffer();
+		this.out = out;
+	}
+
+	void flush() {
+		flushBuffer();
+	}
+
+	/**
+	 * Discards what was written and not flushed, along with the stream, for
+	 * the next workbook.
+	 */
+	void reset() {
+		out = null;
+		position = 0;
+	}
+
+	/**
+	 * @param row the zero based row index, the header being row 0
+	 */
+	void startRow(int row) {
+		int number = row + 1;
+		rowNumberLength = 0;
+		do {
+			rowNumber[rowNumberLength++] = (byte) ('0' + number % 10);
+			number /= 10;
+		} while (number > 0);
+		for (int i = 0, j = rowNumberLength - 1; i < j; i++, j--) {
+			byte digit = rowNumber[i];
+			rowNumber[i] = rowNumber[j];
+			rowNumber[j] = digit;
+		}
+		ascii("<row r=\"");
+		bytes(rowNumber, rowNumberLength);
+		ascii("\">");
+	}
+
+	void endRow() {
+		ascii("</row>");
+	}
+
+	/**
+	 * @param style the index of the cell format, 0 for the default one
+	 */
+	void cell(int column, int style) {
+		this.column = column;
+		this.style = style;
+		this.written = false;
+	}
+
+	void endCell() {
+		if (!written) {
+			open(null);
+			ascii("/>");
+		}
+	}
+
+	void value(String value) {
+		int index = strings == null ? -1 : strings.index(column, value);
+		if (index >= 0) {
+			open("s");
+			ascii("><v>");
+			number(index);
+			ascii("</v></c>");
+		} else {
+			open("inlineStr");
+			ascii("><is>");
+			textElement(value);
+			ascii("</is></c>");
+		}
+	}
+
+	/**
+	 * Infinities and NaN become error cells, as they do in an
+	 * {@code XSSFCell}.
+	 */
+	void value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			open("e");
+			ascii(Double.isNaN(value) ? "><v>#NUM!</v></c>" : "><v>#DIV/0!</v></c>");
+			return;
+		}
+		open(null);
+		ascii("><v>");
+		long integer = (long) value;
+		if (integer == value && Math.abs(integer) < 1_000_000_000_000_000L) {
+			number(integer);
+		} else {
+			ascii(Double.toString(value));
+		}
+		ascii("</v></c>");
+	}
+
+	void value(boolean value) {
+		open("b");
+		ascii(value ? "><v>1</v></c>" : "><v>0</v></c>");
+	}
+
+	/**
+	 * Writes a {@code t} element, preserving the leading and trailing
+	 * whitespace of the value.
+	 */
+	void textElement(String value) {
+		if (!value.isEmpty() && (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)))) {
+			ascii("<t xml:space=\"preserve\">");
+		} else {
+			ascii("<t>");
+		}
+		text(value);
+		ascii("</t>");
+	}
+
+	void ascii(String value) {
+		ensure(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer[position++] = (byte) value.charAt(i);
+		}
+	}
+
+	void number(long value) {
+		if (value < 0) {
+			ensure(1);
+			buffer[position++] = '-';
+			value = -value;
+		}
+		ensure(19);
+		int start = position;
+		do {
+			buffer[position++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		for (int i = start, j = position - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+
+	/**
+	 * Writes escaped character data, also usable in a quoted attribute. Chars
+	 * XML does not allow are replaced with {@code ?}, like POI does.
+	 */
+	void text(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (position + MAX_CHAR_BYTES > buffer.length) {
+				flushBuffer();
+			}
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				switch (c) {
+				case '<':
+					ascii("&lt;");
+					break;
+				case '>':
+					ascii("&gt;");
+					break;
+				case '&':
+					ascii("&amp;");
+					break;
+				case '"':
+					ascii("&quot;");
+					break;
+				case '\t':
+				case '\n':
+				case '\r':
+					buffer[position++] = (byte) c;
+					break;
+				default:
+					buffer[position++] = (byte) (c < 0x20 ? '?' : c);
+				}
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | c >> 6);
+				buffer[position++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+				buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+				buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+				buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+			} else if (Character.isSurrogate(c) || c >= 0xFFFE) {
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | c >> 12);
+				buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buffer[position++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	private void open(String type) {
+		ascii("<c r=\"");
+		bytes(columnNames[column], columnNames[column].length);
+		bytes(rowNumber, rowNumberLength);
+		if (style != 0) {
+			ascii("\" s=\"");
+			number(style);
+		}
+		if (type != null) {
+			ascii("\" t=\"");
+			ascii(type);
+		}
+		ascii("\"");
+		written = true;
+	}
+
+	private void bytes(byte[] bytes, int length) {
+		ensure(length);
+		System.arraycopy(bytes, 0, buffer, position, length);
+		position += length;
+	}
+
+	private void ensure(int length) {
+		if (position + length > buffer.length) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() {
+		if (position > 0) {
+			try {
+				out.write(buffer, 0, position);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			position = 0;
+		}
+	}
+
+	/**
+	 * The letters of a zero based column index, A to XFD.
+	 */
+	static String columnName(int column) {
+		StringBuilder name = new StringBuilder();
+		for (int i = column + 1; i > 0; i = (i - 1) / 26) {
+			name.insert(0, (char) ('A' + (i - 1) % 26));
+		}
+		return name.toString();
+	}
+
+}
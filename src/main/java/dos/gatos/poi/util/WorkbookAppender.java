@@ -0,0 +1,692 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.poi.util.TempFile;
+
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Appends rows to a workbook exported earlier with the same
+ * {@link WorkbookConfig}, by the {@link WorkbookWriter} or the
+ * {@link WorkbookGenerator}, without generating its rows again: a daily export
+ * of a cumulative log costs the rows of the day and a streaming copy of the
+ * sheet, instead of the whole history.
+ * <p>
+ * The rows go to the end of the sheet named after the config, or of the first
+ * sheet. Every other part of the package, the styles and shared strings
+ * included, is copied still deflated, byte for byte. So is most of a sheet
+ * without dimension, as the {@link WorkbookWriter} writes them: its deflated
+ * bytes are cut before one of their last blocks, see {@link DeflateCut}, and
+ * only what follows is deflated again with the new rows, the sheet being
+ * inflated once for its checksum. A sheet with a dimension, which precedes the
+ * rows, is inflated and deflated again whole. Either way its XML is only
+ * scanned for the few places that change: the end row of its
+ * {@code dimension} and {@code autoFilter}, and of the filter range the
+ * workbook defines for it, if any.
+ * <p>
+ * The new rows are styled by the config, style i of its template being cell
+ * format i + 1 in a package laid out by either writer. Their strings are
+ * written inline, so the shared strings table is left as it is, and the column
+ * widths are kept. Until the sheet entry can be written, the new rows are
+ * staged in memory, then in a spill file when a {@link WorkbookSpill} is
+ * given or a temp file otherwise. The export is kept within the
+ * {@link WorkbookLimits} of the config, which count the new rows only.
+ */
+public final class WorkbookAppender<T> {
+
+	private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	private static final String WORKBOOK = "xl/workbook.xml";
+	private static final String WORKBOOK_RELATIONSHIPS = "xl/_rels/workbook.xml.rels";
+	private static final String FILTER_DATABASE = "_xlnm._FilterDatabase";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** the inflated bytes at the end of a sheet that are deflated again, at least */
+	private static final int SPLICE_TAIL = 64 * 1024;
+	/** the most inflated bytes deflated again, the rows appended aside */
+	private static final int MAX_SPLICED = 16 * 1024 * 1024;
+	/** the deflate window */
+	private static final int WINDOW = 32 * 1024;
+	/** the bytes of staged rows held in memory before going to a file */
+	private static final int STAGE_IN_MEMORY = 256 * 1024;
+	private static final byte[] SHEET_DATA = ascii("<sheetData");
+	private static final byte[] SHEET_DATA_START = ascii("<sheetData>");
+	private static final byte[] SHEET_DATA_END = ascii("</sheetData>");
+	private static final byte[] ROW = ascii("<row");
+	private static final byte[] ROW_NUMBER = ascii(" r=\"");
+	private static final Pattern DIMENSION = Pattern.compile("<dimension\\s+ref=\"([^\"]*)\"");
+	private static final Pattern AUTO_FILTER = Pattern.compile("<autoFilter\\s+ref=\"([^\"]*)\"");
+	private static final Pattern DEFINED_NAME = Pattern.compile("(<definedName\\b[^>]*>)([^<]*)</definedName>");
+	private static final Pattern CELL = Pattern.compile("(\\$?)([A-Z]+)(\\$?)([0-9]+)");
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final WorkbookConfig<T> config;
+	private final ZipFile prior;
+	private final WorkbookSpill spill;
+	private final ColumnWriter<T>[] writers;
+	private final int[] styles;
+	private final SheetXml xml;
+	private final WorkbookLimits limits;
+	private final Consumer<T> rowWriter = this::writeRow;
+	private CountingOutputStream counting;
+	private XlsxZipOutputStream zip;
+	/** the part of the sheet appended to */
+	private String part;
+	/** the position of that sheet in the workbook if it has a filter range, -1 otherwise */
+	private int filterSheet = -1;
+	/** the bytes of the sheet read but not yet written */
+	private final Held held = new Held();
+	private InputStream in;
+	private Stage stage;
+	private int rowIndex;
+	private long rows;
+
+	public static <T> void append(WorkbookConfig<T> config, Path prior, Stream<T> data, OutputStream out) throws IOException {
+		append(config, Files.newByteChannel(prior), data.spliterator(), out);
+	}
+
+	public static <T> void append(WorkbookConfig<T> config, byte[] prior, Stream<T> data, OutputStream out) throws IOException {
+		append(config, new SeekableInMemoryByteChannel(prior), data.spliterator(), out);
+	}
+
+	/**
+	 * Writes the prior workbook with the rows appended to the stream, which is
+	 * flushed but not closed. Rows are pulled from the spliterator one at a
+	 * time. The channel is closed.
+	 */
+	public static <T> void append(WorkbookConfig<T> config, SeekableByteChannel prior, Spliterator<T> data, OutputStream out)
+			throws IOException {
+		append(config, prior, null, data, out);
+	}
+
+	/**
+	 * Stages the new rows that do not fit in memory to the spill rather than to
+	 * a temp file, unless it is null.
+	 */
+	public static <T> void append(WorkbookConfig<T> config, SeekableByteChannel prior, WorkbookSpill spill, Spliterator<T> data,
+			OutputStream out) throws IOException {
+		try (ZipFile zipFile = new ZipFile(prior)) {
+			new WorkbookAppender<>(config, zipFile, spill).append(data, out);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private WorkbookAppender(WorkbookConfig<T> config, ZipFile prior, WorkbookSpill spill) {
+		this.config = config;
+		this.prior = prior;
+		this.spill = spill;
+		this.writers = config.getColumns().stream().map(WorkbookWriter::columnWriter).toArray(ColumnWriter[]::new);
+		this.styles = config.getTemplate().getColumnStyles();
+		this.xml = new SheetXml(writers.length, null);
+		this.limits = WorkbookLimits.start(config);
+	}
+
+	private void append(Spliterator<T> data, OutputStream out) throws IOException {
+		Timer.Sample sample = WorkbookMetrics.start();
+		findSheet();
+		counting = new CountingOutputStream(out);
+		zip = new XlsxZipOutputStream(counting, config.getCompression());
+		try {
+			for (ZipArchiveEntry entry : Collections.list(prior.getEntriesInPhysicalOrder())) {
+				if (!entry.getName().equals(part) && !(filterSheet >= 0 && entry.getName().equals(WORKBOOK))) {
+					try (InputStream raw = prior.getRawInputStream(entry)) {
+						zip.addRawArchiveEntry(entry, raw);
+					}
+				}
+			}
+			int lastRow = spliceSheet(data);
+			if (lastRow < 0) {
+				lastRow = appendSheet(data);
+			}
+			if (filterSheet >= 0) {
+				rewriteFilterRange(lastRow);
+			}
+			zip.finish();
+			counting.flush();
+			limits.bytes(counting.getBytesWritten());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			zip.end();
+			if (stage != null) {
+				stage.delete();
+			}
+		}
+		WorkbookMetrics.stop(sample, config.getName(), WorkbookMetrics.APPEND);
+		WorkbookMetrics.rows(config.getName(), rows, rows * writers.length);
+		WorkbookMetrics.bytes(config.getName(), counting.getBytesWritten());
+	}
+
+	/**
+	 * Finds the part of the sheet named after the config, or of the first
+	 * sheet, and whether the workbook defines a filter range for it.
+	 */
+	private void findSheet() throws IOException {
+		List<String> names = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		Set<Integer> filtered = new HashSet<>();
+		try (InputStream workbook = entry(WORKBOOK)) {
+			XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(workbook);
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				if (reader.getLocalName().equals("sheet")) {
+					names.add(reader.getAttributeValue(null, "name"));
+					ids.add(reader.getAttributeValue(RELATIONSHIPS_NS, "id"));
+				} else if (reader.getLocalName().equals("definedName") && FILTER_DATABASE.equals(reader.getAttributeValue(null, "name"))
+						&& reader.getAttributeValue(null, "localSheetId") != null) {
+					filtered.add(Integer.valueOf(reader.getAttributeValue(null, "localSheetId")));
+				}
+			}
+		} catch (XMLStreamException | NumberFormatException e) {
+			throw new IOException("unreadable workbook", e);
+		}
+		if (names.isEmpty()) {
+			throw new IOException("workbook has no sheet");
+		}
+		int sheet = Math.max(0, names.indexOf(config.getSheetName()));
+		part = target(ids.get(sheet));
+		filterSheet = filtered.contains(sheet) ? sheet : -1;
+	}
+
+	private String target(String id) throws IOException {
+		try (InputStream relationships = entry(WORKBOOK_RELATIONSHIPS)) {
+			XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(relationships);
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Relationship")
+						&& reader.getAttributeValue(null, "Id").equals(id)) {
+					String target = reader.getAttributeValue(null, "Target");
+					return target.startsWith("/") ? target.substring(1) : "xl/" + target;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("unreadable workbook relationships", e);
+		}
+		throw new IOException("workbook has no part for sheet " + id);
+	}
+
+	/**
+	 * Writes a sheet without dimension with the rows appended, copying its
+	 * deflated bytes up to one of its last blocks, see {@link DeflateCut}. The
+	 * sheet is inflated once to compute its checksum, and what follows the cut
+	 * is deflated again with the rows, the {@value #WINDOW} bytes before it as
+	 * dictionary.
+	 *
+	 * @return the number of its last row, -1 if the sheet cannot be cut and is
+	 *         not written
+	 */
+	private int spliceSheet(Spliterator<T> data) throws IOException {
+		ZipArchiveEntry entry = prior.getEntry(part);
+		if (entry == null || entry.getMethod() != ZipEntry.DEFLATED || entry.getSize() < 0) {
+			return -1;
+		}
+		try (InputStream sheet = entry(part)) {
+			in = sheet;
+			int start = readHead();
+			int end = indexOf(held.bytes, (byte) '>', start, held.length) + 1;
+			boolean empty = held.bytes[end - 2] == '/';
+			boolean dimension = DIMENSION.matcher(new String(held.bytes, 0, start, StandardCharsets.UTF_8)).find();
+			held.length = 0;
+			if (empty || dimension) {
+				return -1;
+			}
+		}
+		DeflateCut cut;
+		try (InputStream raw = prior.getRawInputStream(entry)) {
+			cut = DeflateCut.find(raw, Math.max(0, entry.getSize() - SPLICE_TAIL));
+		}
+		long keepFrom = Math.max(0, cut.getOffset() - WINDOW);
+		if (entry.getSize() - keepFrom > MAX_SPLICED) {
+			return -1;
+		}
+		// the bytes after the cut, and the window before it
+		byte[] kept = new byte[(int) (entry.getSize() - keepFrom)];
+		CRC32 crc = new CRC32();
+		try (InputStream sheet = entry(part)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = 0;
+			for (int read; (read = sheet.read(buffer)) > 0; position += read) {
+				if (position + read > entry.getSize()) {
+					throw new IOException("sheet " + part + " is larger than its entry");
+				}
+				crc.update(buffer, 0, (int) Math.max(0, Math.min(read, cut.getOffset() - position)));
+				int from = (int) Math.max(0, Math.min(read, keepFrom - position));
+				if (from < read) {
+					System.arraycopy(buffer, from, kept, (int) (position + from - keepFrom), read - from);
+				}
+			}
+		}
+		int window = (int) (cut.getOffset() - keepFrom);
+		int end = lastIndexOf(kept, SHEET_DATA_END, window, kept.length);
+		int row = end < 0 ? -1 : lastIndexOf(kept, ROW, 0, end);
+		int tagEnd = row < 0 ? -1 : indexOf(kept, (byte) '>', row, end);
+		int priorRows = tagEnd < 0 ? -1 : rowNumber(kept, row, tagEnd);
+		if (priorRows < 0) {
+			return -1;
+		}
+		stage = new Stage(spill);
+		Deflater deflater = new Deflater(config.getCompression().getLevel(), true);
+		try {
+			deflater.setDictionary(kept, 0, window);
+			int lastRow;
+			try (OutputStream content = new CheckedOutputStream(new DeflaterOutputStream(stage, deflater, BUFFER_SIZE), crc)) {
+				content.write(kept, window, end - window);
+				lastRow = writeRows(data, priorRows, content);
+				content.write(SHEET_DATA_END);
+				int tail = end + SHEET_DATA_END.length;
+				content.write(extendFilter(new String(kept, tail, kept.length - tail, StandardCharsets.UTF_8), lastRow));
+			}
+			ZipArchiveEntry spliced = new ZipArchiveEntry(part);
+			spliced.setMethod(ZipEntry.DEFLATED);
+			spliced.setCrc(crc.getValue());
+			spliced.setSize(cut.getOffset() + deflater.getBytesRead());
+			spliced.setCompressedSize(cut.getHeadLength() + deflater.getBytesWritten());
+			try (InputStream raw = prior.getRawInputStream(entry); InputStream staged = stage.getInputStream()) {
+				zip.addRawArchiveEntry(spliced, new SequenceInputStream(cut.head(raw), staged));
+			}
+			return lastRow;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Writes the sheet with the rows appended.
+	 *
+	 * @return the number of its last row
+	 */
+	private int appendSheet(Spliterator<T> data) throws IOException {
+		zip.putArchiveEntry(new ZipArchiveEntry(part));
+		try (InputStream sheet = entry(part)) {
+			in = sheet;
+			int start = readHead();
+			int end = indexOf(held.bytes, (byte) '>', start, held.length) + 1;
+			boolean empty = held.bytes[end - 2] == '/';
+			String head = new String(held.bytes, 0, start, StandardCharsets.UTF_8);
+			held.discard(end);
+			Matcher dimension = DIMENSION.matcher(head);
+			int lastRow;
+			if (dimension.find()) {
+				int priorRows = endRow(dimension.group(1));
+				stage = new Stage(spill);
+				lastRow = writeRows(data, priorRows, stage);
+				stage.close();
+				writeHead(head.substring(0, dimension.start(1)) + extend(dimension.group(1), lastRow, writers.length)
+						+ head.substring(dimension.end(1)));
+				if (!empty) {
+					copyRows(false, priorRows);
+				}
+				try (InputStream staged = stage.getInputStream()) {
+					staged.transferTo(zip);
+				}
+			} else {
+				writeHead(head);
+				int priorRows = empty ? 0 : copyRows(true, 0);
+				lastRow = writeRows(data, priorRows, zip);
+			}
+			if (!empty) {
+				held.discard(SHEET_DATA_END.length);
+			}
+			zip.write(SHEET_DATA_END);
+			writeTail(lastRow);
+			zip.closeArchiveEntry();
+			return lastRow;
+		}
+	}
+
+	/**
+	 * Reads the sheet up to the end of the start tag of its rows.
+	 *
+	 * @return where that tag starts
+	 */
+	private int readHead() throws IOException {
+		while (true) {
+			int start = indexOf(held.bytes, SHEET_DATA, 0, held.length);
+			if (start >= 0 && indexOf(held.bytes, (byte) '>', start, held.length) >= 0) {
+				return start;
+			}
+			if (!held.fill(in)) {
+				throw new IOException("sheet " + part + " has no rows");
+			}
+		}
+	}
+
+	private void writeHead(String head) throws IOException {
+		zip.write(head.getBytes(StandardCharsets.UTF_8));
+		zip.write(SHEET_DATA_START);
+	}
+
+	/**
+	 * Copies the rows of the sheet up to the end of the rows element, which is
+	 * left at the start of the held bytes, reading the number of the last row
+	 * if asked.
+	 *
+	 * @return the number of the last row if read, the given one otherwise
+	 */
+	private int copyRows(boolean read, int lastRow) throws IOException {
+		int scanFrom = 0;
+		while (true) {
+			int end = indexOf(held.bytes, SHEET_DATA_END, 0, held.length);
+			int limit = end >= 0 ? end : held.length;
+			// the start of the end tag may be at the end of what was read
+			int keep = end >= 0 ? end : Math.max(0, limit - SHEET_DATA_END.length + 1);
+			for (int row = read ? indexOf(held.bytes, ROW, scanFrom, limit) : -1; row >= 0; row = indexOf(held.bytes, ROW, scanFrom, limit)) {
+				int tagEnd = indexOf(held.bytes, (byte) '>', row, limit);
+				if (tagEnd < 0) {
+					keep = Math.min(keep, row);
+					break;
+				}
+				int number = rowNumber(held.bytes, row, tagEnd);
+				lastRow = number >= 0 ? number : lastRow + 1;
+				scanFrom = row + ROW.length;
+			}
+			zip.write(held.bytes, 0, keep);
+			held.discard(keep);
+			scanFrom = Math.max(0, scanFrom - keep);
+			if (end >= 0) {
+				return lastRow;
+			}
+			if (!held.fill(in)) {
+				throw new IOException("sheet " + part + " has no end of its rows");
+			}
+		}
+	}
+
+	/**
+	 * @return the {@code r} attribute of the row tag, -1 if it has none
+	 */
+	private static int rowNumber(byte[] bytes, int row, int tagEnd) {
+		int attribute = indexOf(bytes, ROW_NUMBER, row, tagEnd);
+		if (attribute < 0) {
+			return -1;
+		}
+		int number = 0;
+		for (int i = attribute + ROW_NUMBER.length; i < tagEnd && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+			number = number * 10 + bytes[i] - '0';
+		}
+		return number;
+	}
+
+	/**
+	 * @param priorRows the number of the last row of the sheet
+	 * @return the number of the last row appended, or the given one if none
+	 */
+	private int writeRows(Spliterator<T> data, int priorRows, OutputStream out) {
+		xml.setOut(out);
+		rowIndex = priorRows;
+		data.forEachRemaining(rowWriter);
+		xml.flush();
+		rows = rowIndex - priorRows;
+		return rowIndex;
+	}
+
+	private void writeRow(T data) {
+		limits.row(counting.getBytesWritten());
+		xml.startRow(rowIndex++);
+		for (int c = 0; c < writers.length; c++) {
+			xml.cell(c, styles[c] + 1);
+			writers[c].write(xml, data);
+			xml.endCell();
+		}
+		xml.endRow();
+	}
+
+	/**
+	 * Copies what follows the rows, moving the end of the filter range.
+	 */
+	private void writeTail(int lastRow) throws IOException {
+		ByteArrayOutputStream tail = new ByteArrayOutputStream();
+		tail.write(held.bytes, 0, held.length);
+		in.transferTo(tail);
+		zip.write(extendFilter(tail.toString(StandardCharsets.UTF_8), lastRow));
+	}
+
+	private static byte[] extendFilter(String tail, int lastRow) {
+		Matcher filter = AUTO_FILTER.matcher(tail);
+		if (filter.find()) {
+			tail = tail.substring(0, filter.start(1)) + extend(filter.group(1), lastRow, 0) + tail.substring(filter.end(1));
+		}
+		return tail.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the workbook part with the end of the filter range defined for
+	 * the sheet moved.
+	 */
+	private void rewriteFilterRange(int lastRow) throws IOException {
+		String workbook;
+		try (InputStream entry = entry(WORKBOOK)) {
+			workbook = new String(entry.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		Matcher name = DEFINED_NAME.matcher(workbook);
+		StringBuilder rewritten = new StringBuilder();
+		while (name.find()) {
+			String tag = name.group(1);
+			if (tag.contains("name=\"" + FILTER_DATABASE + "\"") && tag.contains("localSheetId=\"" + filterSheet + "\"")) {
+				String range = name.group(2);
+				int sheet = range.lastIndexOf('!') + 1;
+				name.appendReplacement(rewritten, Matcher.quoteReplacement(
+						tag + range.substring(0, sheet) + extend(range.substring(sheet), lastRow, 0) + "</definedName>"));
+			}
+		}
+		name.appendTail(rewritten);
+		zip.putArchiveEntry(new ZipArchiveEntry(WORKBOOK));
+		zip.write(rewritten.toString().getBytes(StandardCharsets.UTF_8));
+		zip.closeArchiveEntry();
+	}
+
+	private InputStream entry(String name) throws IOException {
+		ZipArchiveEntry entry = prior.getEntry(name);
+		if (entry == null) {
+			throw new IOException("workbook has no part " + name);
+		}
+		return prior.getInputStream(entry);
+	}
+
+	private static int endRow(String ref) throws IOException {
+		Matcher end = CELL.matcher(ref.substring(ref.lastIndexOf(':') + 1));
+		if (!end.matches()) {
+			throw new IOException("unreadable range " + ref);
+		}
+		return Integer.parseInt(end.group(4));
+	}
+
+	/**
+	 * @return the range with its end row moved to the given one, and its end
+	 *         column to the last of the given number of columns if before it
+	 */
+	static String extend(String ref, int lastRow, int columns) {
+		int colon = ref.lastIndexOf(':');
+		Matcher end = CELL.matcher(ref.substring(colon + 1));
+		if (!end.matches()) {
+			return ref;
+		}
+		String column = end.group(2);
+		if (columnIndex(column) < columns - 1) {
+			column = SheetXml.columnName(columns - 1);
+		}
+		return ref.substring(0, colon < 0 ? ref.length() : colon) + ":" + end.group(1) + column + end.group(3) + lastRow;
+	}
+
+	private static int columnIndex(String name) {
+		int index = 0;
+		for (int i = 0; i < name.length(); i++) {
+			index = index * 26 + name.charAt(i) - 'A' + 1;
+		}
+		return index - 1;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern, int from, int to) {
+		search: for (int i = indexOf(bytes, pattern[0], from, to); i >= 0 && i <= to - pattern.length; i = indexOf(bytes, pattern[0], i + 1, to)) {
+			for (int j = 1; j < pattern.length; j++) {
+				if (bytes[i + j] != pattern[j]) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] bytes, byte[] pattern, int from, int to) {
+		for (int i = to - pattern.length; i >= from; i--) {
+			if (Arrays.equals(bytes, i, i + pattern.length, pattern, 0, pattern.length)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * A window on the sheet, read chunk by chunk and discarded as written.
+	 */
+	private static final class Held {
+
+		private byte[] bytes = new byte[2 * BUFFER_SIZE];
+		private int length;
+
+		/**
+		 * @return false at the end of the stream
+		 */
+		boolean fill(InputStream in) throws IOException {
+			if (bytes.length - length < BUFFER_SIZE) {
+				byte[] grown = new byte[Math.max(2 * bytes.length, length + BUFFER_SIZE)];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+			int read = in.read(bytes, length, BUFFER_SIZE);
+			if (read < 0) {
+				return false;
+			}
+			length += read;
+			return true;
+		}
+
+		void discard(int count) {
+			System.arraycopy(bytes, count, bytes, 0, length - count);
+			length -= count;
+		}
+
+	}
+
+	/**
+	 * The new rows of a sheet with a dimension, until their number is known.
+	 */
+	private static final class Stage extends OutputStream {
+
+		private final WorkbookSpill spill;
+		private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private Path file;
+		private WorkbookSpill.SpillFile spilled;
+		private OutputStream out;
+
+		Stage(WorkbookSpill spill) {
+			this.spill = spill;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null && memory.size() + len > STAGE_IN_MEMORY) {
+				if (spill != null) {
+					spilled = spill.create("workbook-append");
+					out = spilled;
+				} else {
+					file = TempFile.createTempFile("poi-workbook-append", ".xml").toPath();
+					out = Files.newOutputStream(file);
+				}
+			}
+			if (out == null) {
+				memory.write(b, off, len);
+			} else {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+		}
+
+		InputStream getInputStream() throws IOException {
+			InputStream held = new ByteArrayInputStream(memory.toByteArray());
+			if (out == null) {
+				return held;
+			}
+			return new SequenceInputStream(held, spilled != null ? spilled.getInputStream() : Files.newInputStream(file));
+		}
+
+		void delete() throws IOException {
+			try (OutputStream os = out) {
+				out = null;
+			} finally {
+				if (spilled != null) {
+					spilled.delete();
+				} else if (file != null) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A workbook that has already been serialized, held either on the heap or in
+ * a spill file. Writing it out is a plain copy, no generation involved.
+ * <p>
+ * A spill file is shared by its holder, a cache or a job, and every copy in
+ * progress. Each copy takes a lease on it until it is done, so the holder
+ * {@link #release releasing} it only deletes the file once the last copy
+ * finished. A copy started after that fails before writing anything.
+ */
+@Getter
+public class WorkbookBytes {
+
+	private final String filename;
+	private final String etag;
+	private final long size;
+	@Getter(AccessLevel.NONE)
+	private final byte[] bytes;
+	@Getter(AccessLevel.NONE)
+	private final Path file;
+	/** the reference of the holder, and one per copy in progress */
+	@Getter(AccessLevel.NONE)
+	private final AtomicInteger references = new AtomicInteger(1);
+	@Getter(AccessLevel.NONE)
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	WorkbookBytes(String filename, String etag, long size, byte[] bytes, Path file) {
+		this.filename = filename;
+		this.etag = etag;
+		this.size = size;
+		this.bytes = bytes;
+		this.file = file;
+	}
+
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @throws NoSuchFileException if the spill file was released and deleted
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		if (file == null) {
+			outputStream.write(bytes);
+			return;
+		}
+		if (!lease()) {
+			throw new NoSuchFileException(file.toString(), null, "workbook was released");
+		}
+		try {
+			Files.copy(file, outputStream);
+		} finally {
+			unlease();
+		}
+	}
+
+	/**
+	 * Gives up the reference of the holder, deleting the spill file now or
+	 * once the copies in progress are done. Releasing twice has no effect.
+	 */
+	void release() {
+		if (released.compareAndSet(false, true)) {
+			unlease();
+		}
+	}
+
+	private boolean lease() {
+		for (int count = references.get(); count > 0; count = references.get()) {
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void unlease() {
+		if (references.decrementAndGet() == 0 && file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Opt-in cache of serialized workbooks, keyed by the identity of the
+ * {@link WorkbookConfig} and a data version supplied by the caller, e.g. the
+ * last modification time or a hash of the data set. Repeat downloads of the
+ * same version are served from the cached bytes instead of being generated and
+ * zipped again. The entity tag of a cached workbook is the digest of its bytes,
+ * so two configs of the same name, or a workbook generated again, never share
+ * a tag unless they share the content.
+ * <p>
+ * Entries are evicted least recently used first once the heap budget is
+ * exceeded. When a spill directory is configured, workbooks larger than the
+ * spill threshold are kept in files instead, under their own budget.
+ */
+public class WorkbookCache {
+
+	private final long maxBytes;
+	private final long spillThreshold;
+	private final Path spillDirectory;
+	private final long maxSpillBytes;
+	private final Map<Key, WorkbookBytes> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long spillBytes;
+
+	public WorkbookCache(long maxBytes) {
+		this(maxBytes, Long.MAX_VALUE, null, 0);
+	}
+
+	public WorkbookCache(long maxBytes, long spillThreshold, Path spillDirectory, long maxSpillBytes) {
+		this.maxBytes = maxBytes;
+		this.spillThreshold = spillThreshold;
+		this.spillDirectory = spillDirectory;
+		this.maxSpillBytes = maxSpillBytes;
+	}
+
+	/**
+	 * Returns the cached workbook for this version, generating and serializing
+	 * it on a miss. Concurrent misses for the same version may generate it more
+	 * than once, the first one stored wins.
+	 */
+	public WorkbookBytes get(WorkbookConfig<?> config, String version, Supplier<? extends Workbook> generator) {
+		Objects.requireNonNull(version, "data version is required");
+		Key key = new Key(config, version);
+		synchronized (this) {
+			WorkbookBytes cached = entries.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		WorkbookBytes generated = serialize(config, generator.get());
+		WorkbookBytes entry = spillDirectory != null && generated.getSize() >= spillThreshold ? spill(generated) : generated;
+		synchronized (this) {
+			WorkbookBytes cached = entries.get(key);
+			if (cached != null) {
+				entry.release();
+				return cached;
+			}
+			if (entry.isSpilled() ? entry.getSize() <= maxSpillBytes : entry.getSize() <= maxBytes) {
+				entries.put(key, entry);
+				add(entry, 1);
+				evict();
+			} else {
+				entry.release();
+			}
+			return generated;
+		}
+	}
+
+	public synchronized void invalidate(WorkbookConfig<?> config) {
+		Iterator<Map.Entry<Key, WorkbookBytes>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, WorkbookBytes> entry = it.next();
+			if (entry.getKey().config == config) {
+				remove(it, entry.getValue());
+			}
+		}
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getSpillBytes() {
+		return spillBytes;
+	}
+
+	private WorkbookBytes serialize(WorkbookConfig<?> config, Workbook workbook) {
+		String filename = config.getName().concat(".xlsx");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			WorkbookMetrics.write(workbook, config.getName(), out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (workbook instanceof SXSSFWorkbook) {
+				((SXSSFWorkbook) workbook).dispose();
+			}
+			try {
+				workbook.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		byte[] bytes = out.toByteArray();
+		return new WorkbookBytes(filename, "\"" + DigestUtils.md5DigestAsHex(bytes) + "\"", bytes.length, bytes, null);
+	}
+
+	private WorkbookBytes spill(WorkbookBytes workbook) {
+		try {
+			Files.createDirectories(spillDirectory);
+			Path file = Files.createTempFile(spillDirectory, "workbook", ".xlsx");
+			try (OutputStream out = Files.newOutputStream(file)) {
+				workbook.writeTo(out);
+			}
+			return new WorkbookBytes(workbook.getFilename(), workbook.getEtag(), workbook.getSize(), null, file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void evict() {
+		Iterator<WorkbookBytes> it = entries.values().iterator();
+		while ((bytes > maxBytes || spillBytes > maxSpillBytes) && it.hasNext()) {
+			WorkbookBytes entry = it.next();
+			if (entry.isSpilled() ? spillBytes > maxSpillBytes : bytes > maxBytes) {
+				remove(it, entry);
+			}
+		}
+	}
+
+	private void remove(Iterator<?> it, WorkbookBytes entry) {
+		it.remove();
+		add(entry, -1);
+		entry.release();
+	}
+
+	private void add(WorkbookBytes entry, int sign) {
+		if (entry.isSpilled()) {
+			spillBytes += sign * entry.getSize();
+		} else {
+			bytes += sign * entry.getSize();
+		}
+	}
+
+	private static class Key {
+
+		private final WorkbookConfig<?> config;
+		private final String version;
+
+		private Key(WorkbookConfig<?> config, String version) {
+			this.config = config;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key) obj).config == config && ((Key) obj).version.equals(version);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(config) + version.hashCode();
+		}
+	}
+
+}
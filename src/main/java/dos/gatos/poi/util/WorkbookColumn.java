@@ -0,0 +1,40 @@
+package dos.gatos.poi.util;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+
+/**
+ * A field of a {@link WorkbookModel} exported as a column. The column type
+ * follows the field type: {@code String}, any number, primitive or not,
+ * {@code boolean} and {@code Boolean}, {@code LocalDate} and
+ * {@code LocalDateTime}. The other style attributes default to the body style.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface WorkbookColumn {
+
+	/** the header of the column, the field name by default */
+	String name() default "";
+
+	/** columns are sorted by order, then in the order of the fields */
+	int order() default 0;
+
+	/** the data format of the cells, like {@code yyyy-mm-dd} */
+	String format() default "";
+
+	/** {@code GENERAL} keeps the alignment of the body style */
+	HorizontalAlignment horizontalAlignment() default HorizontalAlignment.GENERAL;
+
+	/** the RGB fill color of the cells, -1 for none */
+	int fillColor() default -1;
+
+	/** the RGB font color of the cells, -1 for the body font */
+	int fontColor() default -1;
+
+}
@@ -0,0 +1,253 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.springframework.http.MediaType;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.ColumnType;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Writes the rows a {@link WorkbookConfig} describes in a compact columnar
+ * binary format, with the column mappers of the config and nothing of POI.
+ * Rows are written in batches of {@value #BATCH_SIZE}, each column of a batch
+ * as one contiguous vector, which is laid out like an Arrow buffer so clients
+ * can load it without parsing text. All integers are little endian, vectors
+ * are not padded:
+ *
+ * <pre>
+ * stream  := "WBCF" version:u8 columns:i32 column* batch* 0:i32
+ * column  := type:u8 name
+ * name    := length:i32 utf8[length]
+ * batch   := rows:i32 vector*          one vector per column, in order
+ * vector  := validity:bitmap values
+ * bitmap  := u8[(rows + 7) / 8]        bit i, lowest first, set for row i
+ * </pre>
+ *
+ * The values of a vector depend on the type of its column, the ordinal of
+ * {@link ColumnType}, and hold a zero for a missing value:
+ * <ul>
+ * <li>{@code STRING}: {@code offsets:i32[rows + 1]}, then the UTF-8 bytes of
+ * the values, value i spanning {@code offsets[i]} to
+ * {@code offsets[i + 1]}</li>
+ * <li>{@code NUMBER}: {@code f64[rows]}</li>
+ * <li>{@code BOOLEAN}: a bitmap of the values</li>
+ * <li>{@code DATE}: {@code i32[rows]}, days since 1970-01-01</li>
+ * <li>{@code DATETIME}: {@code i64[rows]}, milliseconds since
+ * 1970-01-01T00:00, the local date time being read as UTC</li>
+ * </ul>
+ * <p>
+ * The export is kept within the {@link WorkbookLimits} of the config.
+ */
+public final class WorkbookColumnarWriter {
+
+	public static final MediaType MEDIA_TYPE = MediaType.parseMediaType("application/x-workbook-columnar");
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'W', 'B', 'C', 'F' };
+	private static final int BATCH_SIZE = 8192;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Function<Object, ?>[] mappers;
+	private final ColumnType[] types;
+	/** the values of the current batch, column by column */
+	private final Object[][] values;
+	private final WorkbookLimits limits;
+	private final CountingOutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int rows;
+	private long total;
+
+	public static <T> void write(WorkbookConfig<T> config, List<T> data, OutputStream out) throws IOException {
+		write(config, data.spliterator(), out);
+	}
+
+	public static <T> void write(WorkbookConfig<T> config, Stream<T> data, OutputStream out) throws IOException {
+		write(config, data.spliterator(), out);
+	}
+
+	/**
+	 * Rows are pulled from the spliterator one at a time, a batch being written
+	 * once full. The stream is flushed but not closed.
+	 */
+	public static <T> void write(WorkbookConfig<T> config, Spliterator<T> data, OutputStream out) throws IOException {
+		Timer.Sample sample = WorkbookMetrics.start();
+		WorkbookColumnarWriter writer = new WorkbookColumnarWriter(config, out);
+		try {
+			data.forEachRemaining(writer::add);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writer.close();
+		WorkbookMetrics.stop(sample, config.getName(), WorkbookMetrics.WRITE_COLUMNAR);
+		WorkbookMetrics.rows(config.getName(), writer.total, writer.total * writer.types.length);
+	}
+
+	@SuppressWarnings("unchecked")
+	private WorkbookColumnarWriter(WorkbookConfig<?> config, OutputStream out) throws IOException {
+		List<? extends ColumnConfig<?, ?>> columns = config.getColumns();
+		this.mappers = columns.stream().map(ColumnConfig::getMapper).toArray(Function[]::new);
+		this.types = columns.stream().map(ColumnConfig::getType).toArray(ColumnType[]::new);
+		this.values = new Object[columns.size()][BATCH_SIZE];
+		this.limits = WorkbookLimits.start(config);
+		this.out = new CountingOutputStream(out);
+		write(MAGIC);
+		writeByte(VERSION);
+		writeInt(columns.size());
+		for (int i = 0; i < columns.size(); i++) {
+			writeByte(types[i].ordinal());
+			byte[] name = columns.get(i).getName().getBytes(StandardCharsets.UTF_8);
+			writeInt(name.length);
+			write(name);
+		}
+	}
+
+	private void add(Object row) {
+		limits.row(out.getBytesWritten());
+		for (int i = 0; i < mappers.length; i++) {
+			values[i][rows] = mappers[i].apply(row);
+		}
+		total++;
+		if (++rows == BATCH_SIZE) {
+			try {
+				writeBatch();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void close() throws IOException {
+		if (rows > 0) {
+			writeBatch();
+		}
+		writeInt(0);
+		out.write(buffer, 0, position);
+		position = 0;
+		out.flush();
+		limits.bytes(out.getBytesWritten());
+	}
+
+	private void writeBatch() throws IOException {
+		writeInt(rows);
+		for (int i = 0; i < types.length; i++) {
+			Object[] column = values[i];
+			writeBitmap(column, Objects::nonNull);
+			switch (types[i]) {
+			case STRING:
+				writeStrings(column);
+				break;
+			case NUMBER:
+				for (int row = 0; row < rows; row++) {
+					writeLong(column[row] == null ? 0 : Double.doubleToRawLongBits(((Number) column[row]).doubleValue()));
+				}
+				break;
+			case BOOLEAN:
+				writeBitmap(column, Boolean.TRUE::equals);
+				break;
+			case DATE:
+				for (int row = 0; row < rows; row++) {
+					writeInt(column[row] == null ? 0 : (int) local((Date) column[row]).toLocalDate().toEpochDay());
+				}
+				break;
+			default:
+				for (int row = 0; row < rows; row++) {
+					writeLong(column[row] == null ? 0 : local((Date) column[row]).toInstant(ZoneOffset.UTC).toEpochMilli());
+				}
+			}
+			Arrays.fill(column, 0, rows, null);
+		}
+		rows = 0;
+	}
+
+	private static LocalDateTime local(Date date) {
+		return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+	}
+
+	private void writeBitmap(Object[] column, Predicate<Object> set) throws IOException {
+		int bits = 0;
+		for (int row = 0; row < rows; row++) {
+			if (set.test(column[row])) {
+				bits |= 1 << (row & 7);
+			}
+			if ((row & 7) == 7) {
+				writeByte(bits);
+				bits = 0;
+			}
+		}
+		if ((rows & 7) != 0) {
+			writeByte(bits);
+		}
+	}
+
+	private void writeStrings(Object[] column) throws IOException {
+		byte[][] bytes = new byte[rows][];
+		int offset = 0;
+		writeInt(0);
+		for (int row = 0; row < rows; row++) {
+			bytes[row] = column[row] == null ? new byte[0] : column[row].toString().getBytes(StandardCharsets.UTF_8);
+			offset += bytes[row].length;
+			writeInt(offset);
+		}
+		for (byte[] value : bytes) {
+			write(value);
+		}
+	}
+
+	private void writeByte(int value) throws IOException {
+		ensure(1);
+		buffer[position++] = (byte) value;
+	}
+
+	private void writeInt(int value) throws IOException {
+		ensure(4);
+		for (int i = 0; i < 4; i++) {
+			buffer[position++] = (byte) (value >>> 8 * i);
+		}
+	}
+
+	private void writeLong(long value) throws IOException {
+		ensure(8);
+		for (int i = 0; i < 8; i++) {
+			buffer[position++] = (byte) (value >>> 8 * i);
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		if (bytes.length > buffer.length - position) {
+			out.write(buffer, 0, position);
+			position = 0;
+			if (bytes.length > buffer.length) {
+				out.write(bytes);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void ensure(int length) throws IOException {
+		if (buffer.length - position < length) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+}
@@ -1,5 +1,6 @@
 package dos.gatos.poi.util;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -12,14 +13,22 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
+import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.FillPatternType;
 import org.apache.poi.ss.usermodel.HorizontalAlignment;
 import org.apache.poi.ss.usermodel.VerticalAlignment;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
 import lombok.Value;
@@ -34,6 +43,19 @@ public class WorkbookConfig<T> {
 	StyleConfig headerStyle;
 	StyleConfig bodyStyle;
 	List<ColumnConfig<T, ?>> columns;
+	int rowAccessWindow;
+	boolean compressTempFiles;
+	ColumnWidthConfig columnWidth;
+	CompressionConfig compression;
+	SharedStringsConfig sharedStrings;
+	LimitsConfig limits;
+	@ToString.Exclude
+	@EqualsAndHashCode.Exclude
+	RowExtractor<T> rowExtractor;
+	@ToString.Exclude
+	@EqualsAndHashCode.Exclude
+	@Getter(value = AccessLevel.PACKAGE, lazy = true)
+	WorkbookTemplate template = new WorkbookTemplate(this);
 
 	public Set<StyleConfig> getStyleSet() {
 		Set<StyleConfig> styleSet = new HashSet<>();
@@ -51,6 +73,48 @@ public class WorkbookConfig<T> {
 		return fontSet;
 	}
 
+	/**
+	 * Writes the value of a column straight into a cell. Writers are specialized
+	 * per column when the column is registered, so writing a cell involves no
+	 * boxing, no Optional and no dispatch on the column type.
+	 */
+	@FunctionalInterface
+	public interface CellWriter<T> {
+		/**
+		 * @return the number of characters the value renders to, 0 when the cell
+		 *         is left empty
+		 */
+		int write(Cell cell, T data);
+	}
+
+	/**
+	 * Extracts every value of a row with plain calls on the row, instead of one
+	 * mapper call per column through the shared {@link CellWriter}s. The
+	 * {@link WorkbookWriter} uses it, when the config has one, so the
+	 * extraction of a model is compiled into a single method the JIT inlines.
+	 * Generated for the classes annotated with {@link WorkbookModel}.
+	 */
+	@FunctionalInterface
+	public interface RowExtractor<T> {
+		/**
+		 * Passes the values of the row in column order, skipping the null ones,
+		 * whose cells are left empty.
+		 */
+		void extract(T data, RowValues values);
+	}
+
+	/**
+	 * Receives the values of a row from a {@link RowExtractor}, by zero based
+	 * column index.
+	 */
+	public interface RowValues {
+		void string(int column, String value);
+		void number(int column, double value);
+		void date(int column, LocalDate value);
+		void datetime(int column, LocalDateTime value);
+		void bool(int column, boolean value);
+	}
+
 	/*** BUILDER ***/
 
 	public static <T> WorkbookConfigBuilder<T> builder(Class<T> source) {
@@ -78,14 +142,28 @@ public class WorkbookConfig<T> {
 	public interface ColumnStep<T> {
 		ColumnStep<T> stringCol(String name, Function<T, String> mapper);
 		ColumnStep<T> stringCol(String name, Function<T, String> mapper, StyleConfig style);
+		ColumnStep<T> stringCol(String name, Function<T, String> mapper, StyleConfig style, StringStorage storage);
 		ColumnStep<T> numberCol(String name, Function<T, Number> mapper);
 		ColumnStep<T> numberCol(String name, Function<T, Number> mapper, StyleConfig style);
+		ColumnStep<T> doubleCol(String name, ToDoubleFunction<T> mapper);
+		ColumnStep<T> doubleCol(String name, ToDoubleFunction<T> mapper, StyleConfig style);
+		ColumnStep<T> longCol(String name, ToLongFunction<T> mapper);
+		ColumnStep<T> longCol(String name, ToLongFunction<T> mapper, StyleConfig style);
 		ColumnStep<T> dateCol(String name, Function<T, LocalDate> mapper);
 		ColumnStep<T> dateCol(String name, Function<T, LocalDate> mapper, StyleConfig style);
 		ColumnStep<T> datetimeCol(String name, Function<T, LocalDateTime> mapper);
 		ColumnStep<T> datetimeCol(String name, Function<T, LocalDateTime> mapper, StyleConfig style);
 		ColumnStep<T> booleanCol(String name, Function<T, Boolean> mapper);
 		ColumnStep<T> booleanCol(String name, Function<T, Boolean> mapper, StyleConfig style);
+		ColumnStep<T> flagCol(String name, Predicate<T> mapper);
+		ColumnStep<T> flagCol(String name, Predicate<T> mapper, StyleConfig style);
+		ColumnStep<T> rowAccessWindow(int rowAccessWindow);
+		ColumnStep<T> compressTempFiles(boolean compressTempFiles);
+		ColumnStep<T> columnWidth(ColumnWidthConfig columnWidth);
+		ColumnStep<T> compression(CompressionConfig compression);
+		ColumnStep<T> sharedStrings(SharedStringsConfig sharedStrings);
+		ColumnStep<T> limits(LimitsConfig limits);
+		ColumnStep<T> rowExtractor(RowExtractor<T> rowExtractor);
 		WorkbookConfig<T> build();
 	}
 
@@ -97,6 +175,13 @@ public class WorkbookConfig<T> {
 		private StyleConfig headerStyle;
 		private StyleConfig bodyStyle;
 		private List<ColumnConfig<T, ?>> columns = new ArrayList<>();
+		private int rowAccessWindow = SXSSFWorkbook.DEFAULT_WINDOW_SIZE;
+		private boolean compressTempFiles;
+		private ColumnWidthConfig columnWidth = ColumnWidthConfig.DEFAULT;
+		private CompressionConfig compression = CompressionConfig.DEFAULT;
+		private SharedStringsConfig sharedStrings = SharedStringsConfig.DEFAULT;
+		private LimitsConfig limits = LimitsConfig.NONE;
+		private RowExtractor<T> rowExtractor;
 
 		private WorkbookConfigBuilder(Class<T> source) {
 			this.source = source;
@@ -138,92 +223,168 @@ public class WorkbookConfig<T> {
 
 		@Override
 		public ColumnStep<T> stringCol(String name, Function<T, String> mapper) {
-			return col(name, String.class, mapper);
+			return stringCol(name, mapper, null);
 		}
 
 		@Override
 		public ColumnStep<T> stringCol(String name, Function<T, String> mapper, StyleConfig style) {
-			return col(name, String.class, mapper, style);
+			return stringCol(name, mapper, style, null);
+		}
+
+		@Override
+		public ColumnStep<T> stringCol(String name, Function<T, String> mapper, StyleConfig style, StringStorage storage) {
+			return col(name, String.class, ColumnType.STRING, mapper, style, s -> CellWriters.string(mapper), storage);
 		}
 
 		@Override
 		public ColumnStep<T> numberCol(String name, Function<T, Number> mapper) {
-			return col(name, Double.class, mapper, Number::doubleValue);
+			return numberCol(name, mapper, null);
 		}
 
 		@Override
 		public ColumnStep<T> numberCol(String name, Function<T, Number> mapper, StyleConfig style) {
-			return col(name, Double.class, mapper, Number::doubleValue, style);
+			return col(name, Double.class, ColumnType.NUMBER, mapper, n -> n == null ? null : n.doubleValue(), style, s -> CellWriters.number(mapper, s));
+		}
+
+		@Override
+		public ColumnStep<T> doubleCol(String name, ToDoubleFunction<T> mapper) {
+			return doubleCol(name, mapper, null);
+		}
+
+		@Override
+		public ColumnStep<T> doubleCol(String name, ToDoubleFunction<T> mapper, StyleConfig style) {
+			Objects.requireNonNull(mapper, "column mapping is required");
+			return col(name, Double.class, ColumnType.NUMBER, mapper::applyAsDouble, style, s -> CellWriters.number(mapper, s));
+		}
+
+		@Override
+		public ColumnStep<T> longCol(String name, ToLongFunction<T> mapper) {
+			return longCol(name, mapper, null);
+		}
+
+		@Override
+		public ColumnStep<T> longCol(String name, ToLongFunction<T> mapper, StyleConfig style) {
+			Objects.requireNonNull(mapper, "column mapping is required");
+			return col(name, Double.class, ColumnType.NUMBER, t -> (double) mapper.applyAsLong(t), style, s -> CellWriters.number(mapper, s));
 		}
 
 		@Override
 		public ColumnStep<T> dateCol(String name, Function<T, LocalDate> mapper) {
-			final Function<LocalDate, Date> mapper2 = ld -> Date.from(ld.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
-			return col(name, Date.class, mapper, mapper2);
+			return dateCol(name, mapper, null);
 		}
 
 		@Override
 		public ColumnStep<T> dateCol(String name, Function<T, LocalDate> mapper, StyleConfig style) {
-			final Function<LocalDate, Date> mapper2 = ld -> Date.from(ld.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
-			return col(name, Date.class, mapper, mapper2, style);
+			final Function<LocalDate, Date> mapper2 = ld -> ld == null ? null : Date.from(ld.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+			return col(name, Date.class, ColumnType.DATE, mapper, mapper2, style, s -> CellWriters.date(mapper, s));
 		}
 
 		@Override
 		public ColumnStep<T> datetimeCol(String name, Function<T, LocalDateTime> mapper) {
-			final Function<LocalDateTime, Date> mapper2 = ldt -> Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
-			return col(name, Date.class, mapper, mapper2);
+			return datetimeCol(name, mapper, null);
 		}
 
 		@Override
 		public ColumnStep<T> datetimeCol(String name, Function<T, LocalDateTime> mapper, StyleConfig style) {
-			final Function<LocalDateTime, Date> mapper2 = ldt -> Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
-			return col(name, Date.class, mapper, mapper2, style);
+			final Function<LocalDateTime, Date> mapper2 = ldt -> ldt == null ? null : Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
+			return col(name, Date.class, ColumnType.DATETIME, mapper, mapper2, style, s -> CellWriters.datetime(mapper, s));
 		}
 
 		@Override
 		public ColumnStep<T> booleanCol(String name, Function<T, Boolean> mapper) {
-			return col(name, Boolean.class, mapper);
+			return booleanCol(name, mapper, null);
 		}
 
 		@Override
 		public ColumnStep<T> booleanCol(String name, Function<T, Boolean> mapper, StyleConfig style) {
-			return col(name, Boolean.class, mapper, style);
+			return col(name, Boolean.class, ColumnType.BOOLEAN, mapper, style, s -> CellWriters.bool(mapper));
 		}
 
 		@Override
-		public WorkbookConfig<T> build() {
-			return new WorkbookConfig<>(source, name, sheetName, headerStyle, bodyStyle, columns);
+		public ColumnStep<T> flagCol(String name, Predicate<T> mapper) {
+			return flagCol(name, mapper, null);
 		}
 
-		private <U> ColumnStep<T> col(String name, Class<U> target, Function<T, U> mapper) {
-			Objects.requireNonNull(name, "column name is required");
+		@Override
+		public ColumnStep<T> flagCol(String name, Predicate<T> mapper, StyleConfig style) {
 			Objects.requireNonNull(mapper, "column mapping is required");
-			this.columns.add(ColumnConfig.builder(source, target).name(name).mapper(mapper).style(bodyStyle).build());
+			return col(name, Boolean.class, ColumnType.BOOLEAN, mapper::test, style, s -> CellWriters.flag(mapper));
+		}
+
+		@Override
+		public ColumnStep<T> rowAccessWindow(int rowAccessWindow) {
+			if (rowAccessWindow < 1) {
+				throw new IllegalArgumentException("row access window must be positive");
+			}
+			this.rowAccessWindow = rowAccessWindow;
 			return this;
 		}
 
-		private <U, V> ColumnStep<T> col(String name, Class<V> target, Function<T, U> mapper1, Function<U, V> mapper2) {
-			Objects.requireNonNull(name, "column name is required");
-			Objects.requireNonNull(mapper1, "column mapping is required");
-			Objects.requireNonNull(mapper2, "column mapping is required");
-			this.columns.add(ColumnConfig.builder(source, target).name(name).mapper(mapper2.compose(mapper1)).style(bodyStyle).build());
+		@Override
+		public ColumnStep<T> compressTempFiles(boolean compressTempFiles) {
+			this.compressTempFiles = compressTempFiles;
 			return this;
 		}
 
-		private <U> ColumnStep<T> col(String name, Class<U> target, Function<T, U> mapper, StyleConfig style) {
-			Objects.requireNonNull(name, "column name is required");
-			Objects.requireNonNull(mapper, "column mapping is required");
-			style = Optional.ofNullable(style).map(s -> StyleConfig.builder(this.bodyStyle, s).build()).orElse(this.bodyStyle);
-			this.columns.add(ColumnConfig.builder(source, target).name(name).mapper(mapper).style(style).build());
+		@Override
+		public ColumnStep<T> columnWidth(ColumnWidthConfig columnWidth) {
+			this.columnWidth = Optional.ofNullable(columnWidth).orElse(ColumnWidthConfig.DEFAULT);
 			return this;
 		}
 
-		private <U, V> ColumnStep<T> col(String name, Class<V> target, Function<T, U> mapper1, Function<U, V> mapper2, StyleConfig style) {
-			Objects.requireNonNull(name, "column name is required");
+		@Override
+		public ColumnStep<T> compression(CompressionConfig compression) {
+			this.compression = Optional.ofNullable(compression).orElse(CompressionConfig.DEFAULT);
+			return this;
+		}
+
+		@Override
+		public ColumnStep<T> sharedStrings(SharedStringsConfig sharedStrings) {
+			this.sharedStrings = Optional.ofNullable(sharedStrings).orElse(SharedStringsConfig.DEFAULT);
+			return this;
+		}
+
+		@Override
+		public ColumnStep<T> limits(LimitsConfig limits) {
+			this.limits = Optional.ofNullable(limits).orElse(LimitsConfig.NONE);
+			return this;
+		}
+
+		/**
+		 * The extractor must pass the values of the columns registered, as their
+		 * mappers would map them.
+		 */
+		@Override
+		public ColumnStep<T> rowExtractor(RowExtractor<T> rowExtractor) {
+			this.rowExtractor = rowExtractor;
+			return this;
+		}
+
+		@Override
+		public WorkbookConfig<T> build() {
+			return new WorkbookConfig<>(source, name, sheetName, headerStyle, bodyStyle, columns, rowAccessWindow, compressTempFiles, columnWidth,
+					compression, sharedStrings, limits, rowExtractor);
+		}
+
+		private <U, V> ColumnStep<T> col(String name, Class<V> target, ColumnType type, Function<T, U> mapper1, Function<U, V> mapper2,
+				StyleConfig style, Function<StyleConfig, CellWriter<T>> writer) {
 			Objects.requireNonNull(mapper1, "column mapping is required");
 			Objects.requireNonNull(mapper2, "column mapping is required");
+			return col(name, target, type, mapper2.compose(mapper1), style, writer, null);
+		}
+
+		private <U> ColumnStep<T> col(String name, Class<U> target, ColumnType type, Function<T, U> mapper, StyleConfig style,
+				Function<StyleConfig, CellWriter<T>> writer) {
+			return col(name, target, type, mapper, style, writer, null);
+		}
+
+		private <U> ColumnStep<T> col(String name, Class<U> target, ColumnType type, Function<T, U> mapper, StyleConfig style,
+				Function<StyleConfig, CellWriter<T>> writer, StringStorage stringStorage) {
+			Objects.requireNonNull(name, "column name is required");
+			Objects.requireNonNull(mapper, "column mapping is required");
 			style = Optional.ofNullable(style).map(s -> StyleConfig.builder(bodyStyle, s).build()).orElse(bodyStyle);
-			this.columns.add(ColumnConfig.builder(source, target).name(name).mapper(mapper2.compose(mapper1)).style(style).build());
+			this.columns.add(ColumnConfig.builder(source, target).name(name).mapper(mapper).writer(writer.apply(style)).style(style)
+					.stringStorage(stringStorage).type(type).build());
 			return this;
 		}
 	}
@@ -243,6 +404,34 @@ public class WorkbookConfig<T> {
 		Class<U> target;
 		@NonNull
 		Function<T, U> mapper;
+		@NonNull
+		CellWriter<T> writer;
+		StringStorage stringStorage;
+		ColumnType type;
+
+		/**
+		 * The kind of the mapped values, derived from the target when not set.
+		 */
+		public ColumnType getType() {
+			if (type != null) {
+				return type;
+			}
+			if (target == String.class) {
+				return ColumnType.STRING;
+			}
+			if (target == Boolean.class) {
+				return ColumnType.BOOLEAN;
+			}
+			return target == Date.class ? ColumnType.DATETIME : ColumnType.NUMBER;
+		}
+
+		/**
+		 * How the values of a string column are stored, ignored for the other
+		 * columns.
+		 */
+		public StringStorage getStringStorage() {
+			return Optional.ofNullable(stringStorage).orElse(StringStorage.ADAPTIVE);
+		}
 
 		public static <T, U> ColumnConfigBuilder<T, U> builder() {
 			return new ColumnConfigBuilder<>();
@@ -363,4 +552,229 @@ public class WorkbookConfig<T> {
 		}
 	}
 
-}
\ No newline at end of file
+	public enum ColumnWidthStrategy {
+		/** every column gets the same width */
+		FIXED,
+		/** widths are estimated from the header and the first rows only */
+		SAMPLED,
+		/** widths are estimated from every row */
+		FULL
+	}
+
+	/**
+	 * Widths are expressed in characters of the default font, like the column
+	 * width in Excel, and are estimated from the rendered length of the values
+	 * while the rows are written.
+	 */
+	@Value
+	@Builder
+	@EqualsAndHashCode
+	public static class ColumnWidthConfig {
+
+		public static final ColumnWidthConfig DEFAULT = ColumnWidthConfig.builder().build();
+
+		ColumnWidthStrategy strategy;
+		Integer sampleSize;
+		Float fixedWidth;
+		Float minWidth;
+		Float maxWidth;
+
+		public ColumnWidthStrategy getStrategy() {
+			return Optional.ofNullable(strategy).orElse(ColumnWidthStrategy.FULL);
+		}
+
+		public int getSampleSize() {
+			return Optional.ofNullable(sampleSize).orElse(100);
+		}
+
+		public float getFixedWidth() {
+			return Optional.ofNullable(fixedWidth).orElse(getMinWidth());
+		}
+
+		public float getMinWidth() {
+			return Optional.ofNullable(minWidth).orElse(8.43f);
+		}
+
+		public float getMaxWidth() {
+			return Optional.ofNullable(maxWidth).orElse(255f);
+		}
+	}
+
+	/**
+	 * The kind of value a column holds, which the formats that are not
+	 * spreadsheets write its mapped values as, dates and times being both mapped
+	 * to {@link Date}.
+	 */
+	public enum ColumnType {
+		STRING, NUMBER, BOOLEAN, DATE, DATETIME
+	}
+
+	/**
+	 * Where the values of a string column are stored. Shared strings are written
+	 * once to the shared strings table and referenced by index from the cells,
+	 * which pays off for columns that repeat a few values, like a status, but
+	 * keeps every distinct value in memory until the workbook is written.
+	 * Inline strings are written into their cells and never held.
+	 */
+	public enum StringStorage {
+		/** shared, while the shared strings table is not full */
+		SHARED,
+		/** inline */
+		INLINE,
+		/**
+		 * shared until the column added {@link SharedStringsConfig#getThreshold()}
+		 * distinct values to the table, after which new values are inline while
+		 * the shared ones are still referenced
+		 */
+		ADAPTIVE
+	}
+
+	/**
+	 * Bounds of the shared strings table of a workbook. Once it holds
+	 * {@link #getMaxSize()} strings, values not in it yet are written inline
+	 * whatever the storage of their column, so its memory is bounded by the
+	 * number of distinct values and never grows with the rows. Streaming
+	 * workbooks generated by {@link WorkbookGenerator} are the exception: they
+	 * always write strings inline.
+	 */
+	@Value
+	@Builder
+	@EqualsAndHashCode
+	public static class SharedStringsConfig {
+
+		public static final SharedStringsConfig DEFAULT = SharedStringsConfig.builder().build();
+
+		Integer maxSize;
+		Integer threshold;
+
+		public int getMaxSize() {
+			return Optional.ofNullable(maxSize).orElse(65_536);
+		}
+
+		public int getThreshold() {
+			return Optional.ofNullable(threshold).orElse(1_000);
+		}
+	}
+
+	/**
+	 * Bounds on a single export of the workbook, enforced by
+	 * {@link WorkbookLimits}: the rows and cells written, the bytes of the
+	 * serialized workbook and the time it takes. A bound left unset falls back
+	 * to the one of the {@link WorkbookLimits#getDefault() default} limits, and
+	 * is unbounded if that is unset too.
+	 */
+	@Value
+	@Builder
+	@EqualsAndHashCode
+	public static class LimitsConfig {
+
+		public static final LimitsConfig NONE = LimitsConfig.builder().build();
+
+		Long maxRows;
+		Long maxCells;
+		Long maxBytes;
+		Duration timeout;
+
+		public Optional<Long> getMaxRows() {
+			return Optional.ofNullable(maxRows);
+		}
+
+		public Optional<Long> getMaxCells() {
+			return Optional.ofNullable(maxCells);
+		}
+
+		public Optional<Long> getMaxBytes() {
+			return Optional.ofNullable(maxBytes);
+		}
+
+		public Optional<Duration> getTimeout() {
+			return Optional.ofNullable(timeout);
+		}
+
+		/**
+		 * @return these limits, with the bounds they leave unset taken from the
+		 *         given ones
+		 */
+		public LimitsConfig orElse(LimitsConfig defaults) {
+			return new LimitsConfig(maxRows != null ? maxRows : defaults.maxRows, maxCells != null ? maxCells : defaults.maxCells,
+					maxBytes != null ? maxBytes : defaults.maxBytes, timeout != null ? timeout : defaults.timeout);
+		}
+
+		public static class LimitsConfigBuilder {
+
+			public LimitsConfigBuilder maxRows(Long maxRows) {
+				this.maxRows = positive(maxRows, "max rows");
+				return this;
+			}
+
+			public LimitsConfigBuilder maxCells(Long maxCells) {
+				this.maxCells = positive(maxCells, "max cells");
+				return this;
+			}
+
+			public LimitsConfigBuilder maxBytes(Long maxBytes) {
+				this.maxBytes = positive(maxBytes, "max bytes");
+				return this;
+			}
+
+			public LimitsConfigBuilder timeout(Duration timeout) {
+				if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+					throw new IllegalArgumentException("timeout must be positive");
+				}
+				this.timeout = timeout;
+				return this;
+			}
+
+			private static Long positive(Long limit, String name) {
+				if (limit != null && limit < 1) {
+					throw new IllegalArgumentException(name + " must be positive");
+				}
+				return limit;
+			}
+		}
+	}
+
+	/**
+	 * Deflate settings of the serialized workbook. The worksheets, and the shared
+	 * strings when there are any, make up almost all of the package, so they get
+	 * the configured level while the other parts, a few hundred bytes each, can
+	 * be left uncompressed. Parts are always deflated, at level 0 when stored,
+	 * since stored zip entries need their size and CRC upfront, which a
+	 * workbook written to a stream does not know.
+	 */
+	@Value
+	@Builder
+	@EqualsAndHashCode
+	public static class CompressionConfig {
+
+		public static final CompressionConfig DEFAULT = CompressionConfig.builder().build();
+		/** no compression at all, the cheapest to write and the largest */
+		public static final CompressionConfig STORE = CompressionConfig.builder().level(Deflater.NO_COMPRESSION).build();
+		/** most of the size reduction for a fraction of the CPU time */
+		public static final CompressionConfig FASTEST = CompressionConfig.builder().level(Deflater.BEST_SPEED).storeSmallParts(true).build();
+
+		Integer level;
+		Boolean storeSmallParts;
+
+		public int getLevel() {
+			return Optional.ofNullable(level).orElse(Deflater.DEFAULT_COMPRESSION);
+		}
+
+		public boolean isStoreSmallParts() {
+			return Optional.ofNullable(storeSmallParts).orElse(false);
+		}
+
+		public static class CompressionConfigBuilder {
+
+			public CompressionConfigBuilder level(Integer level) {
+				if (level != null && level != Deflater.DEFAULT_COMPRESSION
+						&& (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+					throw new IllegalArgumentException("compression level must be between 0 and 9");
+				}
+				this.level = level;
+				return this;
+			}
+		}
+	}
+
+}
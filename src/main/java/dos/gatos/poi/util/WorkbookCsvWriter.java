@@ -0,0 +1,159 @@
+package dos.gatos.poi.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.springframework.http.MediaType;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.ColumnType;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Writes the rows a {@link WorkbookConfig} describes as RFC 4180 CSV, with the
+ * column mappers of the config and nothing of POI: a header record of the
+ * column names, then one record per row, separated by CRLF and encoded in
+ * UTF-8. Fields holding a comma, a double quote or a line break are quoted,
+ * their double quotes doubled. Styles, widths and sheet names do not apply.
+ * <p>
+ * Numbers without a fractional part are written as integers, dates as
+ * {@code yyyy-MM-dd} and datetimes as {@code yyyy-MM-ddTHH:mm:ss} in the
+ * default time zone the mappers converted them from, booleans as {@code true}
+ * or {@code false}. Missing values are empty fields.
+ * <p>
+ * The export is kept within the {@link WorkbookLimits} of the config.
+ */
+public final class WorkbookCsvWriter {
+
+	public static final MediaType MEDIA_TYPE = MediaType.parseMediaType("text/csv;charset=UTF-8");
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	/** doubles below are written without a fraction when they have none */
+	private static final double MAX_INTEGER = 1e18;
+
+	private WorkbookCsvWriter() {
+	}
+
+	public static <T> void write(WorkbookConfig<T> config, List<T> data, OutputStream out) throws IOException {
+		write(config, data.spliterator(), out);
+	}
+
+	public static <T> void write(WorkbookConfig<T> config, Stream<T> data, OutputStream out) throws IOException {
+		write(config, data.spliterator(), out);
+	}
+
+	/**
+	 * Rows are pulled from the spliterator one at a time and written through a
+	 * buffer, which is flushed at the end. The stream is not closed.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> void write(WorkbookConfig<T> config, Spliterator<T> data, OutputStream out) throws IOException {
+		Timer.Sample sample = WorkbookMetrics.start();
+		List<? extends ColumnConfig<T, ?>> columns = config.getColumns();
+		Function<T, ?>[] mappers = columns.stream().map(ColumnConfig::getMapper).toArray(Function[]::new);
+		ColumnType[] types = columns.stream().map(ColumnConfig::getType).toArray(ColumnType[]::new);
+		WorkbookLimits limits = WorkbookLimits.start(config);
+		CountingOutputStream counting = new CountingOutputStream(out);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(counting, StandardCharsets.UTF_8), BUFFER_SIZE);
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writeText(writer, columns.get(i).getName());
+		}
+		writer.write("\r\n");
+		long[] rows = { 0 };
+		try {
+			data.forEachRemaining(row -> {
+				limits.row(counting.getBytesWritten());
+				try {
+					for (int i = 0; i < mappers.length; i++) {
+						if (i > 0) {
+							writer.write(',');
+						}
+						writeValue(writer, types[i], mappers[i].apply(row));
+					}
+					writer.write("\r\n");
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				rows[0]++;
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writer.flush();
+		limits.bytes(counting.getBytesWritten());
+		WorkbookMetrics.stop(sample, config.getName(), WorkbookMetrics.WRITE_CSV);
+		WorkbookMetrics.rows(config.getName(), rows[0], rows[0] * mappers.length);
+	}
+
+	private static void writeValue(Writer writer, ColumnType type, Object value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		switch (type) {
+		case STRING:
+			writeText(writer, value.toString());
+			break;
+		case NUMBER:
+			writer.write(number(((Number) value).doubleValue()));
+			break;
+		case DATE:
+			writer.write(DateTimeFormatter.ISO_LOCAL_DATE.format(((Date) value).toInstant().atZone(ZoneId.systemDefault())));
+			break;
+		case DATETIME:
+			writer.write(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(((Date) value).toInstant().atZone(ZoneId.systemDefault())));
+			break;
+		default:
+			writer.write(value.toString());
+		}
+	}
+
+	static String number(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < MAX_INTEGER) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private static void writeText(Writer writer, String value) throws IOException {
+		if (!needsQuotes(value)) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		int start = 0;
+		for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', start)) {
+			writer.write(value, start, i + 1 - start);
+			writer.write('"');
+			start = i + 1;
+		}
+		writer.write(value, start, value.length() - start);
+		writer.write('"');
+	}
+
+	private static boolean needsQuotes(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,27 @@
+package dos.gatos.poi.util;
+
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * Rows to be exported with a {@link WorkbookConfig}, in whichever format the
+ * client accepts: {@link WorkbookHttpMessageConverter} writes them as a
+ * workbook, as CSV or in the columnar format. The data stream is opened and
+ * closed while the response is written.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class WorkbookData<T> {
+
+	WorkbookConfig<T> config;
+	Supplier<? extends Stream<T>> data;
+
+	public static <T> WorkbookData<T> of(WorkbookConfig<T> config, Supplier<? extends Stream<T>> data) {
+		return new WorkbookData<>(config, data);
+	}
+
+}
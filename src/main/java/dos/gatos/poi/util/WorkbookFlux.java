@@ -0,0 +1,234 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+/**
+ * Encodes a publisher of rows as the workbook {@link WorkbookWriter} writes,
+ * emitted as data buffers for a non-blocking response. No thread waits on the
+ * client: rows are requested from the publisher only as buffers are requested
+ * downstream, so a slow download holds its encoder and the rows of a batch,
+ * nothing more.
+ * <p>
+ * The workbook is opened, and its rows encoded in batches of
+ * {@value #BATCH_SIZE}, on the bounded elastic scheduler, as opening writes
+ * and deflates the first parts, deflating is too long for an event loop, and
+ * {@code FULL} column widths stage rows to a temp file, which is then copied
+ * in chunks as they are requested. Cancelling deletes the temp file, once
+ * the step in progress on the scheduler, if any, is done with it.
+ */
+public final class WorkbookFlux {
+
+	private static final int BATCH_SIZE = 256;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private WorkbookFlux() {
+	}
+
+	public static <T> Flux<DataBuffer> of(WorkbookConfig<T> config, Publisher<T> rows, DataBufferFactory bufferFactory) {
+		return of(config, config.getCompression(), rows, bufferFactory);
+	}
+
+	/**
+	 * Overrides the compression of the config for this workbook only.
+	 */
+	public static <T> Flux<DataBuffer> of(WorkbookConfig<T> config, CompressionConfig compression, Publisher<T> rows,
+			DataBufferFactory bufferFactory) {
+		return of(config, compression, null, rows, bufferFactory);
+	}
+
+	/**
+	 * Stages the rows of a {@code FULL} sheet to the spill rather than to a
+	 * temp file, unless it is null.
+	 */
+	public static <T> Flux<DataBuffer> of(WorkbookConfig<T> config, CompressionConfig compression, WorkbookSpill spill, Publisher<T> rows,
+			DataBufferFactory bufferFactory) {
+		return Flux.using(() -> new Encoder<>(config, compression, spill, bufferFactory),
+				encoder -> Flux.concat(
+						Mono.fromCallable(encoder::open).subscribeOn(Schedulers.boundedElastic()),
+						Flux.from(rows).buffer(BATCH_SIZE).publishOn(Schedulers.boundedElastic(), 1).handle(encoder::encode),
+						Flux.generate(encoder::end).subscribeOn(Schedulers.boundedElastic())),
+				Encoder::dispose);
+	}
+
+	/**
+	 * Writes the workbook as an attachment named after the config.
+	 */
+	public static <T> Mono<Void> write(WorkbookConfig<T> config, Publisher<T> rows, ServerHttpResponse response) {
+		return write(config, null, rows, response);
+	}
+
+	/**
+	 * Writes the workbook as an attachment named after the config, staging
+	 * the rows of a {@code FULL} sheet to the spill unless it is null.
+	 */
+	public static <T> Mono<Void> write(WorkbookConfig<T> config, WorkbookSpill spill, Publisher<T> rows, ServerHttpResponse response) {
+		response.getHeaders().setContentType(WorkbookHttpMessageConverter.MEDIA_TYPE);
+		response.getHeaders().setContentDisposition(ContentDisposition.builder("attachment")
+				.filename(config.getName().concat(".xlsx")).build());
+		return response.writeWith(of(config, config.getCompression(), spill, rows, response.bufferFactory()));
+	}
+
+	/**
+	 * Drives a {@link WorkbookWriter} through one sheet, draining what it wrote
+	 * after each step. Reactor signals one step at a time, in order, but may
+	 * dispose of the encoder from the cancelling thread during a step, in which
+	 * case the step disposes of the writer once done and no other step runs.
+	 */
+	private static final class Encoder<T> {
+
+		private final WorkbookWriter<T> writer;
+		private final DataBufferFactory bufferFactory;
+		private final Output output = new Output();
+		private boolean staged;
+		private boolean rowsEnded;
+		/** guarded by this */
+		private boolean running;
+		/** guarded by this */
+		private boolean disposed;
+
+		Encoder(WorkbookConfig<T> config, CompressionConfig compression, WorkbookSpill spill, DataBufferFactory bufferFactory) {
+			this.writer = new WorkbookWriter<>(config, compression, List.of(config.getSheetName()), spill);
+			this.bufferFactory = bufferFactory;
+		}
+
+		DataBuffer open() throws IOException {
+			if (!start()) {
+				return null;
+			}
+			try {
+				writer.open(output);
+				writer.startSheet();
+				writer.flush();
+				return output.drain(bufferFactory);
+			} finally {
+				stop();
+			}
+		}
+
+		void encode(List<T> rows, SynchronousSink<DataBuffer> sink) {
+			if (!start()) {
+				return;
+			}
+			try {
+				rows.forEach(writer::add);
+				writer.flush();
+				if (output.size() > 0) {
+					sink.next(output.drain(bufferFactory));
+				}
+			} catch (UncheckedIOException e) {
+				sink.error(e.getCause());
+			} finally {
+				stop();
+			}
+		}
+
+		/**
+		 * Emits the staged rows chunk by chunk, if any, then the end of the
+		 * workbook.
+		 */
+		void end(SynchronousSink<DataBuffer> sink) {
+			if (!start()) {
+				sink.complete();
+				return;
+			}
+			try {
+				if (!rowsEnded) {
+					rowsEnded = true;
+					staged = writer.endRows();
+				}
+				while (staged && output.size() < CHUNK_SIZE) {
+					staged = writer.copyStaged(CHUNK_SIZE);
+				}
+				if (staged) {
+					sink.next(output.drain(bufferFactory));
+					return;
+				}
+				writer.endSheet();
+				writer.close();
+			} catch (IOException e) {
+				sink.error(e);
+				return;
+			} catch (UncheckedIOException e) {
+				sink.error(e.getCause());
+				return;
+			} finally {
+				stop();
+			}
+			sink.next(output.drain(bufferFactory));
+			sink.complete();
+		}
+
+		void dispose() {
+			synchronized (this) {
+				disposed = true;
+				if (running) {
+					return;
+				}
+			}
+			disposeWriter();
+		}
+
+		/**
+		 * @return whether the step may run, false once disposed of
+		 */
+		private synchronized boolean start() {
+			running = !disposed;
+			return running;
+		}
+
+		/**
+		 * Disposes of the writer if the encoder was disposed of during the
+		 * step, the error having nowhere to go but the dropped errors hook.
+		 */
+		private void stop() {
+			synchronized (this) {
+				running = false;
+				if (!disposed) {
+					return;
+				}
+			}
+			try {
+				disposeWriter();
+			} catch (UncheckedIOException e) {
+				Operators.onErrorDropped(e.getCause(), Context.empty());
+			}
+		}
+
+		private void disposeWriter() {
+			try {
+				writer.dispose();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+	}
+
+	private static final class Output extends ByteArrayOutputStream {
+
+		DataBuffer drain(DataBufferFactory bufferFactory) {
+			DataBuffer buffer = bufferFactory.allocateBuffer(count).write(buf, 0, count);
+			reset();
+			return buffer;
+		}
+
+	}
+
+}
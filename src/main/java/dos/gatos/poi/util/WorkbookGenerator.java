@@ -1,122 +1,374 @@
 package dos.gatos.poi.util;
 
-import java.awt.Color;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFColor;
 import org.apache.poi.xssf.usermodel.XSSFFont;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
+import dos.gatos.poi.util.WorkbookConfig.CellWriter;
 import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
 import dos.gatos.poi.util.WorkbookConfig.FontConfig;
 import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+import io.micrometer.core.instrument.Timer;
 
 public class WorkbookGenerator<T> {
 
 
 	private final WorkbookConfig<T> config;
-	private final List<T> data;
+	private final Map<String, Spliterator<T>> data;
+	private final Executor executor;
 	private XSSFWorkbook workbook;
-	private Map<FontConfig, XSSFFont> fonts;
-	private Map<StyleConfig, XSSFCellStyle> styles;
-	private XSSFSheet sheet;
+	private XSSFFont[] fonts;
+	private XSSFCellStyle[] styles;
+	private CellStyle headerStyle;
+	private CellWriter<T>[] writers;
+	private CellStyle[] columnStyles;
+	private List<SheetWriter> sheets;
+	private WorkbookLimits limits;
+	/** the bytes written so far, which only a streaming workbook knows */
+	private LongSupplier flushed;
 
 
 	public static <T> XSSFWorkbook of(WorkbookConfig<T> wbConfig, List<T> data) {
-		return new WorkbookGenerator<T>(wbConfig, data).generate();
+		return of(wbConfig, data.spliterator());
 	}
 
-	private WorkbookGenerator(WorkbookConfig<T> config, List<T> data) {
+	public static <T> XSSFWorkbook of(WorkbookConfig<T> wbConfig, Stream<T> data) {
+		return of(wbConfig, data.spliterator());
+	}
+
+	public static <T> XSSFWorkbook of(WorkbookConfig<T> wbConfig, Iterator<T> data) {
+		return of(wbConfig, Spliterators.spliteratorUnknownSize(data, Spliterator.ORDERED));
+	}
+
+	/**
+	 * Rows are pulled from the spliterator one at a time with
+	 * {@link Spliterator#tryAdvance}, so the source is never materialized.
+	 */
+	public static <T> XSSFWorkbook of(WorkbookConfig<T> wbConfig, Spliterator<T> data) {
+		return new WorkbookGenerator<T>(wbConfig, Map.of(wbConfig.getSheetName(), data), Runnable::run).generate(Function.identity());
+	}
+
+	/**
+	 * Writes one sheet per entry, named after its key, in iteration order.
+	 */
+	public static <T> XSSFWorkbook of(WorkbookConfig<T> wbConfig, Map<String, ? extends Iterable<T>> sheets) {
+		return new WorkbookGenerator<T>(wbConfig, spliterators(sheets), Runnable::run).generate(Function.identity());
+	}
+
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, List<T> data) {
+		return streaming(wbConfig, data.spliterator());
+	}
+
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Stream<T> data) {
+		return streaming(wbConfig, data.spliterator());
+	}
+
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Iterator<T> data) {
+		return streaming(wbConfig, Spliterators.spliteratorUnknownSize(data, Spliterator.ORDERED));
+	}
+
+	/**
+	 * Generates the workbook through a {@link SXSSFWorkbook}, keeping at most
+	 * {@link WorkbookConfig#getRowAccessWindow()} rows in memory and flushing
+	 * the rest to temp files. Combined with a lazy data source neither the rows
+	 * nor the cells are ever held in full. The caller must
+	 * {@link SXSSFWorkbook#dispose()} the result once it has been written.
+	 */
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Spliterator<T> data) {
+		return streaming(wbConfig, data, null);
+	}
+
+	/**
+	 * Flushes the rows to the spill rather than to temp files, unless it is
+	 * null.
+	 */
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Spliterator<T> data, WorkbookSpill spill) {
+		return new WorkbookGenerator<T>(wbConfig, Map.of(wbConfig.getSheetName(), data), Runnable::run).generate(sxssf(wbConfig, spill));
+	}
+
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Map<String, ? extends Iterable<T>> sheets) {
+		return streaming(wbConfig, sheets, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Writes one sheet per entry, named after its key, in iteration order. The
+	 * rows of each sheet are written concurrently on the executor, each sheet
+	 * streaming to its own temp file, and the sheets are packaged together
+	 * when the workbook is written. Styles and fonts are all created upfront
+	 * and only read while the rows are written.
+	 */
+	public static <T> SXSSFWorkbook streaming(WorkbookConfig<T> wbConfig, Map<String, ? extends Iterable<T>> sheets, Executor executor) {
+		return new WorkbookGenerator<T>(wbConfig, spliterators(sheets), executor).generate(sxssf(wbConfig, null));
+	}
+
+	/**
+	 * Overrides the compression of the {@link WorkbookConfig} a workbook was
+	 * generated with, for instance to serve it uncompressed on internal links.
+	 * The compression applies when the workbook is written by the
+	 * {@link WorkbookHttpMessageConverter} or the {@link WorkbookCache}, and to
+	 * every write of a streaming workbook.
+	 *
+	 * @throws IllegalArgumentException if the workbook was not generated here
+	 */
+	public static <W extends Workbook> W compression(W workbook, CompressionConfig compression) {
+		Workbook xssf = workbook instanceof SXSSFWorkbook ? ((SXSSFWorkbook) workbook).getXSSFWorkbook() : workbook;
+		if (!(xssf instanceof CompressedXSSFWorkbook)) {
+			throw new IllegalArgumentException("workbook was not generated by WorkbookGenerator");
+		}
+		((CompressedXSSFWorkbook) xssf).setCompression(Objects.requireNonNull(compression, "compression is required"));
+		return workbook;
+	}
+
+	private static <T> Map<String, Spliterator<T>> spliterators(Map<String, ? extends Iterable<T>> sheets) {
+		Map<String, Spliterator<T>> data = new LinkedHashMap<>();
+		sheets.forEach((name, rows) -> data.put(name, rows.spliterator()));
+		return data;
+	}
+
+	private static Function<XSSFWorkbook, SXSSFWorkbook> sxssf(WorkbookConfig<?> wbConfig, WorkbookSpill spill) {
+		return wb -> new CompressedSXSSFWorkbook((CompressedXSSFWorkbook) wb, wbConfig.getRowAccessWindow(), wbConfig.isCompressTempFiles(),
+				spill);
+	}
+
+	private WorkbookGenerator(WorkbookConfig<T> config, Map<String, Spliterator<T>> data, Executor executor) {
 		this.config = config;
 		this.data = data;
+		this.executor = executor;
 	}
 
-	private XSSFWorkbook generate() {
-		generateWorkbook();
-		writeHeader();
-		writeData();
-		cleanup();
-		return workbook;
+	private <W extends Workbook> W generate(Function<XSSFWorkbook, W> factory) {
+		Timer.Sample sample = WorkbookMetrics.start();
+		limits = WorkbookLimits.start(config);
+		W output = generateWorkbook(factory);
+		WorkbookMetrics.stop(sample, config.getName(), WorkbookMetrics.GENERATE_WORKBOOK);
+		WorkbookMetrics.registry(config.getName(), styles.length, fonts.length);
+		try {
+			timed(WorkbookMetrics.WRITE_HEADER, () -> sheets.forEach(SheetWriter::writeHeader));
+			timed(WorkbookMetrics.WRITE_DATA, this::writeData);
+			timed(WorkbookMetrics.CLEANUP, () -> sheets.forEach(SheetWriter::cleanup));
+			long rows = sheets.stream().mapToLong(sheet -> sheet.rowIndex - 1).sum();
+			WorkbookMetrics.rows(config.getName(), rows, rows * writers.length);
+		} catch (RuntimeException e) {
+			if (output instanceof SXSSFWorkbook) {
+				((SXSSFWorkbook) output).dispose();
+			}
+			throw e;
+		}
+		return output;
 	}
-	
-	private void generateWorkbook() {
-		workbook = new XSSFWorkbook();
+
+	private void timed(String phase, Runnable action) {
+		Timer.Sample sample = WorkbookMetrics.start();
+		action.run();
+		WorkbookMetrics.stop(sample, config.getName(), phase);
+	}
+
+	private <W extends Workbook> W generateWorkbook(Function<XSSFWorkbook, W> factory) {
+		workbook = new CompressedXSSFWorkbook(config.getCompression());
 		workbook.getProperties().getCoreProperties().setTitle(config.getName().concat(".xlsx"));
-		fonts = config.getFontSet().stream().collect(Collectors.toMap(Function.identity(), fc -> {
+		WorkbookTemplate template = config.getTemplate();
+		fonts = new XSSFFont[template.getFonts().size()];
+		for (int i = 0; i < fonts.length; i++) {
+			FontConfig fc = template.getFonts().get(i);
+			byte[] color = template.getFontColors().get(i);
 			XSSFFont font = workbook.createFont();
 			fc.getName().ifPresent(font::setFontName);
 			fc.getSize().ifPresent(font::setFontHeightInPoints);
-			fc.getColor().ifPresent(c -> font.setColor(new XSSFColor(new Color(c), null)));
-			return font;
-		}));
-		styles = config.getStyleSet().stream().collect(Collectors.toMap(Function.identity(), sc -> {
+			if (color != null) {
+				font.setColor(new XSSFColor(color, null));
+			}
+			fonts[i] = font;
+		}
+		template.getDataFormats().getCustomFormats().forEach(workbook.getStylesSource()::putNumberFormat);
+		styles = new XSSFCellStyle[template.getStyles().size()];
+		for (int i = 0; i < styles.length; i++) {
+			StyleConfig sc = template.getStyles().get(i);
+			byte[] color = template.getFillColors().get(i);
 			XSSFCellStyle style = workbook.createCellStyle();
 			sc.getFillPattern().ifPresent(style::setFillPattern);
-			sc.getFillColor().ifPresent(c -> style.setFillForegroundColor(new XSSFColor(new Color(c), null)));
+			if (color != null) {
+				style.setFillForegroundColor(new XSSFColor(color, null));
+			}
 			sc.getHorizontalAlignment().ifPresent(style::setAlignment);
 			sc.getVerticalAlignment().ifPresent(style::setVerticalAlignment);
-			sc.getFontConfig().ifPresent(fc -> style.setFont(fonts.get(fc)));
-			// TODO create format registry
-			sc.getDataFormat().ifPresent(df -> style.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat(df)));
-			return style;
-		}));
-		sheet = workbook.createSheet(config.getSheetName());
+			if (template.getStyleFonts()[i] >= 0) {
+				style.setFont(fonts[template.getStyleFonts()[i]]);
+			}
+			if (template.getStyleFormats()[i] >= 0) {
+				style.setDataFormat(template.getStyleFormats()[i]);
+			}
+			styles[i] = style;
+		}
+		headerStyle = styles[template.getHeaderStyle()];
+		compileColumns();
+		W output = factory.apply(workbook);
+		flushed = output instanceof CompressedSXSSFWorkbook ? ((CompressedSXSSFWorkbook) output)::getFlushedBytes : () -> 0;
+		if (!(output instanceof SXSSFWorkbook)) {
+			compileStrings();
+		}
+		sheets = data.entrySet().stream()
+				.map(entry -> new SheetWriter(output.createSheet(entry.getKey()), entry.getValue()))
+				.collect(Collectors.toList());
+		return output;
 	}
 
-	private void writeHeader() {
-		XSSFRow row = sheet.createRow(0);
-		IntStream.range(0, config.getColumns().size()).forEach(i -> {
-			XSSFCell cell = row.createCell(i);
-			cell.setCellStyle(styles.get(config.getHeaderStyle()));
-			cell.setCellValue(config.getColumns().get(i).getName());
-		});
-		sheet.createFreezePane(0, 1);
+	@SuppressWarnings("unchecked")
+	private void compileColumns() {
+		List<ColumnConfig<T, ?>> columns = config.getColumns();
+		writers = columns.stream().map(ColumnConfig::getWriter).toArray(CellWriter[]::new);
+		columnStyles = Arrays.stream(config.getTemplate().getColumnStyles()).mapToObj(i -> styles[i]).toArray(CellStyle[]::new);
 	}
 
-	private void writeData() {
-		IntStream.range(0, data.size()).forEach(index -> writeDataRow(sheet.createRow(index + 1), data.get(index)));
+	/**
+	 * Swaps the string writers for ones going through a bounded shared strings
+	 * table. Streaming workbooks write every string inline: their own shared
+	 * strings table is all or nothing, and unbounded.
+	 */
+	@SuppressWarnings("unchecked")
+	private void compileStrings() {
+		SharedStrings strings = new SharedStrings(config);
+		for (int c = 0; c < writers.length; c++) {
+			ColumnConfig<T, ?> column = config.getColumns().get(c);
+			if (column.getTarget() == String.class) {
+				writers[c] = CellWriters.string((Function<T, String>) column.getMapper(), c, strings);
+			}
+		}
 	}
 
-	private void writeDataRow(XSSFRow row, T data) {
-		IntStream.range(0, config.getColumns().size()).forEach(c -> writeDataCell(row.createCell(c), config.getColumns().get(c), data));
+	/**
+	 * Writes the sheets concurrently unless there is only one. The other sheets
+	 * are stopped as soon as one fails or the calling thread is interrupted,
+	 * and waited for either way, so none is still writing when the workbook is
+	 * disposed of.
+	 */
+	private void writeData() {
+		if (sheets.size() == 1) {
+			sheets.get(0).writeData();
+			return;
+		}
+		List<CompletableFuture<Void>> tasks = sheets.stream()
+				.map(sheet -> CompletableFuture.runAsync(() -> {
+					try {
+						sheet.writeData();
+					} catch (RuntimeException | Error e) {
+						limits.cancel();
+						throw e;
+					}
+				}, executor))
+				.collect(Collectors.toList());
+		CompletableFuture<Void> all = CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new));
+		try {
+			all.get();
+		} catch (InterruptedException e) {
+			limits.cancel();
+			all.exceptionally(t -> null).join();
+			Thread.currentThread().interrupt();
+			throw limits.interrupted();
+		} catch (ExecutionException e) {
+			throw failure(tasks);
+		}
 	}
 
-	private <U> void writeDataCell(XSSFCell cell, ColumnConfig<T, U> column, T data) {
-		cell.setCellStyle(styles.get(column.getStyle()));
-		Optional<U> value = Optional.ofNullable(column.getMapper().apply(data));
-		if (value.isPresent()) {
-			if (column.getTarget() == String.class) {
-				cell.setCellValue(String.class.cast(value.get()));
-			} else if (column.getTarget() == Double.class) {
-				cell.setCellValue(Double.class.cast(value.get()));
-			} else if (column.getTarget() == Date.class) {
-				cell.setCellValue(Date.class.cast(value.get()));
-			} else if (column.getTarget() == Boolean.class) {
-				cell.setCellValue(Boolean.class.cast(value.get()));
+	/**
+	 * @return the failure of the first sheet that did not merely stop because
+	 *         another one failed
+	 */
+	private static RuntimeException failure(List<CompletableFuture<Void>> tasks) {
+		Throwable failure = null;
+		for (CompletableFuture<Void> task : tasks) {
+			Throwable cause = task.handle((v, t) -> t instanceof CompletionException ? t.getCause() : t).join();
+			if (cause != null && (failure == null || failure instanceof CancellationException)) {
+				failure = cause;
 			}
 		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		return failure instanceof RuntimeException ? (RuntimeException) failure : new CompletionException(failure);
 	}
-	
-	private void cleanup() {
-		IntStream.range(0, config.getColumns().size()).forEach(i -> {
-			sheet.autoSizeColumn(i);
-			if (sheet.getColumnWidthInPixels(i) < 64) {
-				sheet.setColumnWidth(i, Math.round(8.43f*256) + 200);
+
+	private class SheetWriter {
+
+		private final Sheet sheet;
+		private final Spliterator<T> data;
+		private final ColumnWidths widths;
+		private int rowIndex;
+
+		private SheetWriter(Sheet sheet, Spliterator<T> data) {
+			this.sheet = sheet;
+			this.data = data;
+			this.widths = new ColumnWidths(config.getColumnWidth(), writers.length);
+		}
+
+		private void writeHeader() {
+			Row row = sheet.createRow(0);
+			IntStream.range(0, config.getColumns().size()).forEach(i -> {
+				Cell cell = row.createCell(i);
+				cell.setCellStyle(headerStyle);
+				cell.setCellValue(config.getColumns().get(i).getName());
+				if (widths.isTracking(0)) {
+					widths.track(i, ColumnWidths.estimate(config.getColumns().get(i).getName()));
+				}
+			});
+			sheet.createFreezePane(0, 1);
+		}
+
+		private void writeData() {
+			rowIndex = 1;
+			while (data.tryAdvance(this::writeDataRow)) {
+				rowIndex++;
+			}
+		}
+
+		/**
+		 * The bytes of the workbook are not known until it is written, the limits
+		 * see the rows a streaming one flushed so far.
+		 */
+		private void writeDataRow(T data) {
+			limits.row(flushed.getAsLong());
+			Row row = sheet.createRow(rowIndex);
+			boolean tracking = widths.isTracking(rowIndex);
+			for (int c = 0; c < writers.length; c++) {
+				Cell cell = row.createCell(c);
+				cell.setCellStyle(columnStyles[c]);
+				int length = writers[c].write(cell, data);
+				if (tracking) {
+					widths.track(c, length);
+				}
 			}
-//			if (sheet.getColumnWidthInPixels(i) > 400) {
-//				sheet.setColumnWidth(i, (25 * 256) + 200);
-//			}
-		});
+		}
+
+		private void cleanup() {
+			IntStream.range(0, config.getColumns().size()).forEach(i -> sheet.setColumnWidth(i, widths.getWidth(i)));
+		}
 	}
 
 }
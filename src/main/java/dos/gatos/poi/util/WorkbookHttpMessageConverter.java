@@ -2,9 +2,13 @@ package dos.gatos.poi.util;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
 
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpInputMessage;
 import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.MediaType;
@@ -12,39 +16,142 @@ import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
 
-public class WorkbookHttpMessageConverter implements HttpMessageConverter<XSSFWorkbook> {
+/**
+ * Writes generated {@link Workbook}s as well as cached {@link WorkbookBytes}.
+ * The latter also carry their entity tag, so clients can revalidate them with
+ * {@code If-None-Match}. Workbooks written with a {@link WorkbookPool} are
+ * sent from the buffer of their lease, which is then closed.
+ * <p>
+ * {@link WorkbookData} is written in the format negotiated from the
+ * {@code Accept} header: a workbook, RFC 4180 CSV with
+ * {@link WorkbookCsvWriter} or the columnar format of
+ * {@link WorkbookColumnarWriter}, the workbook when any is accepted.
+ * <p>
+ * Uploaded workbooks of either workbook media type are read as
+ * {@link WorkbookUpload}s.
+ */
+public class WorkbookHttpMessageConverter implements HttpMessageConverter<Object> {
 
-	private static final MediaType MEDIA_TYPE = MediaType.parseMediaType("application/vnd.ms-excel");
+	public static final MediaType MEDIA_TYPE = MediaType.parseMediaType("application/vnd.ms-excel");
+	public static final MediaType XLSX_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+
+	private final WorkbookSpill spill;
+
+	public WorkbookHttpMessageConverter() {
+		this(null);
+	}
+
+	/**
+	 * @param spill where {@link WorkbookData} written as a workbook stages the
+	 *        rows of a {@code FULL} sheet, null for temp files
+	 */
+	public WorkbookHttpMessageConverter(WorkbookSpill spill) {
+		this.spill = spill;
+	}
 
 	@Override
 	public boolean canRead(Class<?> clazz, MediaType mediaType) {
-		return false;
+		return WorkbookUpload.class.equals(clazz) && (mediaType == null || MEDIA_TYPE.equalsTypeAndSubtype(mediaType) || XLSX_MEDIA_TYPE.equalsTypeAndSubtype(mediaType));
 	}
 
 	@Override
 	public boolean canWrite(Class<?> clazz, MediaType mediaType) {
-		return XSSFWorkbook.class.equals(clazz) && MEDIA_TYPE.equals(mediaType);
+		if (WorkbookData.class.equals(clazz)) {
+			return mediaType == null || getSupportedMediaTypes().stream().anyMatch(mediaType::isCompatibleWith);
+		}
+		return (XSSFWorkbook.class.isAssignableFrom(clazz) || SXSSFWorkbook.class.isAssignableFrom(clazz) || WorkbookBytes.class.equals(clazz)
+				|| WorkbookPool.Lease.class.equals(clazz))
+				&& MEDIA_TYPE.equals(mediaType);
 	}
 
 	@Override
 	public List<MediaType> getSupportedMediaTypes() {
-		return List.of(MEDIA_TYPE);
+		return List.of(MEDIA_TYPE, XLSX_MEDIA_TYPE, WorkbookCsvWriter.MEDIA_TYPE, WorkbookColumnarWriter.MEDIA_TYPE);
 	}
 
 	@Override
-	public XSSFWorkbook read(Class<? extends XSSFWorkbook> clazz, HttpInputMessage inputMessage)
+	public Object read(Class<? extends Object> clazz, HttpInputMessage inputMessage)
 			throws IOException, HttpMessageNotReadableException {
-		throw new UnsupportedOperationException();
+		return WorkbookUpload.of(inputMessage.getBody());
 	}
 
 	@Override
-	public void write(XSSFWorkbook t, MediaType contentType, HttpOutputMessage outputMessage)
+	public void write(Object t, MediaType contentType, HttpOutputMessage outputMessage)
 			throws IOException, HttpMessageNotWritableException {
+		if (t instanceof WorkbookData) {
+			write((WorkbookData<?>) t, contentType, outputMessage);
+		} else if (t instanceof WorkbookPool.Lease) {
+			write((WorkbookPool.Lease<?>) t, outputMessage);
+		} else if (t instanceof WorkbookBytes) {
+			write((WorkbookBytes) t, outputMessage);
+		} else {
+			write((Workbook) t, outputMessage);
+		}
+	}
+
+	private <T> void write(WorkbookData<T> t, MediaType contentType, HttpOutputMessage outputMessage) throws IOException {
+		String extension;
+		if (contentType != null && WorkbookCsvWriter.MEDIA_TYPE.isCompatibleWith(contentType)) {
+			contentType = WorkbookCsvWriter.MEDIA_TYPE;
+			extension = ".csv";
+		} else if (contentType != null && WorkbookColumnarWriter.MEDIA_TYPE.isCompatibleWith(contentType)) {
+			contentType = WorkbookColumnarWriter.MEDIA_TYPE;
+			extension = ".wbc";
+		} else {
+			contentType = contentType != null && XLSX_MEDIA_TYPE.isCompatibleWith(contentType) ? XLSX_MEDIA_TYPE : MEDIA_TYPE;
+			extension = ".xlsx";
+		}
+		outputMessage.getHeaders().setContentType(contentType);
+		outputMessage.getHeaders().setContentDisposition(ContentDisposition.builder("attachment")
+				.filename(t.getConfig().getName().concat(extension)).build());
+		try (Stream<T> rows = t.getData().get()) {
+			if (extension.equals(".csv")) {
+				WorkbookCsvWriter.write(t.getConfig(), rows, outputMessage.getBody());
+			} else if (extension.equals(".wbc")) {
+				WorkbookColumnarWriter.write(t.getConfig(), rows, outputMessage.getBody());
+			} else {
+				WorkbookWriter.write(t.getConfig(), t.getConfig().getCompression(), spill, rows.spliterator(), outputMessage.getBody());
+			}
+		}
+	}
+
+	/**
+	 * Gives the writer back to its pool once sent, or failed to be.
+	 */
+	private void write(WorkbookPool.Lease<?> t, HttpOutputMessage outputMessage) throws IOException {
+		try (t) {
+			outputMessage.getHeaders().setContentType(MEDIA_TYPE);
+			outputMessage.getHeaders().setContentDisposition(ContentDisposition.builder("attachment")
+					.filename(t.getFilename()).build());
+			outputMessage.getHeaders().setContentLength(t.getSize());
+			t.writeTo(outputMessage.getBody());
+		}
+	}
+
+	private void write(WorkbookBytes t, HttpOutputMessage outputMessage) throws IOException {
+		outputMessage.getHeaders().setContentType(MEDIA_TYPE);
+		outputMessage.getHeaders().setContentDisposition(ContentDisposition.builder("attachment")
+				.filename(t.getFilename()).build());
+		outputMessage.getHeaders().setContentLength(t.getSize());
+		if (!outputMessage.getHeaders().containsKey(HttpHeaders.ETAG)) {
+			outputMessage.getHeaders().setETag(t.getEtag());
+		}
+		t.writeTo(outputMessage.getBody());
+	}
+
+	private void write(Workbook t, HttpOutputMessage outputMessage) throws IOException {
+		XSSFWorkbook xssf = t instanceof SXSSFWorkbook ? ((SXSSFWorkbook) t).getXSSFWorkbook() : (XSSFWorkbook) t;
 		outputMessage.getHeaders().setContentType(MEDIA_TYPE);
 		outputMessage.getHeaders().setContentDisposition(ContentDisposition.builder("attachment")
-				.filename(t.getProperties().getCoreProperties().getTitle()).build());
-		t.write(outputMessage.getBody());
-		t.close();
+				.filename(xssf.getProperties().getCoreProperties().getTitle()).build());
+		try {
+			WorkbookMetrics.write(t, WorkbookMetrics.name(xssf.getProperties().getCoreProperties().getTitle()), outputMessage.getBody());
+		} finally {
+			if (t instanceof SXSSFWorkbook) {
+				((SXSSFWorkbook) t).dispose();
+			}
+			t.close();
+		}
 	}
 
 }
@@ -0,0 +1,93 @@
+package dos.gatos.poi.util;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * The state of an export submitted to {@link WorkbookJobs}, updated by the
+ * thread running it and read by whoever polls it.
+ */
+@Getter
+public class WorkbookJob {
+
+	public enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
+	public enum Status {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	private final String id;
+	private final String tenant;
+	private final String name;
+	private final Priority priority;
+	private final Instant submitted;
+	@Getter(AccessLevel.NONE)
+	private final AtomicLong rows = new AtomicLong();
+	private volatile Status status = Status.QUEUED;
+	private volatile Instant started;
+	private volatile Instant finished;
+	private volatile Instant expires;
+	private volatile String error;
+	@JsonIgnore
+	private volatile WorkbookBytes result;
+
+	WorkbookJob(String id, String tenant, String name, Priority priority) {
+		this.id = id;
+		this.tenant = tenant;
+		this.name = name;
+		this.priority = priority;
+		this.submitted = Instant.now();
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * @return the size of the workbook once done, -1 until then
+	 */
+	public long getSize() {
+		WorkbookBytes done = result;
+		return done == null ? -1 : done.getSize();
+	}
+
+	void row() {
+		rows.lazySet(rows.get() + 1);
+	}
+
+	void start() {
+		started = Instant.now();
+		status = Status.RUNNING;
+	}
+
+	void done(WorkbookBytes result, Instant expires) {
+		this.result = result;
+		finish(Status.DONE, expires);
+	}
+
+	void failed(Exception e, Instant expires) {
+		this.error = e.toString();
+		finish(Status.FAILED, expires);
+	}
+
+	void cancelled(Instant expires) {
+		finish(Status.CANCELLED, expires);
+	}
+
+	private void finish(Status status, Instant expires) {
+		this.finished = Instant.now();
+		this.expires = expires;
+		this.status = status;
+	}
+
+}
@@ -0,0 +1,306 @@
+package dos.gatos.poi.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import dos.gatos.poi.util.WorkbookJob.Priority;
+
+/**
+ * Runs exports in the background with the {@link WorkbookWriter}, writing each
+ * workbook to a file in the job directory, where it can be downloaded until
+ * it expires.
+ * <p>
+ * At most {@code threads} jobs run at once, and at most
+ * {@code maxPerTenant} of them for the same tenant. Queued jobs start by
+ * priority, then in submission order, skipping those of a tenant at its limit,
+ * so a burst of large exports from one tenant neither starves the others nor
+ * delays a job submitted with a higher priority for longer than it takes one
+ * of them to finish. Submitting is rejected once {@code maxQueued} jobs are
+ * waiting.
+ * <p>
+ * A job can be cancelled while queued or running, a running one stopping at
+ * the next check of its {@link WorkbookLimits}, which also bound each job.
+ * Finished jobs, failed and cancelled ones included, are forgotten once their
+ * time to live is over, their files deleted then or, if still being
+ * downloaded, once the last download is done. Jobs only live in memory, the
+ * files left in the directory by a previous run are deleted on startup.
+ */
+public class WorkbookJobs implements Closeable {
+
+	private static final String SUFFIX = ".xlsx";
+	private static final String PART_SUFFIX = ".xlsx.part";
+
+	private final Path directory;
+	private final int threads;
+	private final int maxPerTenant;
+	private final int maxQueued;
+	private final Duration ttl;
+	private final WorkbookSpill spill;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService sweeper;
+	private final Map<String, WorkbookJob> jobs = new HashMap<>();
+	private final NavigableSet<Task<?>> queue = new TreeSet<>(
+			Comparator.<Task<?>, Priority> comparing(task -> task.job.getPriority()).thenComparingLong(task -> task.sequence));
+	private final Map<String, Integer> running = new HashMap<>();
+	private final Map<String, Task<?>> runningTasks = new HashMap<>();
+	private int runningCount;
+	private long sequence;
+
+	public WorkbookJobs(Path directory, int threads, int maxPerTenant, int maxQueued, Duration ttl) {
+		this(directory, threads, maxPerTenant, maxQueued, ttl, null);
+	}
+
+	/**
+	 * @param spill where the jobs stage the rows of a {@code FULL} sheet, null
+	 *        for temp files
+	 */
+	public WorkbookJobs(Path directory, int threads, int maxPerTenant, int maxQueued, Duration ttl, WorkbookSpill spill) {
+		this.directory = directory;
+		this.threads = threads;
+		this.maxPerTenant = maxPerTenant;
+		this.maxQueued = maxQueued;
+		this.ttl = ttl;
+		this.spill = spill;
+		clean();
+		this.executor = Executors.newFixedThreadPool(threads, threadFactory("workbook-job-"));
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(threadFactory("workbook-job-sweeper-"));
+		long period = Math.max(1, Math.min(ttl.toSeconds(), 60));
+		sweeper.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Queues the export of the rows, which are streamed on the thread running
+	 * the job and closed once written.
+	 *
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public synchronized <T> WorkbookJob submit(String tenant, Priority priority, WorkbookConfig<T> config,
+			Supplier<? extends Stream<T>> data) {
+		if (queue.size() >= maxQueued) {
+			throw new RejectedExecutionException("export queue is full, " + queue.size() + " jobs are waiting");
+		}
+		WorkbookJob job = new WorkbookJob(UUID.randomUUID().toString(), tenant, config.getName(), priority);
+		jobs.put(job.getId(), job);
+		queue.add(new Task<>(job, sequence++, config, data));
+		dispatch();
+		return job;
+	}
+
+	public synchronized Optional<WorkbookJob> get(String id) {
+		return Optional.ofNullable(jobs.get(id));
+	}
+
+	/**
+	 * Cancels a queued or running job. A queued job is dropped, the thread of a
+	 * running one interrupted, its part file being deleted once it stopped. A
+	 * running job that is written before it notices still ends cancelled, its
+	 * workbook deleted, the task deciding how the job ends with the jobs
+	 * locked.
+	 *
+	 * @return true if the job ends {@code CANCELLED}, false if there is no such
+	 *         job or it already ended otherwise
+	 */
+	public synchronized boolean cancel(String id) {
+		WorkbookJob job = jobs.get(id);
+		if (job == null) {
+			return false;
+		}
+		if (queue.removeIf(task -> task.job == job)) {
+			job.cancelled(Instant.now().plus(ttl));
+			return true;
+		}
+		Task<?> task = runningTasks.get(id);
+		if (task == null || job.getFinished() != null) {
+			return false;
+		}
+		task.cancel();
+		return true;
+	}
+
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	public synchronized int getRunning() {
+		return runningCount;
+	}
+
+	@Override
+	public void close() {
+		sweeper.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Starts the first queued jobs whose tenant is below its limit, while
+	 * threads are free.
+	 */
+	private void dispatch() {
+		Iterator<Task<?>> it = queue.iterator();
+		while (runningCount < threads && it.hasNext()) {
+			Task<?> task = it.next();
+			String tenant = task.job.getTenant();
+			if (running.getOrDefault(tenant, 0) < maxPerTenant) {
+				it.remove();
+				running.merge(tenant, 1, Integer::sum);
+				runningTasks.put(task.job.getId(), task);
+				runningCount++;
+				executor.execute(task);
+			}
+		}
+	}
+
+	private synchronized void finished(WorkbookJob job) {
+		running.computeIfPresent(job.getTenant(), (tenant, count) -> count == 1 ? null : count - 1);
+		runningTasks.remove(job.getId());
+		runningCount--;
+		dispatch();
+	}
+
+	private void expire() {
+		List<WorkbookJob> expired = new ArrayList<>();
+		Instant now = Instant.now();
+		synchronized (this) {
+			Iterator<WorkbookJob> it = jobs.values().iterator();
+			while (it.hasNext()) {
+				WorkbookJob job = it.next();
+				if (job.getExpires() != null && job.getExpires().isBefore(now)) {
+					expired.add(job);
+					it.remove();
+				}
+			}
+		}
+		for (WorkbookJob job : expired) {
+			if (job.getResult() != null) {
+				job.getResult().release();
+			}
+		}
+	}
+
+	private void clean() {
+		try {
+			Files.createDirectories(directory);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*{" + SUFFIX + "," + PART_SUFFIX + "}")) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private final class Task<T> implements Runnable {
+
+		private final WorkbookJob job;
+		private final long sequence;
+		private final WorkbookConfig<T> config;
+		private final Supplier<? extends Stream<T>> data;
+		private volatile Thread thread;
+		private volatile boolean cancelled;
+
+		Task(WorkbookJob job, long sequence, WorkbookConfig<T> config, Supplier<? extends Stream<T>> data) {
+			this.job = job;
+			this.sequence = sequence;
+			this.config = config;
+			this.data = data;
+		}
+
+		/**
+		 * Called with the jobs locked, between the start of the task and its
+		 * call to {@link #finished}.
+		 */
+		void cancel() {
+			cancelled = true;
+			Thread running = thread;
+			if (running != null) {
+				running.interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			job.start();
+			Path part = directory.resolve(job.getId() + PART_SUFFIX);
+			Path file = directory.resolve(job.getId() + SUFFIX);
+			try {
+				if (cancelled) {
+					throw new CancellationException(job.getId() + ": cancelled before it started");
+				}
+				try (Stream<T> rows = data.get(); OutputStream out = new BufferedOutputStream(Files.newOutputStream(part))) {
+					WorkbookWriter.write(config, config.getCompression(), spill, rows.peek(row -> job.row()).spliterator(), out);
+				}
+				Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+				String filename = config.getName().concat(SUFFIX);
+				WorkbookBytes result = new WorkbookBytes(filename, "\"" + job.getId() + "\"", Files.size(file), null, file);
+				synchronized (WorkbookJobs.this) {
+					if (cancelled) {
+						throw new CancellationException(job.getId() + ": cancelled once written");
+					}
+					job.done(result, Instant.now().plus(ttl));
+				}
+			} catch (Exception e) {
+				try {
+					Files.deleteIfExists(part);
+					Files.deleteIfExists(file);
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				// a job cancel() returned true for ends cancelled whatever it failed with
+				synchronized (WorkbookJobs.this) {
+					if (cancelled || e instanceof CancellationException) {
+						job.cancelled(Instant.now().plus(ttl));
+					} else {
+						job.failed(e, Instant.now().plus(ttl));
+					}
+				}
+			} finally {
+				thread = null;
+				// an interrupt meant for this job must not reach the next one
+				Thread.interrupted();
+				finished(job);
+			}
+		}
+
+	}
+
+}
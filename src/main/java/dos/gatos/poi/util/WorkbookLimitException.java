@@ -0,0 +1,27 @@
+package dos.gatos.poi.util;
+
+import lombok.Getter;
+
+/**
+ * Thrown by a writer or generator that stopped an export because it went over
+ * one of its {@link WorkbookLimits}.
+ */
+@Getter
+public class WorkbookLimitException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Limit {
+		ROWS, CELLS, BYTES, TIMEOUT
+	}
+
+	private final String workbook;
+	private final Limit limit;
+
+	WorkbookLimitException(String workbook, Limit limit, String message) {
+		super(workbook + ": " + message);
+		this.workbook = workbook;
+		this.limit = limit;
+	}
+
+}
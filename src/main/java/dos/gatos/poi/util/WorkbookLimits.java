@@ -0,0 +1,147 @@
+package dos.gatos.poi.util;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dos.gatos.poi.util.WorkbookConfig.LimitsConfig;
+import dos.gatos.poi.util.WorkbookLimitException.Limit;
+
+/**
+ * Keeps one export within the {@link LimitsConfig} of its
+ * {@link WorkbookConfig}, completed by the limits {@link #setDefault
+ * installed} as default. The writers and generators count every row against
+ * the rows and cells, and every {@value #CHECK_INTERVAL} rows check the bytes
+ * written so far, the time elapsed since the export started and whether their
+ * thread was interrupted. Going over a limit throws a
+ * {@link WorkbookLimitException}, an interrupted thread a
+ * {@link CancellationException}, after which the export deletes its temp and
+ * spill files and drops its buffers as on any other failure.
+ * <p>
+ * Interrupting is how an export is cancelled from the outside: Spring cancels
+ * the task of an async request that times out or whose client went away,
+ * interrupting the thread writing a {@link WorkbookStreamingResponseBody}, and
+ * {@link WorkbookJobs#cancel} interrupts the thread running a job. The sheets
+ * generated concurrently on an executor are not on that thread: the generator
+ * {@link #cancel cancels} the limits they share once interrupted, or once one
+ * of them fails, and each stops at its next check. A workbook written through
+ * the POI usermodel is only checked while its rows are generated, the bytes of
+ * a streaming one being the rows it flushed so far, those of another never
+ * limited.
+ */
+public final class WorkbookLimits {
+
+	/** the rows between two checks of the bytes, the time and the thread */
+	static final int CHECK_INTERVAL = 256;
+
+	private static volatile LimitsConfig defaultLimits = LimitsConfig.NONE;
+
+	private final String workbook;
+	private final int columns;
+	private final long maxRows;
+	private final long maxCells;
+	private final long maxBytes;
+	private final long start;
+	private final long timeout;
+	/** counted by each sheet generated concurrently */
+	private final AtomicLong rows = new AtomicLong();
+	/** set for the sheets generated concurrently to stop */
+	private volatile boolean cancelled;
+
+	/**
+	 * @return the limits of the configs that leave some unset
+	 */
+	public static LimitsConfig getDefault() {
+		return defaultLimits;
+	}
+
+	public static void setDefault(LimitsConfig limits) {
+		defaultLimits = Objects.requireNonNull(limits, "limits are required");
+	}
+
+	/**
+	 * Starts the clock of an export of the config.
+	 */
+	static WorkbookLimits start(WorkbookConfig<?> config) {
+		return new WorkbookLimits(config.getName(), config.getColumns().size(), config.getLimits().orElse(defaultLimits));
+	}
+
+	private WorkbookLimits(String workbook, int columns, LimitsConfig limits) {
+		this.workbook = workbook;
+		this.columns = columns;
+		this.maxRows = limits.getMaxRows().orElse(Long.MAX_VALUE);
+		this.maxCells = limits.getMaxCells().orElse(Long.MAX_VALUE);
+		this.maxBytes = limits.getMaxBytes().orElse(Long.MAX_VALUE);
+		this.start = System.nanoTime();
+		this.timeout = limits.getTimeout().map(Duration::toNanos).orElse(0L);
+	}
+
+	/**
+	 * Counts a row about to be written, checking the bytes, the time and the
+	 * thread if it is the last of an interval.
+	 *
+	 * @param bytes the bytes written so far
+	 */
+	void row(long bytes) {
+		long count = rows.incrementAndGet();
+		if (count > maxRows) {
+			throw exceeded(Limit.ROWS, "more than " + maxRows + " rows");
+		}
+		if (count * columns > maxCells) {
+			throw exceeded(Limit.CELLS, "more than " + maxCells + " cells");
+		}
+		if (count % CHECK_INTERVAL == 0) {
+			check(bytes);
+		}
+	}
+
+	/**
+	 * Checks the bytes, the time and the thread.
+	 *
+	 * @param bytes the bytes written so far
+	 */
+	void check(long bytes) {
+		bytes(bytes);
+		if (timeout > 0 && System.nanoTime() - start > timeout) {
+			throw exceeded(Limit.TIMEOUT, "took more than " + timeout / 1_000_000 + "ms");
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			throw interrupted();
+		}
+		if (cancelled) {
+			throw new CancellationException(workbook + ": export stopped");
+		}
+	}
+
+	/**
+	 * Makes every thread of the export throw a {@link CancellationException}
+	 * at its next check.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return the exception cancelling the export of an interrupted thread
+	 */
+	CancellationException interrupted() {
+		WorkbookMetrics.stopped(workbook, "CANCELLED");
+		return new CancellationException(workbook + ": export cancelled");
+	}
+
+	/**
+	 * @param bytes the bytes written so far
+	 */
+	void bytes(long bytes) {
+		if (bytes > maxBytes) {
+			throw exceeded(Limit.BYTES, "more than " + maxBytes + " bytes");
+		}
+	}
+
+	private WorkbookLimitException exceeded(Limit limit, String message) {
+		WorkbookMetrics.stopped(workbook, limit.name());
+		return new WorkbookLimitException(workbook, limit, message);
+	}
+
+}
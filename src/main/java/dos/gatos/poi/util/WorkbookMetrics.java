@@ -0,0 +1,124 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Meters of the export pipeline, registered in the global registry Spring Boot
+ * binds its own registry to, so the static generator needs no wiring. Every
+ * meter is tagged with the name of the {@link WorkbookConfig}.
+ * <ul>
+ * <li>{@code workbook.phase}: time spent per phase, see the constants</li>
+ * <li>{@code workbook.rows} and {@code workbook.cells}: rows and cells
+ * written</li>
+ * <li>{@code workbook.styles} and {@code workbook.fonts}: styles and fonts
+ * created</li>
+ * <li>{@code workbook.bytes}: size of the serialized workbooks</li>
+ * <li>{@code workbook.pool.leases}: writers leased from a
+ * {@link WorkbookPool}, tagged with whether an idle one was reused</li>
+ * <li>{@code workbook.stopped}: exports stopped by their
+ * {@link WorkbookLimits}, tagged with the limit exceeded or
+ * {@code CANCELLED}</li>
+ * </ul>
+ * The exports of a thread are discarded while it is
+ * {@link #setDiscarded discarding}, as the warm-up of the
+ * {@link WorkbookRegistry} does.
+ */
+final class WorkbookMetrics {
+
+	static final String GENERATE_WORKBOOK = "generateWorkbook";
+	static final String WRITE_HEADER = "writeHeader";
+	static final String WRITE_DATA = "writeData";
+	static final String CLEANUP = "cleanup";
+	static final String WRITE = "write";
+	static final String WRITE_CSV = "writeCsv";
+	static final String WRITE_COLUMNAR = "writeColumnar";
+	static final String APPEND = "append";
+
+	/** a composite without registries, whose meters record nothing */
+	private static final MeterRegistry DISCARDED = new CompositeMeterRegistry();
+	private static final ThreadLocal<Boolean> DISCARDING = ThreadLocal.withInitial(() -> false);
+
+	private WorkbookMetrics() {
+	}
+
+	static void setDiscarded(boolean discarded) {
+		if (discarded) {
+			DISCARDING.set(true);
+		} else {
+			DISCARDING.remove();
+		}
+	}
+
+	static Timer.Sample start() {
+		return Timer.start(registry());
+	}
+
+	static void stop(Timer.Sample sample, String workbook, String phase) {
+		sample.stop(Timer.builder("workbook.phase")
+				.description("Time spent in each phase of a workbook export")
+				.tags("workbook", workbook, "phase", phase)
+				.register(registry()));
+	}
+
+	static void rows(String workbook, long rows, long cells) {
+		registry().counter("workbook.rows", "workbook", workbook).increment(rows);
+		registry().counter("workbook.cells", "workbook", workbook).increment(cells);
+	}
+
+	static void registry(String workbook, int styles, int fonts) {
+		registry().counter("workbook.styles", "workbook", workbook).increment(styles);
+		registry().counter("workbook.fonts", "workbook", workbook).increment(fonts);
+	}
+
+	static void pool(String workbook, boolean reused) {
+		registry().counter("workbook.pool.leases", "workbook", workbook, "reused", Boolean.toString(reused)).increment();
+	}
+
+	static void stopped(String workbook, String reason) {
+		registry().counter("workbook.stopped", "workbook", workbook, "reason", reason).increment();
+	}
+
+	static void bytes(String workbook, long bytes) {
+		DistributionSummary.builder("workbook.bytes")
+				.description("Size of the serialized workbooks")
+				.baseUnit("bytes")
+				.tags("workbook", workbook)
+				.register(registry())
+				.record(bytes);
+	}
+
+	/**
+	 * Serializes the workbook with its compression, recording the time spent as
+	 * the {@value #WRITE} phase and the number of bytes written.
+	 */
+	static void write(Workbook workbook, String name, OutputStream outputStream) throws IOException {
+		Timer.Sample sample = start();
+		CountingOutputStream counting = new CountingOutputStream(outputStream);
+		XlsxZipOutputStream.write(workbook, counting);
+		counting.flush();
+		stop(sample, name, WRITE);
+		bytes(name, counting.getBytesWritten());
+	}
+
+	private static MeterRegistry registry() {
+		return DISCARDING.get() ? DISCARDED : Metrics.globalRegistry;
+	}
+
+	/**
+	 * The workbook name tag from the file name a workbook is served as.
+	 */
+	static String name(String filename) {
+		return filename.endsWith(".xlsx") ? filename.substring(0, filename.length() - 5) : filename;
+	}
+
+}
@@ -0,0 +1,34 @@
+package dos.gatos.poi.util;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a model class whose {@link WorkbookColumn} fields are exported. At
+ * compile time a {@code <Model>Workbook} class is generated next to it, named
+ * after the enclosing classes too for a nested model, like
+ * {@code WorkbookService_MyModelWorkbook}. Its {@code builder()} returns a
+ * {@link WorkbookConfig.WorkbookConfigBuilder} with the name, sheet name,
+ * default styles and columns of the model already set, and a
+ * {@link WorkbookConfig.RowExtractor} reading every field of a row with plain
+ * getter calls, so neither reflection nor a shared mapper call site is
+ * involved.
+ * <p>
+ * Private fields are read through their getter, {@code getX()} or
+ * {@code isX()} for a {@code boolean}, which may be generated by Lombok.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface WorkbookModel {
+
+	/** the workbook name, the simple name of the class by default */
+	String name() default "";
+
+	/** the sheet name, the workbook name by default */
+	String sheetName() default "";
+
+}
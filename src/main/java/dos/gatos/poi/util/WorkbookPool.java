@@ -0,0 +1,210 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+
+/**
+ * Writes small workbooks with {@link WorkbookWriter}s kept from one request to
+ * the next, one idle set per {@link WorkbookConfig}, so the fixed cost of an
+ * export of a few hundred rows is paid once: the compiled columns and style
+ * template, the row buffer, the shared strings table and the buffer the
+ * workbook is written to, which also gives its length upfront.
+ * <p>
+ * A writer is leased for one workbook and given back when the {@link Lease} is
+ * closed, typically by {@link WorkbookHttpMessageConverter} once the workbook
+ * is sent. The pool only references idle writers: a lease that is never closed
+ * is garbage collected like any other object and the pool creates another
+ * writer. Closing a lease twice is harmless, and a writer that failed, or whose
+ * buffers grew past {@code maxRetainedBytes} on a large export, is dropped
+ * rather than given back. At most {@code maxIdle} writers are kept per config.
+ */
+public class WorkbookPool {
+
+	private final int maxIdle;
+	private final long maxRetainedBytes;
+	private final WorkbookSpill spill;
+	private final Map<WorkbookConfig<?>, Deque<Pooled<?>>> idle = new IdentityHashMap<>();
+
+	public WorkbookPool(int maxIdle, long maxRetainedBytes) {
+		this(maxIdle, maxRetainedBytes, null);
+	}
+
+	/**
+	 * @param spill where the writers stage the rows of a {@code FULL} sheet,
+	 *        null for temp files
+	 */
+	public WorkbookPool(int maxIdle, long maxRetainedBytes, WorkbookSpill spill) {
+		this.maxIdle = maxIdle;
+		this.maxRetainedBytes = maxRetainedBytes;
+		this.spill = spill;
+	}
+
+	/**
+	 * Leases an idle writer of the config, or a new one if none is idle.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Lease<T> lease(WorkbookConfig<T> config) {
+		Pooled<T> pooled;
+		synchronized (this) {
+			Deque<Pooled<?>> writers = idle.get(config);
+			pooled = writers == null ? null : (Pooled<T>) writers.pollFirst();
+		}
+		WorkbookMetrics.pool(config.getName(), pooled != null);
+		return new Lease<>(pooled != null ? pooled : new Pooled<>(config, spill));
+	}
+
+	/**
+	 * @return the number of idle writers of the config
+	 */
+	public synchronized int getIdle(WorkbookConfig<?> config) {
+		Deque<Pooled<?>> writers = idle.get(config);
+		return writers == null ? 0 : writers.size();
+	}
+
+	private void giveBack(Pooled<?> pooled) {
+		if (pooled.retained() > maxRetainedBytes) {
+			return;
+		}
+		synchronized (this) {
+			Deque<Pooled<?>> writers = idle.computeIfAbsent(pooled.config, config -> new ArrayDeque<>());
+			if (writers.size() < maxIdle) {
+				writers.addFirst(pooled);
+			}
+		}
+	}
+
+	/**
+	 * A writer and the buffer it writes to, reused together.
+	 */
+	private static final class Pooled<T> {
+
+		private final WorkbookConfig<T> config;
+		private final WorkbookWriter<T> writer;
+		private final Output output = new Output();
+
+		Pooled(WorkbookConfig<T> config, WorkbookSpill spill) {
+			this.config = config;
+			this.writer = new WorkbookWriter<>(config, config.getCompression(), List.of(config.getSheetName()), spill);
+		}
+
+		long retained() {
+			return writer.retained() + output.capacity();
+		}
+
+	}
+
+	/**
+	 * One workbook written with a pooled writer, held in its buffer until
+	 * written to the response. Not thread safe.
+	 */
+	public final class Lease<T> implements AutoCloseable {
+
+		private Pooled<T> pooled;
+		private boolean written;
+		private boolean failed;
+
+		private Lease(Pooled<T> pooled) {
+			this.pooled = pooled;
+		}
+
+		public Lease<T> write(List<T> data) throws IOException {
+			return write(pooled().config.getCompression(), data.spliterator());
+		}
+
+		public Lease<T> write(Stream<T> data) throws IOException {
+			return write(pooled().config.getCompression(), data.spliterator());
+		}
+
+		/**
+		 * Writes the workbook with the given compression into the buffer of the
+		 * writer. The lease is closed if that fails.
+		 */
+		public Lease<T> write(CompressionConfig compression, Spliterator<T> data) throws IOException {
+			Pooled<T> current = pooled();
+			if (written) {
+				throw new IllegalStateException("workbook already written");
+			}
+			written = true;
+			WorkbookWriter<T> writer = current.writer;
+			writer.reset(compression);
+			current.output.reset();
+			boolean done = false;
+			try {
+				writer.open(current.output);
+				writer.startSheet();
+				data.forEachRemaining(writer::add);
+				if (writer.endRows()) {
+					writer.copyStaged(Long.MAX_VALUE);
+				}
+				writer.endSheet();
+				writer.close();
+				done = true;
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				if (!done) {
+					failed = true;
+					try {
+						writer.dispose();
+					} finally {
+						close();
+					}
+				}
+			}
+			return this;
+		}
+
+		public String getFilename() {
+			return pooled().config.getName().concat(".xlsx");
+		}
+
+		public long getSize() {
+			return pooled().output.size();
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			pooled().output.writeTo(out);
+		}
+
+		/**
+		 * Gives the writer back to the pool, unless the workbook failed. Does
+		 * nothing if already closed.
+		 */
+		@Override
+		public void close() {
+			Pooled<T> released = pooled;
+			pooled = null;
+			if (released != null && !failed) {
+				giveBack(released);
+			}
+		}
+
+		private Pooled<T> pooled() {
+			if (pooled == null) {
+				throw new IllegalStateException("lease is closed");
+			}
+			return pooled;
+		}
+
+	}
+
+	private static final class Output extends ByteArrayOutputStream {
+
+		int capacity() {
+			return buf.length;
+		}
+
+	}
+
+}
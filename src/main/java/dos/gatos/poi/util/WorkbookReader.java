@@ -0,0 +1,1063 @@
+package dos.gatos.poi.util;
+
+import java.beans.ConstructorProperties;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.UnsupportedFileFormatException;
+import org.apache.poi.ooxml.POIXMLException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.TempFile;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.SAXException;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import lombok.Value;
+
+/**
+ * Reads back the rows of a workbook laid out by a {@link WorkbookConfig},
+ * pulling the worksheet XML of {@link XSSFReader} one row at a time: no
+ * usermodel is created and the memory used does not grow with the number of
+ * rows, only the shared strings table is held.
+ * <p>
+ * Columns are found by their header, in any order, and bound to the source
+ * class of the config by name to its setters, a column {@code Birth date}
+ * binding to {@code setBirthDate}, when the class has a no-arg constructor and
+ * such setters, or else to the parameters of the same name of a constructor
+ * taking one per column, known from its {@link ConstructorProperties} or from
+ * classes compiled with {@code -parameters}. Cells are converted to the type
+ * of the setter or parameter, the cells of columns bound to neither being
+ * ignored.
+ * <p>
+ * A row that cannot be converted or bound is skipped and its error recorded,
+ * the import goes on. The stream of rows is lazy, the errors are complete once
+ * it has been consumed. Large multi-sheet workbooks can instead be read with
+ * {@link #readAll}, which parses sheets and converts rows in parallel.
+ */
+public class WorkbookReader<T> implements Closeable {
+
+	/** the errors kept, the following ones are only counted */
+	public static final int MAX_ERRORS = 1000;
+	/** the rows converted by a task of {@link #readAll} */
+	public static final int CHUNK_ROWS = 1024;
+	/** the chunks of a sheet parsed but not yet sunk in {@link #readAll} */
+	public static final int CHUNKS_IN_FLIGHT = 8;
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final WorkbookConfig<T> config;
+	private final OPCPackage pkg;
+	private final File tempFile;
+	private final Binding<T> binding;
+	private final List<RowError> errors = new ArrayList<>();
+	private int errorCount;
+	private boolean read;
+
+	/**
+	 * Spools the stream to a temp file first, which the zip is read from.
+	 */
+	public static <T> WorkbookReader<T> open(WorkbookConfig<T> config, InputStream in) throws IOException {
+		File file = TempFile.createTempFile("poi-workbook-import", ".xlsx");
+		try {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new WorkbookReader<>(config, file, true);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file.toPath());
+			throw e;
+		}
+	}
+
+	public static <T> WorkbookReader<T> open(WorkbookConfig<T> config, File file) throws IOException {
+		return new WorkbookReader<>(config, file, false);
+	}
+
+	private WorkbookReader(WorkbookConfig<T> config, File file, boolean temp) throws IOException {
+		this.config = config;
+		this.binding = Binding.of(config);
+		try {
+			this.pkg = OPCPackage.open(file, PackageAccess.READ);
+		} catch (OpenXML4JException | UnsupportedFileFormatException e) {
+			throw new IOException("not a workbook", e);
+		}
+		this.tempFile = temp ? file : null;
+	}
+
+	/**
+	 * The rows of the sheet named after the config, or of the first sheet, to
+	 * be read only once. Closing the stream closes the reader.
+	 */
+	public Stream<T> rows() throws IOException {
+		markRead();
+		SheetRows rows;
+		try {
+			XSSFReader reader = new XSSFReader(pkg);
+			XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+			Map<String, InputStream> streams = new LinkedHashMap<>();
+			while (sheets.hasNext()) {
+				InputStream in = sheets.next();
+				streams.put(sheets.getSheetName(), in);
+			}
+			if (streams.isEmpty()) {
+				throw new IOException("workbook has no sheet");
+			}
+			String name = streams.containsKey(config.getSheetName()) ? config.getSheetName() : streams.keySet().iterator().next();
+			for (Map.Entry<String, InputStream> sheet : streams.entrySet()) {
+				if (!sheet.getKey().equals(name)) {
+					sheet.getValue().close();
+				}
+			}
+			rows = new SheetRows(name, new SheetParser(sharedStrings(), streams.get(name)));
+		} catch (OpenXML4JException e) {
+			throw new IOException("not a workbook", e);
+		} catch (XMLStreamException e) {
+			throw new IOException("unreadable worksheet", e);
+		}
+		return StreamSupport.stream(rows, false).onClose(() -> {
+			try {
+				close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Reads every sheet having any of the columns of the config at once, the
+	 * others are skipped. Each sheet is parsed on its own thread, up to the
+	 * number of processors, and its rows are converted and bound on the
+	 * executor in chunks of {@value #CHUNK_ROWS}, at most
+	 * {@value #CHUNKS_IN_FLIGHT} chunks of a sheet being held at a time.
+	 * <p>
+	 * When {@code ordered}, the sink gets the chunks in sheet order then row
+	 * order, otherwise as soon as they are converted. Returns once every chunk
+	 * went to the sink, throwing the first failure of a parser, a conversion
+	 * task or the sink, which stops the others.
+	 */
+	public void readAll(Executor executor, boolean ordered, RowSink<? super T> sink) throws IOException {
+		markRead();
+		List<String> names = new ArrayList<>();
+		List<InputStream> streams = new ArrayList<>();
+		try {
+			XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+			while (sheets.hasNext()) {
+				streams.add(sheets.next());
+				names.add(sheets.getSheetName());
+			}
+			new ParallelRead(sharedStrings(), names, executor, ordered, sink).run(streams);
+		} catch (OpenXML4JException e) {
+			throw new IOException("not a workbook", e);
+		} finally {
+			for (InputStream in : streams) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the errors of the rows read so far, up to {@value #MAX_ERRORS}
+	 */
+	public synchronized List<RowError> getErrors() {
+		return List.copyOf(errors);
+	}
+
+	public synchronized int getErrorCount() {
+		return errorCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			pkg.revert();
+		} finally {
+			if (tempFile != null) {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		}
+	}
+
+	private void markRead() {
+		if (read) {
+			throw new IllegalStateException("rows were already read");
+		}
+		read = true;
+	}
+
+	private ReadOnlySharedStringsTable sharedStrings() throws IOException {
+		try {
+			return new ReadOnlySharedStringsTable(pkg, false);
+		} catch (SAXException e) {
+			throw new IOException("unreadable shared strings", e);
+		}
+	}
+
+	private synchronized void error(String sheet, int row, String column, String message) {
+		if (errors.size() < MAX_ERRORS) {
+			errors.add(new RowError(sheet, row, column, message));
+		}
+		errorCount++;
+	}
+
+	/**
+	 * A row skipped by the import.
+	 */
+	@Value
+	public static class RowError {
+
+		String sheet;
+		/** the one based row number, as displayed by Excel */
+		int row;
+		/** the header of the column that could not be converted, null when the row could not be bound */
+		String column;
+		String message;
+
+	}
+
+	/**
+	 * Receives the rows of {@link WorkbookReader#readAll} chunk by chunk, from
+	 * one thread at a time.
+	 */
+	@FunctionalInterface
+	public interface RowSink<T> {
+
+		void accept(String sheet, List<? extends T> rows);
+
+	}
+
+	/**
+	 * Converts the cells of a row and binds them.
+	 *
+	 * @return the row, or null if it was skipped
+	 */
+	private T bind(ReadOnlySharedStringsTable strings, String sheet, int rowNumber, String[] values, CellType[] types, int offset) {
+		List<? extends ColumnConfig<T, ?>> columnConfigs = config.getColumns();
+		Object[] converted = new Object[columnConfigs.size()];
+		for (int c = 0; c < converted.length; c++) {
+			String value = values[offset + c];
+			try {
+				Class<?> type = binding.type(c);
+				converted[c] = value == null || type == null ? null : convert(strings, types[offset + c], value, type);
+			} catch (IllegalArgumentException | DateTimeParseException e) {
+				error(sheet, rowNumber, columnConfigs.get(c).getName(), e.getMessage());
+				return null;
+			}
+		}
+		try {
+			return binding.bind(converted);
+		} catch (InvocationTargetException e) {
+			error(sheet, rowNumber, null, String.valueOf(e.getCause()));
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			error(sheet, rowNumber, null, e.toString());
+		}
+		return null;
+	}
+
+	private static Object convert(ReadOnlySharedStringsTable strings, CellType cellType, String value, Class<?> type) {
+		switch (cellType) {
+		case SHARED:
+			return convertText(sharedString(strings, value), type);
+		case INLINE:
+		case FORMULA_STRING:
+			return convertText(value, type);
+		case BOOLEAN:
+			return convertBoolean("1".equals(value), type);
+		case ERROR:
+			throw new IllegalArgumentException("cell has error " + value);
+		default:
+			return convertNumber(Double.parseDouble(value), type);
+		}
+	}
+
+	private static String sharedString(ReadOnlySharedStringsTable strings, String index) {
+		return strings.getItemAt(Integer.parseInt(index)).getString();
+	}
+
+	/**
+	 * Pulls the cells of a worksheet row by row, keeping only the text of each
+	 * value, by config column. The first row is the header, mapping the columns
+	 * of the sheet to those of the config.
+	 */
+	private final class SheetParser implements Closeable {
+
+		private final ReadOnlySharedStringsTable strings;
+		private final InputStream in;
+		private final XMLStreamReader xml;
+		/** the header cells by sheet column, only filled while reading the first row */
+		private final List<String> header = new ArrayList<>();
+		/** the config column of each sheet column, -1 for the columns ignored */
+		private int[] columns;
+		private int rowNumber;
+
+		SheetParser(ReadOnlySharedStringsTable strings, InputStream in) throws XMLStreamException {
+			this.strings = strings;
+			this.in = in;
+			this.xml = XML_INPUT_FACTORY.createXMLStreamReader(in);
+		}
+
+		/**
+		 * @return whether the sheet has any of the columns of the config
+		 */
+		boolean readHeader() throws XMLStreamException {
+			if (!nextRow(null, null, 0)) {
+				columns = new int[0];
+				return false;
+			}
+			Map<String, Integer> names = new HashMap<>();
+			for (int c = 0; c < config.getColumns().size(); c++) {
+				names.put(config.getColumns().get(c).getName(), c);
+			}
+			columns = new int[header.size()];
+			for (int c = 0; c < columns.length; c++) {
+				String name = header.get(c);
+				columns[c] = name == null ? -1 : names.getOrDefault(name.trim(), -1);
+			}
+			return Arrays.stream(columns).anyMatch(column -> column >= 0);
+		}
+
+		/**
+		 * Reads the cells of the next row that has any into the arrays, from
+		 * the offset on, one slot per config column.
+		 *
+		 * @return false at the end of the sheet
+		 */
+		boolean nextRow(String[] values, CellType[] types, int offset) throws XMLStreamException {
+			while (xml.hasNext()) {
+				int event = xml.next();
+				if (event == XMLStreamConstants.END_ELEMENT && "sheetData".equals(xml.getLocalName())) {
+					return false;
+				}
+				if (event == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName())) {
+					String r = xml.getAttributeValue(null, "r");
+					rowNumber = r == null ? rowNumber + 1 : Integer.parseInt(r);
+					if (values != null) {
+						Arrays.fill(values, offset, offset + config.getColumns().size(), null);
+					}
+					if (readCells(values, types, offset)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		int rowNumber() {
+			return rowNumber;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				xml.close();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Reads the header when no arrays are given.
+		 *
+		 * @return whether the row has a value in any column
+		 */
+		private boolean readCells(String[] values, CellType[] types, int offset) throws XMLStreamException {
+			boolean any = false;
+			int column = -1;
+			while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				String reference = xml.getAttributeValue(null, "r");
+				column = reference == null ? column + 1 : columnIndex(reference);
+				CellType type = CellType.of(xml.getAttributeValue(null, "t"));
+				String value = readCell(type);
+				if (value == null) {
+					continue;
+				}
+				if (values == null) {
+					while (header.size() <= column) {
+						header.add(null);
+					}
+					header.set(column, type == CellType.SHARED ? sharedString(strings, value) : value);
+					any = true;
+				} else if (column < columns.length && columns[column] >= 0) {
+					values[offset + columns[column]] = value;
+					types[offset + columns[column]] = type;
+					any = true;
+				}
+			}
+			return any;
+		}
+
+		/**
+		 * Reads the content of a {@code c} element up to its end tag.
+		 *
+		 * @return the text of its value or inline string, null if it has none
+		 */
+		private String readCell(CellType type) throws XMLStreamException {
+			String value = null;
+			StringBuilder inline = null;
+			int depth = 1;
+			while (depth > 0) {
+				int event = xml.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					String name = xml.getLocalName();
+					if ("v".equals(name)) {
+						value = xml.getElementText();
+						depth--;
+					} else if ("t".equals(name) && type == CellType.INLINE) {
+						inline = inline == null ? new StringBuilder() : inline;
+						inline.append(xml.getElementText());
+						depth--;
+					} else if ("rPh".equals(name)) {
+						skip();
+						depth--;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+			return inline != null ? inline.toString() : value;
+		}
+
+		private void skip() throws XMLStreamException {
+			for (int depth = 1; depth > 0;) {
+				int event = xml.next();
+				depth += event == XMLStreamConstants.START_ELEMENT ? 1 : event == XMLStreamConstants.END_ELEMENT ? -1 : 0;
+			}
+		}
+
+	}
+
+	/**
+	 * The rows of one sheet, parsed and bound on the consuming thread.
+	 */
+	private final class SheetRows extends Spliterators.AbstractSpliterator<T> {
+
+		private final String sheet;
+		private final SheetParser parser;
+		private final String[] values;
+		private final CellType[] types;
+		private boolean headerRead;
+
+		SheetRows(String sheet, SheetParser parser) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.sheet = sheet;
+			this.parser = parser;
+			this.values = new String[config.getColumns().size()];
+			this.types = new CellType[values.length];
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			try {
+				if (!headerRead) {
+					if (!parser.readHeader()) {
+						throw new IllegalArgumentException("sheet has none of the columns of " + config.getName());
+					}
+					headerRead = true;
+				}
+				while (parser.nextRow(values, types, 0)) {
+					T row = bind(parser.strings, sheet, parser.rowNumber(), values, types, 0);
+					if (row != null) {
+						action.accept(row);
+						return true;
+					}
+				}
+				parser.close();
+				return false;
+			} catch (XMLStreamException e) {
+				throw new POIXMLException("unreadable worksheet", e);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+	}
+
+	/**
+	 * The rows of a sheet parsed by {@link ParallelRead}, one slot per config
+	 * column and row.
+	 */
+	private static final class Chunk {
+
+		final int sheet;
+		final int index;
+		final String[] values;
+		final CellType[] types;
+		final int[] rowNumbers = new int[CHUNK_ROWS];
+		int size;
+
+		Chunk(int sheet, int index, int columns) {
+			this.sheet = sheet;
+			this.index = index;
+			this.values = new String[CHUNK_ROWS * columns];
+			this.types = new CellType[values.length];
+		}
+
+	}
+
+	/**
+	 * Guarded by its own monitor, which the sink is called under.
+	 */
+	private final class ParallelRead {
+
+		private final ReadOnlySharedStringsTable strings;
+		private final List<String> names;
+		private final Executor executor;
+		private final boolean ordered;
+		private final RowSink<? super T> sink;
+		private final int columns = config.getColumns().size();
+		private final Semaphore[] permits;
+		/** the number of chunks of each sheet, -1 until it is parsed */
+		private final int[] chunkCounts;
+		private final Map<Long, List<T>> pending = new HashMap<>();
+		private int nextSheet;
+		private int nextChunk;
+		/** the parsers and conversion tasks not finished */
+		private int tasks;
+		private volatile Throwable failure;
+
+		ParallelRead(ReadOnlySharedStringsTable strings, List<String> names, Executor executor, boolean ordered, RowSink<? super T> sink) {
+			this.strings = strings;
+			this.names = names;
+			this.executor = executor;
+			this.ordered = ordered;
+			this.sink = sink;
+			this.permits = new Semaphore[names.size()];
+			this.chunkCounts = new int[names.size()];
+			for (int i = 0; i < permits.length; i++) {
+				permits[i] = new Semaphore(CHUNKS_IN_FLIGHT);
+			}
+			Arrays.fill(chunkCounts, -1);
+		}
+
+		void run(List<InputStream> streams) throws IOException {
+			if (streams.isEmpty()) {
+				return;
+			}
+			AtomicInteger threads = new AtomicInteger();
+			ExecutorService parsers = Executors.newFixedThreadPool(Math.min(streams.size(), Runtime.getRuntime().availableProcessors()),
+					runnable -> {
+						Thread thread = new Thread(runnable, "workbook-reader-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			synchronized (this) {
+				tasks = streams.size();
+			}
+			for (int i = 0; i < streams.size(); i++) {
+				int sheet = i;
+				parsers.execute(() -> parse(sheet, streams.get(sheet)));
+			}
+			parsers.shutdown();
+			try {
+				synchronized (this) {
+					while (tasks > 0) {
+						wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(e);
+				parsers.shutdownNow();
+				throw new InterruptedIOException("interrupted reading the workbook");
+			}
+			Throwable failed = failure;
+			if (failed instanceof IOException) {
+				throw (IOException) failed;
+			} else if (failed instanceof XMLStreamException) {
+				throw new IOException("unreadable worksheet", failed);
+			} else if (failed instanceof RuntimeException) {
+				throw (RuntimeException) failed;
+			} else if (failed instanceof Error) {
+				throw (Error) failed;
+			} else if (failed != null) {
+				throw new IOException(failed);
+			}
+		}
+
+		private void parse(int sheet, InputStream in) {
+			int chunks = 0;
+			try (SheetParser parser = new SheetParser(strings, in)) {
+				if (parser.readHeader()) {
+					Chunk chunk = new Chunk(sheet, chunks, columns);
+					while (failure == null && parser.nextRow(chunk.values, chunk.types, chunk.size * columns)) {
+						chunk.rowNumbers[chunk.size++] = parser.rowNumber();
+						if (chunk.size == CHUNK_ROWS) {
+							submit(chunk);
+							chunk = new Chunk(sheet, ++chunks, columns);
+						}
+					}
+					if (chunk.size > 0) {
+						submit(chunk);
+						chunks++;
+					}
+				}
+			} catch (Exception e) {
+				fail(e);
+			} finally {
+				synchronized (this) {
+					chunkCounts[sheet] = chunks;
+					tasks--;
+					drain();
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the sheet to have room for one more chunk, then converts
+		 * it on the executor.
+		 */
+		private void submit(Chunk chunk) throws InterruptedException {
+			while (!permits[chunk.sheet].tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				if (failure != null) {
+					return;
+				}
+			}
+			synchronized (this) {
+				tasks++;
+			}
+			try {
+				executor.execute(() -> convert(chunk));
+			} catch (RejectedExecutionException e) {
+				fail(e);
+				finished();
+			}
+		}
+
+		private void convert(Chunk chunk) {
+			try {
+				String name = names.get(chunk.sheet);
+				List<T> rows = new ArrayList<>(chunk.size);
+				for (int r = 0; r < chunk.size && failure == null; r++) {
+					T row = bind(strings, name, chunk.rowNumbers[r], chunk.values, chunk.types, r * columns);
+					if (row != null) {
+						rows.add(row);
+					}
+				}
+				synchronized (this) {
+					if (ordered) {
+						pending.put(key(chunk.sheet, chunk.index), rows);
+						drain();
+					} else {
+						accept(chunk.sheet, rows);
+					}
+				}
+			} catch (RuntimeException | Error e) {
+				fail(e);
+			} finally {
+				finished();
+			}
+		}
+
+		/**
+		 * Sinks the pending chunks that are next in order.
+		 */
+		private void drain() {
+			while (ordered && nextSheet < names.size()) {
+				List<T> rows = pending.remove(key(nextSheet, nextChunk));
+				if (rows != null) {
+					accept(nextSheet, rows);
+					nextChunk++;
+				} else if (chunkCounts[nextSheet] == nextChunk) {
+					nextSheet++;
+					nextChunk = 0;
+				} else {
+					break;
+				}
+			}
+		}
+
+		private void accept(int sheet, List<T> rows) {
+			try {
+				if (failure == null && !rows.isEmpty()) {
+					sink.accept(names.get(sheet), rows);
+				}
+			} catch (RuntimeException e) {
+				fail(e);
+			} finally {
+				permits[sheet].release();
+			}
+		}
+
+		private synchronized void finished() {
+			tasks--;
+			notifyAll();
+		}
+
+		private synchronized void fail(Throwable e) {
+			if (failure == null) {
+				failure = e;
+			}
+			notifyAll();
+		}
+
+		private long key(int sheet, int chunk) {
+			return (long) sheet << 32 | chunk;
+		}
+
+	}
+
+	private static Object convertText(String value, Class<?> type) {
+		if (type == String.class) {
+			return value;
+		}
+		String trimmed = value.trim();
+		if (trimmed.isEmpty()) {
+			return null;
+		}
+		if (type == Boolean.class) {
+			if (!"true".equalsIgnoreCase(trimmed) && !"false".equalsIgnoreCase(trimmed)) {
+				throw new IllegalArgumentException("not a boolean: " + value);
+			}
+			return Boolean.valueOf(trimmed);
+		}
+		if (type == LocalDate.class) {
+			return LocalDate.parse(trimmed);
+		}
+		if (type == LocalDateTime.class) {
+			return LocalDateTime.parse(trimmed);
+		}
+		if (type == Date.class) {
+			return toDate(LocalDateTime.parse(trimmed));
+		}
+		try {
+			return convertNumber(new BigDecimal(trimmed), type);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a number: " + value);
+		}
+	}
+
+	private static Object convertBoolean(boolean value, Class<?> type) {
+		if (type == Boolean.class) {
+			return value;
+		}
+		if (type == String.class) {
+			return Boolean.toString(value).toUpperCase(Locale.ROOT);
+		}
+		throw new IllegalArgumentException("boolean cell for a " + type.getSimpleName());
+	}
+
+	private static Object convertNumber(double value, Class<?> type) {
+		if (type == Double.class || type == Number.class) {
+			return value;
+		}
+		if (type == String.class) {
+			return NumberToTextConverter.toText(value);
+		}
+		if (type == LocalDateTime.class || type == LocalDate.class || type == Date.class) {
+			if (!DateUtil.isValidExcelDate(value)) {
+				throw new IllegalArgumentException("not a date: " + value);
+			}
+			Date date = DateUtil.getJavaDate(value);
+			if (type == Date.class) {
+				return date;
+			}
+			LocalDateTime dateTime = LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+			return type == LocalDate.class ? dateTime.toLocalDate() : dateTime;
+		}
+		if (type == Boolean.class) {
+			throw new IllegalArgumentException("number cell for a Boolean");
+		}
+		long integer = (long) value;
+		if (type == Long.class && integer == value && integer != Long.MAX_VALUE) {
+			return integer;
+		}
+		if (type == Integer.class && (int) integer == value) {
+			return (int) integer;
+		}
+		return convertNumber(BigDecimal.valueOf(value), type);
+	}
+
+	private static Object convertNumber(BigDecimal value, Class<?> type) {
+		try {
+			if (type == Integer.class) {
+				return value.intValueExact();
+			}
+			if (type == Long.class) {
+				return value.longValueExact();
+			}
+			if (type == Short.class) {
+				return value.shortValueExact();
+			}
+			if (type == Byte.class) {
+				return value.byteValueExact();
+			}
+			if (type == BigInteger.class) {
+				return value.toBigIntegerExact();
+			}
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("not a " + type.getSimpleName() + ": " + value.toPlainString());
+		}
+		if (type == BigDecimal.class) {
+			return value;
+		}
+		if (type == Double.class || type == Number.class) {
+			return value.doubleValue();
+		}
+		if (type == Float.class) {
+			return value.floatValue();
+		}
+		if (type == String.class) {
+			return value.toPlainString();
+		}
+		throw new IllegalArgumentException("number cell for a " + type.getSimpleName());
+	}
+
+	private static Date toDate(LocalDateTime value) {
+		return Date.from(value.atZone(ZoneId.systemDefault()).toInstant());
+	}
+
+	/**
+	 * @return the zero based column index of a cell reference like {@code AB12}
+	 */
+	static int columnIndex(String reference) {
+		int column = 0;
+		for (int i = 0; i < reference.length() && reference.charAt(i) >= 'A'; i++) {
+			column = column * 26 + reference.charAt(i) - 'A' + 1;
+		}
+		return column - 1;
+	}
+
+	private enum CellType {
+		NUMBER, SHARED, INLINE, FORMULA_STRING, BOOLEAN, ERROR;
+
+		static CellType of(String t) {
+			if (t == null) {
+				return NUMBER;
+			}
+			switch (t) {
+			case "s":
+				return SHARED;
+			case "inlineStr":
+				return INLINE;
+			case "str":
+				return FORMULA_STRING;
+			case "b":
+				return BOOLEAN;
+			case "e":
+				return ERROR;
+			default:
+				return NUMBER;
+			}
+		}
+	}
+
+	/**
+	 * How converted values become a T, resolved once per reader.
+	 */
+	private abstract static class Binding<T> {
+
+		/** the type each column is converted to, boxed, null if it is not bound */
+		final Class<?>[] types;
+
+		Binding(Class<?>[] types) {
+			this.types = types;
+		}
+
+		Class<?> type(int column) {
+			return types[column];
+		}
+
+		abstract T bind(Object[] values) throws ReflectiveOperationException;
+
+		static <T> Binding<T> of(WorkbookConfig<T> config) {
+			Class<T> source = config.getSource();
+			List<? extends ColumnConfig<T, ?>> columns = config.getColumns();
+			Map<String, Method> setters = new HashMap<>();
+			for (Method method : source.getMethods()) {
+				if (method.getName().startsWith("set") && method.getParameterCount() == 1 && !Modifier.isStatic(method.getModifiers())) {
+					setters.put(normalize(method.getName().substring(3)), method);
+				}
+			}
+			Method[] bound = columns.stream().map(column -> setters.get(normalize(column.getName()))).toArray(Method[]::new);
+			Constructor<T> noArg = constructor(source, 0);
+			if (noArg != null && Arrays.stream(bound).anyMatch(method -> method != null)) {
+				return new SetterBinding<>(noArg, bound);
+			}
+			Constructor<T> allArgs = constructor(source, columns.size());
+			if (allArgs == null) {
+				throw new IllegalArgumentException("cannot bind the columns of " + config.getName() + " to " + source.getName()
+						+ ": it has neither setters named after them nor a constructor taking one argument per column");
+			}
+			String[] names = parameterNames(allArgs);
+			if (names == null) {
+				throw new IllegalArgumentException("cannot bind the columns of " + config.getName() + " to " + source.getName()
+						+ ": the parameter names of its constructor are unknown, annotate it with @ConstructorProperties"
+						+ " or compile with -parameters");
+			}
+			Map<String, Integer> parameters = new HashMap<>();
+			for (int p = 0; p < names.length; p++) {
+				parameters.put(normalize(names[p]), p);
+			}
+			int[] order = new int[columns.size()];
+			for (int c = 0; c < order.length; c++) {
+				Integer parameter = parameters.remove(normalize(columns.get(c).getName()));
+				if (parameter == null) {
+					throw new IllegalArgumentException("cannot bind the columns of " + config.getName() + " to " + source.getName()
+							+ ": its constructor has no parameter named after column " + columns.get(c).getName());
+				}
+				order[c] = parameter;
+			}
+			return new ConstructorBinding<>(allArgs, order);
+		}
+
+		/**
+		 * @return the names of the parameters, or null if they were not kept
+		 */
+		private static String[] parameterNames(Constructor<?> constructor) {
+			ConstructorProperties properties = constructor.getAnnotation(ConstructorProperties.class);
+			if (properties != null) {
+				return properties.value().length == constructor.getParameterCount() ? properties.value() : null;
+			}
+			Parameter[] parameters = constructor.getParameters();
+			if (parameters.length > 0 && !parameters[0].isNamePresent()) {
+				return null;
+			}
+			return Arrays.stream(parameters).map(Parameter::getName).toArray(String[]::new);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Constructor<T> constructor(Class<T> source, int parameters) {
+			for (Constructor<?> constructor : source.getDeclaredConstructors()) {
+				if (constructor.getParameterCount() == parameters && !Modifier.isPrivate(constructor.getModifiers())) {
+					constructor.setAccessible(true);
+					return (Constructor<T>) constructor;
+				}
+			}
+			return null;
+		}
+
+		private static String normalize(String name) {
+			return name.replaceAll("[^\\p{Alnum}]", "").toLowerCase(Locale.ROOT);
+		}
+
+		static Class<?> boxed(Class<?> type) {
+			if (!type.isPrimitive()) {
+				return type;
+			}
+			return type == int.class ? Integer.class : type == long.class ? Long.class : type == double.class ? Double.class
+					: type == boolean.class ? Boolean.class : type == float.class ? Float.class : type == short.class ? Short.class
+					: type == byte.class ? Byte.class : Character.class;
+		}
+
+	}
+
+	/**
+	 * Sets the values not null with the setters of the columns.
+	 */
+	private static final class SetterBinding<T> extends Binding<T> {
+
+		private final Constructor<T> constructor;
+		private final Method[] setters;
+
+		SetterBinding(Constructor<T> constructor, Method[] setters) {
+			super(Arrays.stream(setters).map(setter -> setter == null ? null : boxed(setter.getParameterTypes()[0]))
+					.toArray(Class<?>[]::new));
+			this.constructor = constructor;
+			this.setters = setters;
+		}
+
+		@Override
+		T bind(Object[] values) throws ReflectiveOperationException {
+			T row = constructor.newInstance();
+			for (int c = 0; c < setters.length; c++) {
+				if (setters[c] != null && values[c] != null) {
+					setters[c].invoke(row, values[c]);
+				}
+			}
+			return row;
+		}
+
+	}
+
+	/**
+	 * Passes the value of each column as the parameter of the same name,
+	 * primitives left at their default when the cell is blank.
+	 */
+	private static final class ConstructorBinding<T> extends Binding<T> {
+
+		private final Constructor<T> constructor;
+		private final Class<?>[] parameters;
+		/** the parameter of each column */
+		private final int[] order;
+
+		ConstructorBinding(Constructor<T> constructor, int[] order) {
+			super(Arrays.stream(order).mapToObj(p -> boxed(constructor.getParameterTypes()[p])).toArray(Class<?>[]::new));
+			this.constructor = constructor;
+			this.parameters = constructor.getParameterTypes();
+			this.order = order;
+		}
+
+		@Override
+		T bind(Object[] values) throws ReflectiveOperationException {
+			Object[] arguments = new Object[parameters.length];
+			for (int c = 0; c < values.length; c++) {
+				arguments[order[c]] = values[c];
+			}
+			for (int p = 0; p < arguments.length; p++) {
+				if (arguments[p] == null && parameters[p].isPrimitive()) {
+					arguments[p] = defaultValue(parameters[p]);
+				}
+			}
+			return constructor.newInstance(arguments);
+		}
+
+		private static Object defaultValue(Class<?> type) {
+			return type == boolean.class ? Boolean.FALSE : type == char.class ? Character.valueOf('\0')
+					: convertNumber(BigDecimal.ZERO, boxed(type));
+		}
+
+	}
+
+}
@@ -0,0 +1,244 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.apache.poi.ss.format.CellFormatPart;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import dos.gatos.poi.util.WorkbookConfig.FontConfig;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+
+/**
+ * The {@link WorkbookConfig}s of the application, checked when the registry is
+ * created so a broken config fails the startup instead of its first export:
+ * names, sheet name, columns, data formats, fonts and colors. Each config is
+ * compiled to its template at the same time.
+ * <p>
+ * {@link #warmUp} then writes a header only workbook of every config through
+ * each export path and reads it back, on a thread of its own, so the POI,
+ * XMLBeans and StAX classes are loaded and initialized before the first
+ * request rather than during it. As a health indicator the registry reports
+ * {@code OUT_OF_SERVICE} until the warm-up is over, which keeps the instance
+ * out of the load balancer meanwhile, and {@code DOWN} if it failed. The
+ * warm-up exports are left out of the metrics.
+ */
+public class WorkbookRegistry implements HealthIndicator {
+
+	/** the most sections a number format has: positive, negative, zero and text */
+	private static final int MAX_FORMAT_SECTIONS = 4;
+	private static final int MAX_COLUMNS = 16384;
+	private static final int MAX_FONT_NAME = 31;
+	private static final int MAX_FONT_SIZE = 409;
+
+	private final Map<String, WorkbookConfig<?>> configs = new LinkedHashMap<>();
+	private volatile CompletableFuture<Long> warmUp;
+
+	/**
+	 * @throws IllegalArgumentException listing every problem found in the
+	 *                                  configs
+	 */
+	public WorkbookRegistry(Collection<? extends WorkbookConfig<?>> configs) {
+		List<String> errors = new ArrayList<>();
+		for (WorkbookConfig<?> config : configs) {
+			int before = errors.size();
+			validate(config, errors);
+			if (config.getName() != null && this.configs.putIfAbsent(config.getName(), config) != null) {
+				errors.add(config.getName() + ": name used by another config");
+			}
+			if (errors.size() == before) {
+				config.getTemplate();
+			}
+		}
+		if (!errors.isEmpty()) {
+			throw new IllegalArgumentException("invalid workbook configs: " + String.join("; ", errors));
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if there is no config of that name for
+	 *                                  that source
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> WorkbookConfig<T> get(String name, Class<T> source) {
+		WorkbookConfig<?> config = configs.get(name);
+		if (config == null || config.getSource() != source) {
+			throw new IllegalArgumentException("no workbook config " + name + " of " + source.getName());
+		}
+		return (WorkbookConfig<T>) config;
+	}
+
+	public Collection<WorkbookConfig<?>> getConfigs() {
+		return configs.values();
+	}
+
+	/**
+	 * Starts the warm-up on a daemon thread, once.
+	 *
+	 * @return completed with the time the warm-up took in milliseconds
+	 */
+	public synchronized CompletableFuture<Long> warmUp() {
+		if (warmUp == null) {
+			warmUp = CompletableFuture.supplyAsync(this::warmUpAll, runnable -> {
+				Thread thread = new Thread(runnable, "workbook-warm-up");
+				thread.setDaemon(true);
+				thread.start();
+			});
+		}
+		return warmUp;
+	}
+
+	@Override
+	public Health health() {
+		CompletableFuture<Long> current = warmUp;
+		if (current == null || !current.isDone()) {
+			return Health.outOfService().withDetail("warmUp", current == null ? "pending" : "running").build();
+		}
+		try {
+			return Health.up().withDetail("configs", configs.keySet()).withDetail("warmUpMillis", current.join()).build();
+		} catch (RuntimeException e) {
+			return Health.down().withException(e.getCause() != null ? e.getCause() : e).build();
+		}
+	}
+
+	private long warmUpAll() {
+		long start = System.nanoTime();
+		WorkbookMetrics.setDiscarded(true);
+		try {
+			for (WorkbookConfig<?> config : configs.values()) {
+				warmUp(config);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("workbook warm-up failed", e);
+		} finally {
+			WorkbookMetrics.setDiscarded(false);
+		}
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	private static <T> void warmUp(WorkbookConfig<T> config) throws IOException {
+		ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+		WorkbookWriter.write(config, List.of(), xlsx);
+		try (XSSFWorkbook workbook = WorkbookGenerator.of(config, List.of())) {
+			XlsxZipOutputStream.write(workbook, OutputStream.nullOutputStream());
+		}
+		SXSSFWorkbook streaming = WorkbookGenerator.streaming(config, List.of());
+		try {
+			XlsxZipOutputStream.write(streaming, OutputStream.nullOutputStream());
+		} finally {
+			streaming.dispose();
+			streaming.close();
+		}
+		WorkbookCsvWriter.write(config, List.of(), OutputStream.nullOutputStream());
+		WorkbookColumnarWriter.write(config, List.of(), OutputStream.nullOutputStream());
+		WorkbookReader<T> reader;
+		try {
+			reader = WorkbookReader.open(config, new ByteArrayInputStream(xlsx.toByteArray()));
+		} catch (IllegalArgumentException e) {
+			// the rows of the config cannot be bound back, it is only exported
+			return;
+		}
+		try (reader; Stream<T> rows = reader.rows()) {
+			rows.count();
+		}
+	}
+
+	private static void validate(WorkbookConfig<?> config, List<String> errors) {
+		boolean named = config.getName() != null && !config.getName().isBlank();
+		String name = named ? config.getName() : config.getSource().getSimpleName();
+		if (!named) {
+			errors.add("config of " + config.getSource().getName() + ": name is required");
+		}
+		try {
+			WorkbookUtil.validateSheetName(config.getSheetName());
+		} catch (IllegalArgumentException e) {
+			errors.add(name + ": " + e.getMessage());
+		}
+		if (config.getColumns().isEmpty() || config.getColumns().size() > MAX_COLUMNS) {
+			errors.add(name + ": between 1 and " + MAX_COLUMNS + " columns are required");
+		}
+		Set<String> columns = new HashSet<>();
+		config.getColumns().forEach(column -> {
+			if (column.getName().isBlank()) {
+				errors.add(name + ": column name is blank");
+			} else if (!columns.add(column.getName())) {
+				errors.add(name + ": duplicate column name '" + column.getName() + "'");
+			}
+		});
+		for (StyleConfig style : config.getStyleSet()) {
+			style.getDataFormat().ifPresent(format -> validateDataFormat(name, format, errors));
+			style.getFillColor().ifPresent(color -> validateColor(name, color, errors));
+		}
+		for (FontConfig font : config.getFontSet()) {
+			font.getName().filter(fontName -> fontName.isBlank() || fontName.length() > MAX_FONT_NAME)
+					.ifPresent(fontName -> errors.add(name + ": font name '" + fontName + "' must have 1 to " + MAX_FONT_NAME + " characters"));
+			font.getSize().filter(size -> size < 1 || size > MAX_FONT_SIZE)
+					.ifPresent(size -> errors.add(name + ": font size " + size + " is not between 1 and " + MAX_FONT_SIZE));
+			font.getColor().ifPresent(color -> validateColor(name, color, errors));
+		}
+	}
+
+	/**
+	 * Parses each section of the format, split on the semicolons that are
+	 * neither quoted nor escaped, like Excel does when the style is applied.
+	 */
+	private static void validateDataFormat(String name, String format, List<String> errors) {
+		List<String> sections = new ArrayList<>();
+		StringBuilder section = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < format.length(); i++) {
+			char c = format.charAt(i);
+			if (c == '\\' && i + 1 < format.length()) {
+				section.append(c).append(format.charAt(++i));
+			} else if (c == ';' && !quoted) {
+				sections.add(section.toString());
+				section.setLength(0);
+			} else {
+				quoted ^= c == '"';
+				section.append(c);
+			}
+		}
+		sections.add(section.toString());
+		if (quoted) {
+			errors.add(name + ": data format '" + format + "' has an unterminated quote");
+			return;
+		}
+		if (format.isBlank() || sections.size() > MAX_FORMAT_SECTIONS) {
+			errors.add(name + ": data format '" + format + "' must have 1 to " + MAX_FORMAT_SECTIONS + " sections");
+			return;
+		}
+		for (String part : sections) {
+			if (part.isEmpty()) {
+				continue;
+			}
+			try {
+				new CellFormatPart(part);
+			} catch (RuntimeException e) {
+				errors.add(name + ": invalid data format '" + format + "': " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	private static void validateColor(String name, int color, List<String> errors) {
+		if ((color & ~0xFFFFFF) != 0) {
+			errors.add(name + ": color " + Integer.toHexString(color) + " is not a 24 bit RGB value");
+		}
+	}
+
+}
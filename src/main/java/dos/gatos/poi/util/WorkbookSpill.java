@@ -0,0 +1,355 @@
+package dos.gatos.poi.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the streaming writers spill the rows they cannot keep in memory: the
+ * staged rows of a {@code FULL} sheet of the {@link WorkbookWriter} and the
+ * flushed rows of a sheet generated through
+ * {@link WorkbookGenerator#streaming}.
+ * <p>
+ * A spill file is a chain of segment files of {@code segmentSize} bytes,
+ * created at their full size and mapped in memory, so rows are written with
+ * plain memory copies instead of a write call per buffer, and read back from
+ * the same mapping when the sheet is zipped. Every segment counts in full
+ * against the quota shared by all the spill files, and a file that would
+ * exceed it fails with an {@link IOException} rather than fill the disk.
+ * <p>
+ * Segments are deleted as soon as their spill file is, which the writers do
+ * when a workbook is written, disposed of or abandoned. Each store keeps its
+ * segments in a directory of its own under the given one, locked for as long
+ * as the store is open, so instances may share the given directory: the
+ * directories left by a previous run are deleted on startup, the ones still
+ * locked by another process are left alone. Their mappings are released then too,
+ * through {@code sun.misc.Unsafe#invokeCleaner}, or only once garbage
+ * collected on a JDK without it, the segments counting against the quota
+ * until they are really unmapped either way.
+ * <p>
+ * The writers spill to the store they are given, if any, and to temp files
+ * otherwise.
+ */
+public class WorkbookSpill implements Closeable {
+
+	private static final String SUFFIX = ".spill";
+	private static final String PREFIX = "instance-";
+	private static final String LOCK = ".lock";
+
+	/** unmaps a mapped buffer right away, null if the JDK does not let us */
+	private static final MethodHandle UNMAP = unmapper();
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final Path directory;
+	/** held for as long as the store is open, so no other one deletes its directory */
+	private final FileChannel lock;
+	private final int segmentSize;
+	private final long quota;
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicLong sequence = new AtomicLong();
+
+	public WorkbookSpill(Path directory, int segmentSize, long quota) {
+		if (segmentSize <= 0 || quota < segmentSize) {
+			throw new IllegalArgumentException("segment size must be positive and at most the quota");
+		}
+		this.segmentSize = segmentSize;
+		this.quota = quota;
+		try {
+			Files.createDirectories(directory);
+			clean(directory);
+			this.directory = Files.createTempDirectory(directory, PREFIX);
+			Path locking = this.directory.resolve(LOCK + ".new");
+			this.lock = FileChannel.open(locking, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			lock.lock();
+			Files.move(locking, this.directory.resolve(LOCK), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the number of bytes the live segments take against the quota
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * @return the directory of the segments of this store
+	 */
+	Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Releases the directory of the store, deleting it unless spill files are
+	 * left in it, which the next store to start then deletes.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.close();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			if (files.iterator().hasNext()) {
+				return;
+			}
+		}
+		Files.deleteIfExists(directory.resolve(LOCK));
+		Files.deleteIfExists(directory);
+	}
+
+	SpillFile create(String prefix) {
+		return new SpillFile(prefix + "-" + sequence.incrementAndGet());
+	}
+
+	private static MethodHandle unmapper() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The release of a segment, which must not reach its mapping lest the
+	 * mapping is never collected.
+	 */
+	private static Runnable release(AtomicLong used, long bytes) {
+		return () -> used.addAndGet(-bytes);
+	}
+
+	/**
+	 * Deletes the directories of the stores no process holds the lock of
+	 * anymore. The lock file of a store is only named so once locked, so one
+	 * being created is left alone.
+	 */
+	private static void clean(Path directory) throws IOException {
+		try (DirectoryStream<Path> stores = Files.newDirectoryStream(directory, PREFIX + "*")) {
+			for (Path store : stores) {
+				try (FileChannel channel = FileChannel.open(store.resolve(LOCK), StandardOpenOption.WRITE);
+						FileLock held = channel.tryLock()) {
+					if (held == null) {
+						continue;
+					}
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(store, "*" + SUFFIX)) {
+						for (Path file : files) {
+							Files.delete(file);
+						}
+					}
+					Files.delete(store.resolve(LOCK));
+				} catch (NoSuchFileException | OverlappingFileLockException e) {
+					continue;
+				}
+				Files.deleteIfExists(store);
+			}
+		}
+	}
+
+	/**
+	 * A spill file, written once through its output stream then read any
+	 * number of times. Every access to the mappings holds the lock of the
+	 * file, so it may be deleted from another thread, by a cancelled download,
+	 * without unmapping memory a write or read is still using.
+	 */
+	final class SpillFile extends OutputStream {
+
+		private final String name;
+		private final List<Path> paths = new ArrayList<>();
+		private final List<MappedByteBuffer> segments = new ArrayList<>();
+		/** gives the space of each segment back to the quota once it is unmapped */
+		private final List<Cleaner.Cleanable> releases = new ArrayList<>();
+		private MappedByteBuffer current;
+		private long size;
+		private boolean deleted;
+
+		private SpillFile(String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		synchronized long size() {
+			return size;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			ensure().put((byte) b);
+			size++;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				ByteBuffer segment = ensure();
+				int length = Math.min(len, segment.remaining());
+				segment.put(b, off, length);
+				off += length;
+				len -= length;
+				size += length;
+			}
+		}
+
+		/**
+		 * @return a stream over the bytes written so far, read from the
+		 *         mappings
+		 */
+		synchronized InputStream getInputStream() {
+			List<ByteBuffer> buffers = new ArrayList<>();
+			for (int i = 0; i < segments.size(); i++) {
+				ByteBuffer buffer = segments.get(i).duplicate();
+				buffer.position(0).limit((int) Math.min(segmentSize, size - (long) i * segmentSize));
+				buffers.add(buffer);
+			}
+			return new SegmentInputStream(this, buffers);
+		}
+
+		/**
+		 * Unmaps and deletes the segments, giving their space back to the quota
+		 * unless they can only be unmapped by the garbage collector. The file
+		 * and its input streams cannot be used anymore.
+		 */
+		synchronized boolean delete() {
+			if (deleted) {
+				return false;
+			}
+			deleted = true;
+			boolean unmapped = UNMAP != null;
+			if (unmapped) {
+				for (MappedByteBuffer segment : segments) {
+					try {
+						UNMAP.invokeExact((ByteBuffer) segment);
+					} catch (Throwable e) {
+						unmapped = false;
+					}
+				}
+			}
+			segments.clear();
+			current = null;
+			boolean all = true;
+			for (Path path : paths) {
+				try {
+					all &= Files.deleteIfExists(path);
+				} catch (IOException e) {
+					all = false;
+				}
+			}
+			if (unmapped) {
+				releases.forEach(Cleaner.Cleanable::clean);
+			}
+			releases.clear();
+			return all;
+		}
+
+		private ByteBuffer ensure() throws IOException {
+			if (deleted) {
+				throw new IOException("spill file " + name + " is deleted");
+			}
+			if (current == null || !current.hasRemaining()) {
+				if (used.addAndGet(segmentSize) > quota) {
+					used.addAndGet(-segmentSize);
+					throw new IOException("spill quota of " + quota + " bytes exceeded");
+				}
+				Path path = directory.resolve(name + "-" + paths.size() + SUFFIX);
+				paths.add(path);
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+						StandardOpenOption.WRITE)) {
+					current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+				} catch (IOException | RuntimeException e) {
+					used.addAndGet(-segmentSize);
+					throw e;
+				}
+				segments.add(current);
+				releases.add(CLEANER.register(current, release(used, segmentSize)));
+			}
+			return current;
+		}
+
+	}
+
+	/**
+	 * Reads the mappings of a spill file under its lock, failing once the file
+	 * is deleted rather than touching unmapped memory.
+	 */
+	private final class SegmentInputStream extends InputStream {
+
+		private final SpillFile file;
+		private final List<ByteBuffer> buffers;
+		private int index;
+
+		SegmentInputStream(SpillFile file, List<ByteBuffer> buffers) {
+			this.file = file;
+			this.buffers = buffers;
+		}
+
+		@Override
+		public int read() throws IOException {
+			synchronized (file) {
+				ByteBuffer buffer = next();
+				return buffer == null ? -1 : buffer.get() & 0xff;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (file) {
+				ByteBuffer buffer = next();
+				if (buffer == null) {
+					return -1;
+				}
+				int length = Math.min(len, buffer.remaining());
+				buffer.get(b, off, length);
+				return length;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (file) {
+				return !file.deleted && index < buffers.size() ? buffers.get(index).remaining() : 0;
+			}
+		}
+
+		private ByteBuffer next() throws IOException {
+			if (file.deleted) {
+				throw new IOException("spill file " + file.name + " is deleted");
+			}
+			while (index < buffers.size() && !buffers.get(index).hasRemaining()) {
+				index++;
+			}
+			return index < buffers.size() ? buffers.get(index) : null;
+		}
+
+	}
+
+}
@@ -0,0 +1,75 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+
+/**
+ * Generates a workbook on the MVC async executor and writes it straight to the
+ * servlet output stream with the {@link WorkbookWriter}, releasing the request
+ * thread while rows are produced.
+ * The data stream is opened and closed on the writing thread, so a cursor
+ * backed source stays open only for as long as the download takes. Writes
+ * block on the servlet output stream, which throttles generation to the pace
+ * of the client.
+ * <p>
+ * When the async request times out or its client disconnects, Spring cancels
+ * the task writing the workbook, interrupting its thread, and the writer stops
+ * at the next check of its {@link WorkbookLimits}, deleting its staged rows.
+ */
+public class WorkbookStreamingResponseBody<T> implements StreamingResponseBody {
+
+	private final WorkbookConfig<T> config;
+	private final Supplier<? extends Stream<T>> data;
+	private final CompressionConfig compression;
+	private final WorkbookSpill spill;
+
+	public static <T> ResponseEntity<StreamingResponseBody> of(WorkbookConfig<T> config, Supplier<? extends Stream<T>> data) {
+		return of(config, config.getCompression(), data);
+	}
+
+	/**
+	 * Overrides the compression of the config for this response only.
+	 */
+	public static <T> ResponseEntity<StreamingResponseBody> of(WorkbookConfig<T> config, CompressionConfig compression,
+			Supplier<? extends Stream<T>> data) {
+		return of(config, compression, null, data);
+	}
+
+	/**
+	 * Stages the rows of a {@code FULL} sheet to the spill rather than to a
+	 * temp file, unless it is null.
+	 */
+	public static <T> ResponseEntity<StreamingResponseBody> of(WorkbookConfig<T> config, CompressionConfig compression, WorkbookSpill spill,
+			Supplier<? extends Stream<T>> data) {
+		return ResponseEntity.ok()
+				.contentType(WorkbookHttpMessageConverter.MEDIA_TYPE)
+				.header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+						.filename(config.getName().concat(".xlsx")).build().toString())
+				.body(new WorkbookStreamingResponseBody<>(config, data, compression, spill));
+	}
+
+	private WorkbookStreamingResponseBody(WorkbookConfig<T> config, Supplier<? extends Stream<T>> data, CompressionConfig compression,
+			WorkbookSpill spill) {
+		this.config = config;
+		this.data = data;
+		this.compression = compression;
+		this.spill = spill;
+	}
+
+	@Override
+	public void writeTo(OutputStream outputStream) throws IOException {
+		try (Stream<T> rows = data.get()) {
+			WorkbookWriter.write(config, compression, spill, rows.spliterator(), outputStream);
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package dos.gatos.poi.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.FontConfig;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * The compiled form of a {@link WorkbookConfig}: its distinct fonts and styles
+ * in a stable order, their colors already converted to RGB, their data
+ * formats resolved to number format ids and the style of every column resolved
+ * to an index. It is computed once per config, so a
+ * generation only has to replay it into a new workbook.
+ */
+@Getter(AccessLevel.PACKAGE)
+final class WorkbookTemplate {
+
+	private final List<FontConfig> fonts;
+	private final List<byte[]> fontColors;
+	private final List<StyleConfig> styles;
+	private final List<byte[]> fillColors;
+	/** index of the font of each style, -1 for the default font */
+	private final int[] styleFonts;
+	/** number format id of each style, -1 when the style has no data format */
+	private final short[] styleFormats;
+	private final DataFormatRegistry dataFormats;
+	private final int headerStyle;
+	private final int[] columnStyles;
+
+	WorkbookTemplate(WorkbookConfig<?> config) {
+		Map<StyleConfig, Integer> styleIndex = new LinkedHashMap<>();
+		styleIndex.put(config.getHeaderStyle(), styleIndex.size());
+		styleIndex.putIfAbsent(config.getBodyStyle(), styleIndex.size());
+		config.getColumns().stream().map(ColumnConfig::getStyle).forEach(style -> styleIndex.putIfAbsent(style, styleIndex.size()));
+		Map<FontConfig, Integer> fontIndex = new LinkedHashMap<>();
+		styleIndex.keySet().forEach(style -> style.getFontConfig().ifPresent(font -> fontIndex.putIfAbsent(font, fontIndex.size())));
+
+		fonts = List.copyOf(fontIndex.keySet());
+		fontColors = new ArrayList<>(fonts.size());
+		fonts.forEach(font -> fontColors.add(font.getColor().map(WorkbookTemplate::rgb).orElse(null)));
+		styles = List.copyOf(styleIndex.keySet());
+		fillColors = new ArrayList<>(styles.size());
+		styles.forEach(style -> fillColors.add(style.getFillColor().map(WorkbookTemplate::rgb).orElse(null)));
+		styleFonts = styles.stream().mapToInt(style -> style.getFontConfig().map(fontIndex::get).orElse(-1)).toArray();
+		dataFormats = new DataFormatRegistry();
+		styleFormats = new short[styles.size()];
+		for (int i = 0; i < styleFormats.length; i++) {
+			styleFormats[i] = styles.get(i).getDataFormat().map(dataFormats::register).orElse((short) -1);
+		}
+		headerStyle = styleIndex.get(config.getHeaderStyle());
+		columnStyles = config.getColumns().stream().mapToInt(column -> styleIndex.get(column.getStyle())).toArray();
+	}
+
+	private static byte[] rgb(int color) {
+		return new byte[] { (byte) (color >> 16), (byte) (color >> 8), (byte) color };
+	}
+
+}
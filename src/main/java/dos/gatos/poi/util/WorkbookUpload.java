@@ -0,0 +1,53 @@
+package dos.gatos.poi.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.poi.util.TempFile;
+
+/**
+ * An uploaded workbook, spooled to a temp file by the
+ * {@link WorkbookHttpMessageConverter} so that its parts can be read in any
+ * order and in parallel, whatever its size. Which {@link WorkbookConfig} it is
+ * read with is up to the handler. Closing it deletes the file.
+ */
+public class WorkbookUpload implements Closeable {
+
+	private final File file;
+
+	public static WorkbookUpload of(InputStream in) throws IOException {
+		File file = TempFile.createTempFile("poi-workbook-upload", ".xlsx");
+		try {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file.toPath());
+			throw e;
+		}
+		return new WorkbookUpload(file);
+	}
+
+	private WorkbookUpload(File file) {
+		this.file = file;
+	}
+
+	public long getSize() {
+		return file.length();
+	}
+
+	/**
+	 * The reader must be closed before the upload.
+	 */
+	public <T> WorkbookReader<T> reader(WorkbookConfig<T> config) throws IOException {
+		return WorkbookReader.open(config, file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+
+}
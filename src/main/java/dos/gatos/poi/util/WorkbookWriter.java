@@ -0,0 +1,839 @@
+package dos.gatos.poi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.util.TempFile;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STHorizontalAlignment;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STPatternType;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STVerticalAlignment;
+
+import dos.gatos.poi.util.WorkbookConfig.ColumnConfig;
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+import dos.gatos.poi.util.WorkbookConfig.FontConfig;
+import dos.gatos.poi.util.WorkbookConfig.RowExtractor;
+import dos.gatos.poi.util.WorkbookConfig.RowValues;
+import dos.gatos.poi.util.WorkbookConfig.StyleConfig;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Writes the workbook a {@link WorkbookConfig} describes straight to a stream
+ * as SpreadsheetML, without the POI usermodel: no row, cell or XMLBeans object
+ * is created, the cells are encoded into one reusable buffer and the parts are
+ * deflated as they are written. Strings are shared or inline according to
+ * the {@link WorkbookConfig.StringStorage} of their column, the shared strings
+ * table being written last.
+ * <p>
+ * The column widths come first in a worksheet, so how early rows reach the
+ * stream depends on the {@link WorkbookConfig.ColumnWidthStrategy}: right away
+ * with {@code FIXED}, after the sampled rows with {@code SAMPLED}, which are
+ * held in memory until then, and only once every row has been staged with
+ * {@code FULL}: in memory for a small sheet, then to a temp file, or to a
+ * {@link WorkbookSpill} when one is given. Staged files are gzipped when
+ * {@link WorkbookConfig#isCompressTempFiles()}.
+ * <p>
+ * The workbook is the one {@link WorkbookGenerator} generates, except that
+ * sheets are written one after the other.
+ * <p>
+ * Rows are mapped by the {@link RowExtractor} of the config when it has one,
+ * and by the {@link ColumnWriter} of each column otherwise.
+ * <p>
+ * Each workbook is kept within the {@link WorkbookLimits} of the config, the
+ * bytes counting what reached the stream, which for a {@code FULL} sheet is
+ * checked again while its staged rows are copied.
+ */
+public class WorkbookWriter<T> {
+
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+	private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	/** the bytes of staged rows held in memory before going to a file */
+	private static final int STAGE_IN_MEMORY = 256 * 1024;
+
+	private final WorkbookConfig<T> config;
+	private CompressionConfig compression;
+	private final List<String> sheetNames;
+	private final WorkbookSpill spill;
+	private final WorkbookTemplate template;
+	private final ColumnWriter<T>[] writers;
+	private final RowExtractor<T> extractor;
+	private final Values values;
+	private final SharedStrings strings;
+	private final SheetXml xml;
+	private final Consumer<T> rowWriter = this::add;
+	private Timer.Sample sample;
+	private WorkbookLimits limits;
+	private CountingOutputStream counting;
+	private XlsxZipOutputStream zip;
+	private int sheet;
+	/** holds sampled or staged rows, reused from sheet to sheet */
+	private Buffer buffer = new Buffer();
+	/** allocated by the first {@link #copyStaged} and reused by every later one */
+	private byte[] copyBuffer;
+	/** the rows of a {@code SAMPLED} sheet until the widths are known */
+	private ByteArrayOutputStream sampled;
+	/** the rows of a {@code FULL} sheet until the widths are known */
+	private Stage stage;
+	private InputStream stagedIn;
+	private ColumnWidths widths;
+	private int rowIndex;
+	private long rows;
+
+	public static <T> void write(WorkbookConfig<T> wbConfig, List<T> data, OutputStream out) throws IOException {
+		write(wbConfig, data.spliterator(), out);
+	}
+
+	public static <T> void write(WorkbookConfig<T> wbConfig, Stream<T> data, OutputStream out) throws IOException {
+		write(wbConfig, data.spliterator(), out);
+	}
+
+	/**
+	 * Rows are pulled from the spliterator one at a time and written as soon as
+	 * the column widths allow. The stream is neither flushed nor closed.
+	 */
+	public static <T> void write(WorkbookConfig<T> wbConfig, Spliterator<T> data, OutputStream out) throws IOException {
+		write(wbConfig, wbConfig.getCompression(), data, out);
+	}
+
+	/**
+	 * Overrides the compression of the config for this workbook only.
+	 */
+	public static <T> void write(WorkbookConfig<T> wbConfig, CompressionConfig compression, Spliterator<T> data, OutputStream out)
+			throws IOException {
+		write(wbConfig, compression, null, data, out);
+	}
+
+	/**
+	 * Stages the rows of a {@code FULL} sheet that do not fit in memory to the
+	 * spill rather than to a temp file, unless it is null.
+	 */
+	public static <T> void write(WorkbookConfig<T> wbConfig, CompressionConfig compression, WorkbookSpill spill, Spliterator<T> data,
+			OutputStream out) throws IOException {
+		new WorkbookWriter<>(wbConfig, compression, List.of(wbConfig.getSheetName()), spill).write(List.of(data), out);
+	}
+
+	/**
+	 * Writes one sheet per entry, named after its key, in iteration order.
+	 */
+	public static <T> void write(WorkbookConfig<T> wbConfig, Map<String, ? extends Iterable<T>> sheets, OutputStream out)
+			throws IOException {
+		List<Spliterator<T>> data = new ArrayList<>();
+		sheets.values().forEach(rows -> data.add(rows.spliterator()));
+		new WorkbookWriter<>(wbConfig, wbConfig.getCompression(), List.copyOf(sheets.keySet()), null).write(data, out);
+	}
+
+	/**
+	 * A writer driven row by row, see {@link #open}, for callers that are
+	 * handed the rows rather than pulling them.
+	 */
+	@SuppressWarnings("unchecked")
+	WorkbookWriter(WorkbookConfig<T> config, CompressionConfig compression, List<String> sheetNames, WorkbookSpill spill) {
+		this.config = config;
+		this.compression = compression;
+		this.sheetNames = sheetNames;
+		this.spill = spill;
+		this.template = config.getTemplate();
+		this.extractor = config.getRowExtractor();
+		this.writers = config.getColumns().stream().map(WorkbookWriter::columnWriter).toArray(ColumnWriter[]::new);
+		this.values = extractor != null ? new Values() : null;
+		this.strings = SharedStrings.isUsed(config) ? new SharedStrings(config) : null;
+		this.xml = new SheetXml(writers.length, strings);
+		sheetNames.forEach(WorkbookUtil::validateSheetName);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> ColumnWriter<T> columnWriter(ColumnConfig<T, ?> column) {
+		if (!(column.getWriter() instanceof ColumnWriter)) {
+			throw new IllegalArgumentException("column " + column.getName() + " cannot be written as SpreadsheetML");
+		}
+		return (ColumnWriter<T>) column.getWriter();
+	}
+
+	private void write(List<Spliterator<T>> data, OutputStream out) throws IOException {
+		try {
+			open(out);
+			for (Spliterator<T> sheetRows : data) {
+				startSheet();
+				sheetRows.forEachRemaining(rowWriter);
+				if (endRows()) {
+					copyStaged(Long.MAX_VALUE);
+				}
+				endSheet();
+			}
+			close();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			dispose();
+		}
+	}
+
+	/**
+	 * Writes the parts preceding the worksheets to the stream. Each sheet is
+	 * then written by {@link #startSheet}, {@link #add} for each of its rows,
+	 * {@link #endRows}, {@link #copyStaged} until it returns false if rows were
+	 * staged, and {@link #endSheet}. The workbook is completed by
+	 * {@link #close}, or abandoned by {@link #dispose}. Failures writing a row
+	 * are thrown as {@link UncheckedIOException}, going over the limits as
+	 * {@link WorkbookLimitException}.
+	 */
+	void open(OutputStream out) throws IOException {
+		sample = WorkbookMetrics.start();
+		limits = WorkbookLimits.start(config);
+		counting = new CountingOutputStream(out);
+		zip = new XlsxZipOutputStream(counting, compression);
+		part("[Content_Types].xml", this::writeContentTypes);
+		part("_rels/.rels", this::writeRootRelationships);
+		part("docProps/core.xml", this::writeCoreProperties);
+		part("xl/workbook.xml", this::writeWorkbook);
+		part("xl/_rels/workbook.xml.rels", this::writeWorkbookRelationships);
+		part("xl/styles.xml", this::writeStyles);
+	}
+
+	void startSheet() throws IOException {
+		sheet++;
+		zip.putArchiveEntry(new ZipArchiveEntry("xl/worksheets/sheet" + sheet + ".xml"));
+		widths = new ColumnWidths(config.getColumnWidth(), writers.length);
+		switch (config.getColumnWidth().getStrategy()) {
+		case FIXED:
+			xml.setOut(zip);
+			writeSheetStart();
+			break;
+		case SAMPLED:
+			buffer.reset();
+			sampled = buffer;
+			xml.setOut(sampled);
+			break;
+		default:
+			buffer.reset();
+			stage = new Stage();
+			xml.setOut(stage);
+		}
+		writeHeader();
+		rowIndex = 1;
+		writeSampledIfDone();
+	}
+
+	void add(T data) {
+		limits.row(counting.getBytesWritten());
+		writeRow(data);
+		rowIndex++;
+		writeSampledIfDone();
+	}
+
+	/**
+	 * Flushes the rows written so far to the stream, as far as the column
+	 * widths allow.
+	 */
+	void flush() {
+		if (sampled == null && stage == null) {
+			xml.flush();
+		}
+	}
+
+	/**
+	 * Writes the start of the sheet if it was held back for the column widths.
+	 *
+	 * @return whether rows were staged, to be copied with {@link #copyStaged}
+	 */
+	boolean endRows() throws IOException {
+		if (sampled != null) {
+			writeSampled();
+		} else if (stage != null) {
+			xml.setOut(zip);
+			stage.close();
+			writeSheetStart();
+			xml.flush();
+			stagedIn = stage.getInputStream();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copies up to the given number of bytes of the staged rows to the stream.
+	 *
+	 * @return whether some are left
+	 */
+	boolean copyStaged(long length) throws IOException {
+		if (copyBuffer == null) {
+			copyBuffer = new byte[COPY_BUFFER_SIZE];
+		}
+		for (long copied = 0; copied < length;) {
+			int read = stagedIn.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, length - copied));
+			if (read < 0) {
+				stagedIn.close();
+				stagedIn = null;
+				return false;
+			}
+			zip.write(copyBuffer, 0, read);
+			copied += read;
+			limits.check(counting.getBytesWritten());
+		}
+		return true;
+	}
+
+	void endSheet() throws IOException {
+		if (stage != null) {
+			stage.delete();
+			stage = null;
+		}
+		writeSheetEnd();
+		xml.flush();
+		zip.closeArchiveEntry();
+	}
+
+	/**
+	 * Writes the shared strings and the zip central directory. The stream is
+	 * flushed but not closed.
+	 */
+	void close() throws IOException {
+		if (strings != null) {
+			part("xl/sharedStrings.xml", this::writeSharedStrings);
+		}
+		zip.finish();
+		zip.end();
+		counting.flush();
+		limits.bytes(counting.getBytesWritten());
+		WorkbookMetrics.stop(sample, config.getName(), WorkbookMetrics.WRITE);
+		WorkbookMetrics.registry(config.getName(), template.getStyles().size(), template.getFonts().size());
+		WorkbookMetrics.rows(config.getName(), rows, rows * writers.length);
+		WorkbookMetrics.bytes(config.getName(), counting.getBytesWritten());
+	}
+
+	/**
+	 * Deletes the temp or spill file of a {@code FULL} sheet left unfinished,
+	 * if any.
+	 */
+	void dispose() throws IOException {
+		if (zip != null) {
+			zip.end();
+		}
+		if (stage != null) {
+			try (OutputStream os = stage; InputStream is = stagedIn) {
+				stagedIn = null;
+			} finally {
+				stage.delete();
+				stage = null;
+			}
+		}
+	}
+
+	/**
+	 * Makes the writer ready for another workbook with the given compression,
+	 * keeping its buffers and tables. The previous workbook must have been
+	 * closed or disposed of.
+	 */
+	void reset(CompressionConfig compression) {
+		this.compression = compression;
+		xml.reset();
+		if (strings != null) {
+			strings.clear();
+		}
+		sample = null;
+		limits = null;
+		counting = null;
+		zip = null;
+		sheet = 0;
+		sampled = null;
+		widths = null;
+		rowIndex = 0;
+		rows = 0;
+	}
+
+	/**
+	 * @return the bytes the buffers of the writer retain
+	 */
+	long retained() {
+		return buffer.capacity() + (copyBuffer == null ? 0 : copyBuffer.length) + (strings == null ? 0 : strings.retained());
+	}
+
+	private void part(String name, Runnable content) throws IOException {
+		zip.putArchiveEntry(new ZipArchiveEntry(name));
+		xml.setOut(zip);
+		xml.ascii(XML_DECLARATION);
+		content.run();
+		xml.flush();
+		zip.closeArchiveEntry();
+	}
+
+	private void writeSampledIfDone() {
+		if (sampled != null && rowIndex > config.getColumnWidth().getSampleSize()) {
+			try {
+				writeSampled();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the start of a {@code SAMPLED} sheet now that the widths are known,
+	 * then the rows held until then.
+	 */
+	private void writeSampled() throws IOException {
+		xml.setOut(zip);
+		writeSheetStart();
+		xml.flush();
+		sampled.writeTo(zip);
+		sampled = null;
+		if (buffer.capacity() > STAGE_IN_MEMORY) {
+			buffer = new Buffer();
+		}
+	}
+
+	private void writeSheetStart() {
+		xml.ascii(XML_DECLARATION);
+		xml.ascii("<worksheet xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + RELATIONSHIPS_NS + "\">");
+		xml.ascii(sheet == 1 ? "<sheetViews><sheetView tabSelected=\"1\" workbookViewId=\"0\">" : "<sheetViews><sheetView workbookViewId=\"0\">");
+		xml.ascii("<pane ySplit=\"1\" topLeftCell=\"A2\" activePane=\"bottomLeft\" state=\"frozen\"/>");
+		xml.ascii("<selection pane=\"bottomLeft\"/></sheetView></sheetViews>");
+		xml.ascii("<sheetFormatPr defaultRowHeight=\"15\"/><cols>");
+		for (int i = 0; i < writers.length; i++) {
+			xml.ascii("<col min=\"");
+			xml.number(i + 1);
+			xml.ascii("\" max=\"");
+			xml.number(i + 1);
+			xml.ascii("\" width=\"");
+			xml.ascii(Double.toString(widths.getWidth(i) / 256d));
+			xml.ascii("\" customWidth=\"1\"/>");
+		}
+		xml.ascii("</cols><sheetData>");
+	}
+
+	private void writeSheetEnd() {
+		xml.ascii("</sheetData>");
+		xml.ascii("<pageMargins left=\"0.7\" right=\"0.7\" top=\"0.75\" bottom=\"0.75\" header=\"0.3\" footer=\"0.3\"/>");
+		xml.ascii("</worksheet>");
+	}
+
+	private void writeHeader() {
+		xml.startRow(0);
+		int style = template.getHeaderStyle() + 1;
+		for (int c = 0; c < writers.length; c++) {
+			String name = config.getColumns().get(c).getName();
+			xml.cell(c, style);
+			xml.value(name);
+			if (widths.isTracking(0)) {
+				widths.track(c, ColumnWidths.estimate(name));
+			}
+		}
+		xml.endRow();
+	}
+
+	private void writeRow(T data) {
+		xml.startRow(rowIndex);
+		boolean tracking = widths.isTracking(rowIndex);
+		if (extractor != null) {
+			values.tracking = tracking;
+			values.next = 0;
+			extractor.extract(data, values);
+			values.emptyCells(writers.length);
+			xml.endRow();
+			rows++;
+			return;
+		}
+		int[] columnStyles = template.getColumnStyles();
+		for (int c = 0; c < writers.length; c++) {
+			xml.cell(c, columnStyles[c] + 1);
+			int length = writers[c].write(xml, data);
+			xml.endCell();
+			if (tracking) {
+				widths.track(c, length);
+			}
+		}
+		xml.endRow();
+		rows++;
+	}
+
+	private void writeContentTypes() {
+		xml.ascii("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+		xml.ascii("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+		xml.ascii("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+		xml.ascii("<Override PartName=\"/docProps/core.xml\" ContentType=\"application/vnd.openxmlformats-package.core-properties+xml\"/>");
+		xml.ascii("<Override PartName=\"/xl/workbook.xml\" "
+				+ "ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+		xml.ascii("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+		for (int i = 1; i <= sheetNames.size(); i++) {
+			xml.ascii("<Override PartName=\"/xl/worksheets/sheet");
+			xml.number(i);
+			xml.ascii(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+		}
+		if (strings != null) {
+			xml.ascii("<Override PartName=\"/xl/sharedStrings.xml\" "
+					+ "ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml\"/>");
+		}
+		xml.ascii("</Types>");
+	}
+
+	private void writeRootRelationships() {
+		xml.ascii("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+		xml.ascii("<Relationship Id=\"rId1\" Type=\"" + RELATIONSHIPS_NS + "/officeDocument\" Target=\"xl/workbook.xml\"/>");
+		xml.ascii("<Relationship Id=\"rId2\" Type=\"http://schemas.openxmlformats.org/package/2006/relationships/metadata/core-properties\" "
+				+ "Target=\"docProps/core.xml\"/>");
+		xml.ascii("</Relationships>");
+	}
+
+	private void writeCoreProperties() {
+		xml.ascii("<cp:coreProperties xmlns:cp=\"http://schemas.openxmlformats.org/package/2006/metadata/core-properties\" "
+				+ "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:dcterms=\"http://purl.org/dc/terms/\" "
+				+ "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
+		xml.ascii("<dcterms:created xsi:type=\"dcterms:W3CDTF\">");
+		xml.ascii(Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+		xml.ascii("</dcterms:created><dc:title>");
+		xml.text(config.getName().concat(".xlsx"));
+		xml.ascii("</dc:title></cp:coreProperties>");
+	}
+
+	private void writeWorkbook() {
+		xml.ascii("<workbook xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + RELATIONSHIPS_NS + "\">");
+		xml.ascii("<bookViews><workbookView activeTab=\"0\"/></bookViews><sheets>");
+		int sheet = 1;
+		for (String name : sheetNames) {
+			xml.ascii("<sheet name=\"");
+			xml.text(name);
+			xml.ascii("\" sheetId=\"");
+			xml.number(sheet);
+			xml.ascii("\" r:id=\"rId");
+			xml.number(sheet);
+			xml.ascii("\"/>");
+			sheet++;
+		}
+		xml.ascii("</sheets></workbook>");
+	}
+
+	private void writeWorkbookRelationships() {
+		xml.ascii("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+		for (int i = 1; i <= sheetNames.size(); i++) {
+			xml.ascii("<Relationship Id=\"rId");
+			xml.number(i);
+			xml.ascii("\" Type=\"" + RELATIONSHIPS_NS + "/worksheet\" Target=\"worksheets/sheet");
+			xml.number(i);
+			xml.ascii(".xml\"/>");
+		}
+		xml.ascii("<Relationship Id=\"rId");
+		xml.number(sheetNames.size() + 1L);
+		xml.ascii("\" Type=\"" + RELATIONSHIPS_NS + "/styles\" Target=\"styles.xml\"/>");
+		if (strings != null) {
+			xml.ascii("<Relationship Id=\"rId");
+			xml.number(sheetNames.size() + 2L);
+			xml.ascii("\" Type=\"" + RELATIONSHIPS_NS + "/sharedStrings\" Target=\"sharedStrings.xml\"/>");
+		}
+		xml.ascii("</Relationships>");
+	}
+
+	/**
+	 * Written last, once every sheet has added its strings.
+	 */
+	private void writeSharedStrings() {
+		xml.ascii("<sst xmlns=\"" + MAIN_NS + "\" count=\"");
+		xml.number(strings.count());
+		xml.ascii("\" uniqueCount=\"");
+		xml.number(strings.size());
+		xml.ascii("\">");
+		for (int i = 0; i < strings.size(); i++) {
+			xml.ascii("<si>");
+			xml.textElement(strings.get(i));
+			xml.ascii("</si>");
+		}
+		xml.ascii("</sst>");
+	}
+
+	/**
+	 * The styles of the template, each style i becoming cell format i + 1 and
+	 * each font i font i + 1, after the defaults of a new {@code XSSFWorkbook}.
+	 */
+	private void writeStyles() {
+		xml.ascii("<styleSheet xmlns=\"" + MAIN_NS + "\">");
+		Map<Short, String> formats = template.getDataFormats().getCustomFormats();
+		if (!formats.isEmpty()) {
+			xml.ascii("<numFmts count=\"");
+			xml.number(formats.size());
+			xml.ascii("\">");
+			formats.forEach((id, format) -> {
+				xml.ascii("<numFmt numFmtId=\"");
+				xml.number(id);
+				xml.ascii("\" formatCode=\"");
+				xml.text(format);
+				xml.ascii("\"/>");
+			});
+			xml.ascii("</numFmts>");
+		}
+		List<FontConfig> fonts = template.getFonts();
+		xml.ascii("<fonts count=\"");
+		xml.number(fonts.size() + 1L);
+		xml.ascii("\"><font><sz val=\"11\"/><color theme=\"1\"/><name val=\"Calibri\"/><family val=\"2\"/><scheme val=\"minor\"/></font>");
+		for (int i = 0; i < fonts.size(); i++) {
+			xml.ascii("<font><sz val=\"");
+			xml.number(fonts.get(i).getSize().orElse((short) 11));
+			xml.ascii("\"/>");
+			color("color", template.getFontColors().get(i));
+			xml.ascii("<name val=\"");
+			xml.text(fonts.get(i).getName().orElse("Calibri"));
+			xml.ascii("\"/><family val=\"2\"/></font>");
+		}
+		xml.ascii("</fonts>");
+		List<StyleConfig> styles = template.getStyles();
+		int[] fills = new int[styles.size()];
+		int fillCount = 2;
+		for (int i = 0; i < fills.length; i++) {
+			fills[i] = hasFill(i) ? fillCount++ : 0;
+		}
+		xml.ascii("<fills count=\"");
+		xml.number(fillCount);
+		xml.ascii("\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill>");
+		for (int i = 0; i < fills.length; i++) {
+			if (fills[i] > 0) {
+				xml.ascii("<fill><patternFill");
+				styles.get(i).getFillPattern().ifPresent(pattern -> {
+					xml.ascii(" patternType=\"");
+					xml.ascii(STPatternType.Enum.forInt(pattern.getCode() + 1).toString());
+					xml.ascii("\"");
+				});
+				xml.ascii(">");
+				color("fgColor", template.getFillColors().get(i));
+				xml.ascii("</patternFill></fill>");
+			}
+		}
+		xml.ascii("</fills>");
+		xml.ascii("<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>");
+		xml.ascii("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+		xml.ascii("<cellXfs count=\"");
+		xml.number(styles.size() + 1L);
+		xml.ascii("\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>");
+		for (int i = 0; i < styles.size(); i++) {
+			StyleConfig style = styles.get(i);
+			short format = template.getStyleFormats()[i];
+			int font = template.getStyleFonts()[i];
+			xml.ascii("<xf numFmtId=\"");
+			xml.number(Math.max(0, format));
+			xml.ascii("\" fontId=\"");
+			xml.number(font + 1L);
+			xml.ascii("\" fillId=\"");
+			xml.number(fills[i]);
+			xml.ascii("\" borderId=\"0\" xfId=\"0\"");
+			xml.ascii(format >= 0 ? " applyNumberFormat=\"1\"" : "");
+			xml.ascii(font >= 0 ? " applyFont=\"1\"" : "");
+			xml.ascii(fills[i] > 0 ? " applyFill=\"1\"" : "");
+			if (style.getHorizontalAlignment().isPresent() || style.getVerticalAlignment().isPresent()) {
+				xml.ascii(" applyAlignment=\"1\"><alignment");
+				style.getHorizontalAlignment().ifPresent(alignment -> {
+					xml.ascii(" horizontal=\"");
+					xml.ascii(STHorizontalAlignment.Enum.forInt(alignment.ordinal() + 1).toString());
+					xml.ascii("\"");
+				});
+				style.getVerticalAlignment().ifPresent(alignment -> {
+					xml.ascii(" vertical=\"");
+					xml.ascii(STVerticalAlignment.Enum.forInt(alignment.ordinal() + 1).toString());
+					xml.ascii("\"");
+				});
+				xml.ascii("/></xf>");
+			} else {
+				xml.ascii("/>");
+			}
+		}
+		xml.ascii("</cellXfs>");
+		xml.ascii("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+		xml.ascii("</styleSheet>");
+	}
+
+	private boolean hasFill(int style) {
+		return template.getStyles().get(style).getFillPattern().isPresent() || template.getFillColors().get(style) != null;
+	}
+
+	private void color(String element, byte[] rgb) {
+		if (rgb != null) {
+			xml.ascii("<");
+			xml.ascii(element);
+			xml.ascii(" rgb=\"FF");
+			for (byte b : rgb) {
+				xml.ascii(String.format("%02X", b & 0xFF));
+			}
+			xml.ascii("\"/>");
+		}
+	}
+
+	/**
+	 * The rows of a {@code FULL} sheet, held in the buffer of the writer up to
+	 * {@value #STAGE_IN_MEMORY} bytes, which is all a small export needs, then
+	 * moved to a spill file when the writer has a {@link WorkbookSpill} or to a
+	 * temp file otherwise. Only the file is gzipped.
+	 */
+	private final class Stage extends OutputStream {
+
+		private Path file;
+		private WorkbookSpill.SpillFile spilled;
+		private OutputStream out;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null && buffer.size() + len > STAGE_IN_MEMORY) {
+				OutputStream target;
+				if (spill != null) {
+					spilled = spill.create("workbook-sheet");
+					target = spilled;
+				} else {
+					file = TempFile.createTempFile("poi-workbook-sheet", ".xml").toPath();
+					target = Files.newOutputStream(file);
+				}
+				out = config.isCompressTempFiles() ? new GZIPOutputStream(target) : target;
+			}
+			if (out == null) {
+				buffer.write(b, off, len);
+			} else {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+		}
+
+		InputStream getInputStream() throws IOException {
+			if (out == null) {
+				return buffer.getInputStream();
+			}
+			InputStream in = spilled != null ? spilled.getInputStream() : Files.newInputStream(file);
+			return new SequenceInputStream(buffer.getInputStream(), config.isCompressTempFiles() ? new GZIPInputStream(in) : in);
+		}
+
+		void delete() throws IOException {
+			if (spilled != null) {
+				spilled.delete();
+			} else if (file != null) {
+				Files.deleteIfExists(file);
+			}
+			if (buffer.capacity() > STAGE_IN_MEMORY) {
+				buffer = new Buffer();
+			}
+		}
+
+	}
+
+	/**
+	 * Writes the values of the {@link RowExtractor} to the current row, filling
+	 * the columns it skips with empty cells, like the column writers do.
+	 */
+	private final class Values implements RowValues {
+
+		private final int[] styles;
+		private final String[] dataFormats;
+		private final int[] dateWidths;
+		private boolean tracking;
+		/** the column of the next cell to write */
+		private int next;
+
+		Values() {
+			List<ColumnConfig<T, ?>> columns = config.getColumns();
+			styles = new int[columns.size()];
+			dataFormats = new String[columns.size()];
+			dateWidths = new int[columns.size()];
+			for (int c = 0; c < styles.length; c++) {
+				StyleConfig style = columns.get(c).getStyle();
+				styles[c] = template.getColumnStyles()[c] + 1;
+				dataFormats[c] = style.getDataFormat().orElse(null);
+				dateWidths[c] = ColumnWidths.estimateDate(style.getDataFormat());
+			}
+		}
+
+		@Override
+		public void string(int column, String value) {
+			start(column);
+			xml.value(value);
+			end(column, ColumnWidths.estimate(value));
+		}
+
+		@Override
+		public void number(int column, double value) {
+			start(column);
+			xml.value(value);
+			end(column, ColumnWidths.estimate(value, dataFormats[column]));
+		}
+
+		@Override
+		public void date(int column, LocalDate value) {
+			start(column);
+			xml.value(CellWriters.serial(value));
+			end(column, dateWidths[column]);
+		}
+
+		@Override
+		public void datetime(int column, LocalDateTime value) {
+			start(column);
+			xml.value(CellWriters.serial(value));
+			end(column, dateWidths[column]);
+		}
+
+		@Override
+		public void bool(int column, boolean value) {
+			start(column);
+			xml.value(value);
+			end(column, ColumnWidths.estimate(value));
+		}
+
+		void emptyCells(int column) {
+			for (; next < column; next++) {
+				xml.cell(next, styles[next]);
+				xml.endCell();
+			}
+		}
+
+		private void start(int column) {
+			emptyCells(column);
+			xml.cell(column, styles[column]);
+		}
+
+		private void end(int column, int length) {
+			xml.endCell();
+			if (tracking) {
+				widths.track(column, length);
+			}
+			next = column + 1;
+		}
+
+	}
+
+	private static final class Buffer extends ByteArrayOutputStream {
+
+		int capacity() {
+			return buf.length;
+		}
+
+		InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+	}
+
+}
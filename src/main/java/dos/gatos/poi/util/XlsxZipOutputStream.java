@@ -0,0 +1,60 @@
+package dos.gatos.poi.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import dos.gatos.poi.util.WorkbookConfig.CompressionConfig;
+
+/**
+ * Zip stream that deflates every part of a workbook package at the level its
+ * {@link CompressionConfig} sets for it. POI reuses a
+ * {@link ZipArchiveOutputStream} it is given to write a package, and finishes
+ * it without closing the underlying stream.
+ */
+final class XlsxZipOutputStream extends ZipArchiveOutputStream {
+
+	private final CompressionConfig compression;
+
+	XlsxZipOutputStream(OutputStream out, CompressionConfig compression) {
+		super(out);
+		this.compression = compression;
+	}
+
+	/**
+	 * Writes the workbook with the compression it was generated with, if any.
+	 * {@code POIXMLDocument.write} is final, so an {@link CompressedXSSFWorkbook}
+	 * only picks it up when written through here, while a
+	 * {@link CompressedSXSSFWorkbook} always does.
+	 */
+	static void write(Workbook workbook, OutputStream out) throws IOException {
+		if (workbook instanceof CompressedXSSFWorkbook) {
+			workbook.write(new XlsxZipOutputStream(out, ((CompressedXSSFWorkbook) workbook).getCompression()));
+		} else {
+			workbook.write(out);
+		}
+	}
+
+	/**
+	 * Releases the native memory of the deflater once the zip is finished or
+	 * abandoned, rather than when it is garbage collected, without closing the
+	 * underlying stream as {@link #close} does.
+	 */
+	void end() {
+		def.end();
+	}
+
+	@Override
+	public void putArchiveEntry(ArchiveEntry archiveEntry) throws IOException {
+		setLevel(isLarge(archiveEntry.getName()) || !compression.isStoreSmallParts() ? compression.getLevel() : 0);
+		super.putArchiveEntry(archiveEntry);
+	}
+
+	private static boolean isLarge(String name) {
+		return name.startsWith("xl/worksheets/") && name.endsWith(".xml") || name.equals("xl/sharedStrings.xml");
+	}
+
+}
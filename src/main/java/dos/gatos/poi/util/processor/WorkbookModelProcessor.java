@@ -0,0 +1,315 @@
+package dos.gatos.poi.util.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+
+import dos.gatos.poi.util.WorkbookColumn;
+import dos.gatos.poi.util.WorkbookModel;
+
+/**
+ * Generates the {@code <Model>Workbook} class of each {@link WorkbookModel},
+ * see there. The source is written as plain text, the generated class only
+ * refers to its model and to {@code WorkbookConfig}, by qualified names.
+ * <p>
+ * It is compiled before the rest of the sources by its own execution of the
+ * compiler plugin, and found by the main compilation through its service
+ * file.
+ */
+@SupportedAnnotationTypes("dos.gatos.poi.util.WorkbookModel")
+public class WorkbookModelProcessor extends AbstractProcessor {
+
+	private static final String CONFIG = "dos.gatos.poi.util.WorkbookConfig";
+	private static final Set<String> LOMBOK_PRIVATE_FIELDS = Set.of("lombok.Value", "lombok.experimental.FieldDefaults");
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (TypeElement model : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(WorkbookModel.class))) {
+			List<Column> columns = columns(model);
+			if (columns == null) {
+				continue;
+			}
+			try {
+				generate(model, columns);
+			} catch (IOException e) {
+				error(model, "cannot write the workbook of " + model.getQualifiedName() + ": " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the columns in order, null if any is invalid
+	 */
+	private List<Column> columns(TypeElement model) {
+		if (model.getKind() != ElementKind.CLASS || model.getModifiers().contains(Modifier.PRIVATE)
+				|| model.getNestingKind() == NestingKind.MEMBER && !model.getModifiers().contains(Modifier.STATIC)) {
+			error(model, "@WorkbookModel needs a top level or static nested class");
+			return null;
+		}
+		List<Column> columns = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		boolean valid = true;
+		for (VariableElement field : ElementFilter.fieldsIn(model.getEnclosedElements())) {
+			WorkbookColumn annotation = field.getAnnotation(WorkbookColumn.class);
+			if (annotation == null) {
+				continue;
+			}
+			Column column = new Column(field, annotation, columns.size());
+			if (column.kind == null) {
+				error(field, "unsupported column type " + field.asType());
+				valid = false;
+			} else if (field.getModifiers().contains(Modifier.STATIC)) {
+				error(field, "@WorkbookColumn on a static field");
+				valid = false;
+			} else if (!names.add(column.name)) {
+				error(field, "duplicate column name '" + column.name + "'");
+				valid = false;
+			}
+			column.access = access(model, field, column.kind == Kind.FLAG);
+			columns.add(column);
+		}
+		if (columns.isEmpty()) {
+			error(model, "@WorkbookModel without any @WorkbookColumn field");
+			return null;
+		}
+		columns.sort(Comparator.<Column> comparingInt(column -> column.annotation.order()).thenComparingInt(column -> column.index));
+		return valid ? columns : null;
+	}
+
+	/**
+	 * The field itself unless private, its getter otherwise, which Lombok may
+	 * not have generated yet. Lombok has not made the fields of a
+	 * {@code @Value} class private yet either.
+	 */
+	private static String access(TypeElement model, VariableElement field, boolean flag) {
+		String name = field.getSimpleName().toString();
+		if (!field.getModifiers().contains(Modifier.PRIVATE) && model.getAnnotationMirrors().stream()
+				.map(annotation -> annotation.getAnnotationType().toString()).noneMatch(LOMBOK_PRIVATE_FIELDS::contains)) {
+			return name;
+		}
+		String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (ExecutableElement method : ElementFilter.methodsIn(model.getEnclosedElements())) {
+			String methodName = method.getSimpleName().toString();
+			if (method.getParameters().isEmpty() && (methodName.equals("get" + suffix) || methodName.equals("is" + suffix))) {
+				return methodName + "()";
+			}
+		}
+		return (flag ? "is" : "get") + suffix + "()";
+	}
+
+	private void generate(TypeElement model, List<Column> columns) throws IOException {
+		String pkg = processingEnv.getElementUtils().getPackageOf(model).getQualifiedName().toString();
+		String simpleName = generatedName(model);
+		String type = model.getQualifiedName().toString();
+		WorkbookModel annotation = model.getAnnotation(WorkbookModel.class);
+		String name = annotation.name().isEmpty() ? model.getSimpleName().toString() : annotation.name();
+		String sheetName = annotation.sheetName().isEmpty() ? name : annotation.sheetName();
+
+		StringBuilder out = new StringBuilder();
+		if (!pkg.isEmpty()) {
+			out.append("package ").append(pkg).append(";\n\n");
+		}
+		out.append("/**\n * The workbook of {@link ").append(type).append("}, generated from its {@code WorkbookColumn} fields.\n */\n");
+		out.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+		out.append(model.getModifiers().contains(Modifier.PUBLIC) ? "public " : "").append("final class ").append(simpleName).append(" {\n\n");
+		out.append("\tprivate ").append(simpleName).append("() {\n\t}\n\n");
+		out.append("\t/**\n\t * @return a builder with the columns and row extractor of the model, for further options\n\t */\n");
+		out.append("\tpublic static ").append(CONFIG).append(".WorkbookConfigBuilder<").append(type).append("> builder() {\n");
+		out.append("\t\t").append(CONFIG).append(".WorkbookConfigBuilder<").append(type).append("> builder = ").append(CONFIG)
+				.append(".builder(").append(type).append(".class);\n");
+		out.append("\t\tbuilder.name(").append(literal(name)).append(").sheetName(").append(literal(sheetName))
+				.append(").defaultHeaderStyle().defaultBodyStyle();\n");
+		for (Column column : columns) {
+			out.append("\t\tbuilder.").append(column.kind.method).append("(").append(literal(column.name)).append(", ");
+			if (column.access.endsWith("()")) {
+				out.append(type).append("::").append(column.access, 0, column.access.length() - 2);
+			} else {
+				out.append("data -> data.").append(column.access);
+			}
+			String style = style(column.annotation);
+			if (style != null) {
+				out.append(", ").append(style);
+			}
+			out.append(");\n");
+		}
+		out.append("\t\tbuilder.rowExtractor(Extractor.INSTANCE);\n");
+		out.append("\t\treturn builder;\n\t}\n\n");
+		out.append("\tprivate static final class Extractor implements ").append(CONFIG).append(".RowExtractor<").append(type).append("> {\n\n");
+		out.append("\t\tstatic final Extractor INSTANCE = new Extractor();\n\n");
+		out.append("\t\t@Override\n\t\tpublic void extract(").append(type).append(" data, ").append(CONFIG).append(".RowValues values) {\n");
+		for (int c = 0; c < columns.size(); c++) {
+			Column column = columns.get(c);
+			String value = "data." + column.access;
+			if (column.field.asType().getKind().isPrimitive()) {
+				out.append("\t\t\tvalues.").append(column.kind.value).append("(").append(c).append(", ").append(value).append(");\n");
+			} else {
+				String variable = "value" + c;
+				out.append("\t\t\t").append(column.field.asType()).append(" ").append(variable).append(" = ").append(value).append(";\n");
+				out.append("\t\t\tif (").append(variable).append(" != null) {\n");
+				out.append("\t\t\t\tvalues.").append(column.kind.value).append("(").append(c).append(", ").append(variable)
+						.append(column.kind == Kind.NUMBER ? ".doubleValue()" : "").append(");\n");
+				out.append("\t\t\t}\n");
+			}
+		}
+		out.append("\t\t}\n\n\t}\n\n}\n");
+
+		try (Writer writer = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? simpleName : pkg + "." + simpleName, model).openWriter()) {
+			writer.write(out.toString());
+		}
+	}
+
+	private static String generatedName(TypeElement model) {
+		StringBuilder name = new StringBuilder(model.getSimpleName()).append("Workbook");
+		for (Element enclosing = model.getEnclosingElement(); enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+			name.insert(0, '_').insert(0, enclosing.getSimpleName());
+		}
+		return name.toString();
+	}
+
+	private static String style(WorkbookColumn column) {
+		StringBuilder style = new StringBuilder();
+		if (!column.format().isEmpty()) {
+			style.append(".dataFormat(").append(literal(column.format())).append(")");
+		}
+		if (column.horizontalAlignment() != HorizontalAlignment.GENERAL) {
+			style.append(".horizontalAlignment(org.apache.poi.ss.usermodel.HorizontalAlignment.").append(column.horizontalAlignment().name())
+					.append(")");
+		}
+		if (column.fillColor() >= 0) {
+			style.append(".fillPattern(org.apache.poi.ss.usermodel.FillPatternType.SOLID_FOREGROUND).fillColor(0x")
+					.append(Integer.toHexString(column.fillColor())).append(")");
+		}
+		if (column.fontColor() >= 0) {
+			style.append(".fontConfig(").append(CONFIG).append(".FontConfig.builder().color(0x").append(Integer.toHexString(column.fontColor()))
+					.append(").build())");
+		}
+		return style.length() == 0 ? null : CONFIG + ".StyleConfig.builder()" + style + ".build()";
+	}
+
+	private static String literal(String value) {
+		StringBuilder literal = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				literal.append('\\').append(c);
+			} else if (c < ' ') {
+				// not a unicode escape, javac would translate it before the literal is parsed
+				literal.append(String.format("\\%03o", (int) c));
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.append('"').toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private enum Kind {
+
+		STRING("stringCol", "string"),
+		NUMBER("numberCol", "number"),
+		LONG("longCol", "number"),
+		DOUBLE("doubleCol", "number"),
+		BOOLEAN("booleanCol", "bool"),
+		FLAG("flagCol", "bool"),
+		DATE("dateCol", "date"),
+		DATETIME("datetimeCol", "datetime");
+
+		/** the builder method registering the column */
+		final String method;
+		/** the {@code RowValues} method taking its values */
+		final String value;
+
+		Kind(String method, String value) {
+			this.method = method;
+			this.value = value;
+		}
+
+	}
+
+	private final class Column {
+
+		final VariableElement field;
+		final WorkbookColumn annotation;
+		final int index;
+		final String name;
+		final Kind kind;
+		String access;
+
+		Column(VariableElement field, WorkbookColumn annotation, int index) {
+			this.field = field;
+			this.annotation = annotation;
+			this.index = index;
+			this.name = annotation.name().isEmpty() ? field.getSimpleName().toString() : annotation.name();
+			this.kind = kind(field.asType());
+		}
+
+		private Kind kind(TypeMirror type) {
+			switch (type.getKind()) {
+			case BYTE:
+			case SHORT:
+			case INT:
+			case LONG:
+				return Kind.LONG;
+			case FLOAT:
+			case DOUBLE:
+				return Kind.DOUBLE;
+			case BOOLEAN:
+				return Kind.FLAG;
+			case DECLARED:
+				break;
+			default:
+				return null;
+			}
+			if (is(type, "java.lang.String")) {
+				return Kind.STRING;
+			}
+			if (is(type, "java.lang.Boolean")) {
+				return Kind.BOOLEAN;
+			}
+			if (is(type, "java.time.LocalDate")) {
+				return Kind.DATE;
+			}
+			if (is(type, "java.time.LocalDateTime")) {
+				return Kind.DATETIME;
+			}
+			TypeMirror number = processingEnv.getElementUtils().getTypeElement("java.lang.Number").asType();
+			return processingEnv.getTypeUtils().isAssignable(type, number) ? Kind.NUMBER : null;
+		}
+
+		private boolean is(TypeMirror type, String name) {
+			return processingEnv.getTypeUtils().isSameType(type, processingEnv.getElementUtils().getTypeElement(name).asType());
+		}
+
+	}
+
+}
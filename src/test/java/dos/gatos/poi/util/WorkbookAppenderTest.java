@@ -0,0 +1,87 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+class WorkbookAppenderTest {
+
+	private static final WorkbookConfig<Integer> CONFIG = WorkbookConfig.builder(Integer.class).name("appended").sheetName("Rows")
+			.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).stringCol("name", i -> "row " + i).build();
+
+	@Test
+	void appendingToAWrittenWorkbookSplicesTheSheet() throws IOException {
+		ByteArrayOutputStream prior = new ByteArrayOutputStream();
+		WorkbookWriter.write(CONFIG, rows(0, 50000), prior);
+
+		byte[] appended = append(prior.toByteArray(), rows(50000, 50100));
+
+		assertEntriesAndCrcs(appended);
+		assertRows(appended, 50100);
+	}
+
+	@Test
+	void appendingToAGeneratedWorkbookExtendsItsDimension() throws IOException {
+		ByteArrayOutputStream prior = new ByteArrayOutputStream();
+		try (XSSFWorkbook workbook = WorkbookGenerator.of(CONFIG, rows(0, 1000))) {
+			XlsxZipOutputStream.write(workbook, prior);
+		}
+
+		byte[] appended = append(prior.toByteArray(), rows(1000, 1500));
+
+		assertEntriesAndCrcs(appended);
+		assertRows(appended, 1500);
+	}
+
+	private static byte[] append(byte[] prior, List<Integer> rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WorkbookAppender.append(CONFIG, prior, rows.stream(), out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads every entry through {@link ZipInputStream}, which checks the sizes
+	 * and CRC of each, and checks the CRC again against the inflated bytes.
+	 */
+	private static void assertEntriesAndCrcs(byte[] xlsx) throws IOException {
+		Set<String> names = new HashSet<>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(xlsx))) {
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+				CRC32 crc = new CRC32();
+				crc.update(zip.readAllBytes());
+				assertThat(entry.getCrc()).as(entry.getName()).isEqualTo(crc.getValue());
+				assertThat(names.add(entry.getName())).as(entry.getName()).isTrue();
+			}
+		}
+		assertThat(names).contains("xl/workbook.xml", "xl/worksheets/sheet1.xml", "[Content_Types].xml");
+	}
+
+	private static void assertRows(byte[] xlsx, int rows) throws IOException {
+		try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(xlsx))) {
+			Sheet sheet = workbook.getSheet("Rows");
+			assertThat(sheet.getLastRowNum()).isEqualTo(rows);
+			assertThat(sheet.getRow(1).getCell(1).getStringCellValue()).isEqualTo("row 0");
+			assertThat(sheet.getRow(rows).getCell(0).getNumericCellValue()).isEqualTo(rows - 1);
+			assertThat(sheet.getRow(rows).getCell(1).getStringCellValue()).isEqualTo("row " + (rows - 1));
+		}
+	}
+
+	private static List<Integer> rows(int from, int to) {
+		return IntStream.range(from, to).boxed().collect(Collectors.toList());
+	}
+
+}
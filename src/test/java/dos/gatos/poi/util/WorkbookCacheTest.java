@@ -0,0 +1,126 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorkbookCacheTest {
+
+	private static final WorkbookConfig<Integer> CONFIG = WorkbookConfig.builder(Integer.class).name("cached").sheetName("Rows")
+			.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).stringCol("name", i -> "row " + i).build();
+	private static final List<Integer> ROWS = IntStream.range(0, 5000).boxed().collect(Collectors.toList());
+
+	@TempDir
+	Path spill;
+
+	@Test
+	void configsOfTheSameNameGetTheirOwnEtag() {
+		WorkbookConfig<Integer> more = WorkbookConfig.builder(Integer.class).name("cached").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).stringCol("name", i -> "row " + i)
+				.stringCol("label", i -> "#" + i).build();
+		WorkbookCache cache = new WorkbookCache(Long.MAX_VALUE);
+
+		WorkbookBytes cached = cache.get(CONFIG, "1", () -> WorkbookGenerator.of(CONFIG, ROWS));
+		WorkbookBytes other = cache.get(more, "1", () -> WorkbookGenerator.of(more, ROWS));
+
+		assertThat(other.getEtag()).isNotEqualTo(cached.getEtag());
+		assertThat(cache.get(CONFIG, "1", () -> {
+			throw new AssertionError("cached");
+		}).getEtag()).isEqualTo(cached.getEtag());
+	}
+
+	@Test
+	void invalidatingKeepsTheSpillFileUntilTheCopyInProgressIsDone() throws Exception {
+		WorkbookCache cache = new WorkbookCache(Long.MAX_VALUE, 0, spill, Long.MAX_VALUE);
+		cache.get(CONFIG, "1", () -> WorkbookGenerator.of(CONFIG, ROWS));
+		WorkbookBytes cached = cache.get(CONFIG, "1", () -> {
+			throw new AssertionError("cached");
+		});
+		assertThat(cached.isSpilled()).isTrue();
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch resume = new CountDownLatch(1);
+		ByteArrayOutputStream copied = new ByteArrayOutputStream();
+		OutputStream paused = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				copied.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				started.countDown();
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				copied.write(b, off, len);
+			}
+		};
+		CompletableFuture<Void> copy = CompletableFuture.runAsync(() -> {
+			try {
+				cached.writeTo(paused);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+		cache.invalidate(CONFIG);
+		assertThat(cache.getSpillBytes()).isZero();
+		assertThat(spillFiles()).hasSize(1);
+
+		resume.countDown();
+		copy.get(10, TimeUnit.SECONDS);
+		assertThat(copied.size()).isEqualTo(cached.getSize());
+		assertThat(spillFiles()).isEmpty();
+		assertThatThrownBy(() -> cached.writeTo(OutputStream.nullOutputStream())).isInstanceOf(NoSuchFileException.class);
+	}
+
+	@Test
+	void evictingAnIdleEntryDeletesItsSpillFile() throws Exception {
+		WorkbookCache cache = new WorkbookCache(Long.MAX_VALUE, 0, spill, 1);
+		WorkbookBytes generated = cache.get(CONFIG, "1", () -> WorkbookGenerator.of(CONFIG, ROWS));
+
+		assertThat(generated.isSpilled()).isFalse();
+		assertThat(cache.getSpillBytes()).isZero();
+		assertThat(spillFiles()).isEmpty();
+	}
+
+	@Test
+	void releasingTwiceDeletesOnce() throws Exception {
+		Path file = Files.write(spill.resolve("workbook.xlsx"), new byte[] { 1, 2, 3 });
+		WorkbookBytes bytes = new WorkbookBytes("workbook.xlsx", "\"1\"", 3, null, file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bytes.writeTo(out);
+
+		bytes.release();
+		bytes.release();
+		assertThat(out.toByteArray()).containsExactly(1, 2, 3);
+		assertThat(file).doesNotExist();
+	}
+
+	private List<Path> spillFiles() throws IOException {
+		try (var files = Files.list(spill)) {
+			return files.collect(Collectors.toList());
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+
+class WorkbookFluxTest {
+
+	private static final WorkbookConfig<Integer> CONFIG = WorkbookConfig.builder(Integer.class).name("reactive").sheetName("Rows")
+			.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).stringCol("name", i -> "row " + i).build();
+	private static final List<Integer> ROWS = IntStream.range(0, 20000).boxed().collect(Collectors.toList());
+
+	@Test
+	void workbookIsOpenedOffTheSubscribingThread() {
+		String subscriber = Thread.currentThread().getName();
+
+		String opener = WorkbookFlux.of(CONFIG, Flux.fromIterable(ROWS), new DefaultDataBufferFactory())
+				.map(buffer -> {
+					DataBufferUtils.release(buffer);
+					return Thread.currentThread().getName();
+				})
+				.blockFirst();
+
+		assertThat(opener).isNotEqualTo(subscriber).startsWith("boundedElastic");
+	}
+
+	@Test
+	void cancellingWhileRowsAreEncodedDisposesOnceTheBatchIsDone(@TempDir Path directory) throws Exception {
+		WorkbookSpill spill = new WorkbookSpill(directory, 64 * 1024, 64 * 1024 * 1024);
+		CountDownLatch encoding = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		WorkbookConfig<Integer> config = WorkbookConfig.builder(Integer.class).name("cancelled").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> {
+					if (i == 15000) {
+						encoding.countDown();
+						await(cancelled);
+					}
+					return i;
+				}).stringCol("name", i -> "row " + i).build();
+		List<Throwable> dropped = new CopyOnWriteArrayList<>();
+		Hooks.onErrorDropped(dropped::add);
+		try {
+			Disposable download = WorkbookFlux.of(config, config.getCompression(), spill, Flux.fromIterable(ROWS), new DefaultDataBufferFactory())
+					.subscribe(DataBufferUtils::release, dropped::add);
+			assertThat(encoding.await(10, TimeUnit.SECONDS)).isTrue();
+
+			download.dispose();
+
+			assertThat(spill.getUsed()).isPositive();
+			cancelled.countDown();
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); spill.getUsed() > 0 && System.nanoTime() < deadline;) {
+				Thread.sleep(10);
+			}
+			assertThat(spill.getUsed()).isZero();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(spill.getDirectory(), "*.spill")) {
+				assertThat(files).isEmpty();
+			}
+			assertThat(dropped).isEmpty();
+		} finally {
+			cancelled.countDown();
+			Hooks.resetOnErrorDropped();
+		}
+	}
+
+	@Test
+	void buffersMakeUpTheWorkbook() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (DataBuffer buffer : WorkbookFlux.of(CONFIG, Flux.fromIterable(ROWS), new DefaultDataBufferFactory()).toIterable()) {
+			byte[] bytes = new byte[buffer.readableByteCount()];
+			buffer.read(bytes);
+			DataBufferUtils.release(buffer);
+			out.write(bytes);
+		}
+
+		try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+			assertThat(workbook.getSheet("Rows").getLastRowNum()).isEqualTo(ROWS.size());
+			assertThat(workbook.getSheet("Rows").getRow(ROWS.size()).getCell(1).getStringCellValue()).isEqualTo("row 19999");
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dos.gatos.poi.util.WorkbookJob.Priority;
+import dos.gatos.poi.util.WorkbookJob.Status;
+
+class WorkbookJobsTest {
+
+	private static final WorkbookConfig<Integer> CONFIG = WorkbookConfig.builder(Integer.class).name("job").sheetName("Rows")
+			.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).build();
+
+	@TempDir
+	Path directory;
+	private WorkbookJobs jobs;
+
+	@AfterEach
+	void close() {
+		jobs.close();
+	}
+
+	@Test
+	void jobCancelledWhileRunningEndsCancelledEvenIfItIsWrittenAnyway() throws Exception {
+		jobs = new WorkbookJobs(directory, 1, 1, 10, Duration.ofMinutes(1));
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean resume = new AtomicBoolean();
+		WorkbookJob job = jobs.submit("tenant", Priority.NORMAL, CONFIG, () -> IntStream.range(0, 10).boxed().peek(i -> {
+			started.countDown();
+			// swallows the interrupt, as some drivers do, so the writer never sees it
+			while (!resume.get()) {
+				Thread.onSpinWait();
+			}
+			Thread.interrupted();
+		}));
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+		assertThat(jobs.cancel(job.getId())).isTrue();
+		resume.set(true);
+		await(() -> job.getFinished() != null);
+
+		assertThat(job.getStatus()).isEqualTo(Status.CANCELLED);
+		assertThat(job.getResult()).isNull();
+		assertThat(files()).isEmpty();
+	}
+
+	@Test
+	void finishedJobIsNotCancelled() throws Exception {
+		jobs = new WorkbookJobs(directory, 1, 1, 10, Duration.ofMinutes(1));
+		WorkbookJob job = jobs.submit("tenant", Priority.NORMAL, CONFIG, () -> IntStream.range(0, 10).boxed());
+		await(() -> job.getFinished() != null);
+
+		assertThat(jobs.cancel(job.getId())).isFalse();
+		assertThat(job.getStatus()).isEqualTo(Status.DONE);
+		assertThat(files()).hasSize(1);
+	}
+
+	@Test
+	void expiringDuringADownloadDeletesTheWorkbookOnceDownloaded() throws Exception {
+		jobs = new WorkbookJobs(directory, 1, 1, 10, Duration.ofSeconds(1));
+		WorkbookJob job = jobs.submit("tenant", Priority.NORMAL, CONFIG, () -> IntStream.range(0, 20000).boxed());
+		await(() -> job.getFinished() != null);
+		assertThat(job.getStatus()).isEqualTo(Status.DONE);
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch resume = new CountDownLatch(1);
+		ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+		OutputStream paused = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				downloaded.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				started.countDown();
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				downloaded.write(b, off, len);
+			}
+		};
+		CompletableFuture<Void> download = CompletableFuture.runAsync(() -> {
+			try {
+				job.getResult().writeTo(paused);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+		await(() -> jobs.get(job.getId()).isEmpty());
+		assertThat(files()).hasSize(1);
+
+		resume.countDown();
+		download.get(10, TimeUnit.SECONDS);
+		assertThat(downloaded.size()).isEqualTo(job.getSize());
+		assertThat(files()).isEmpty();
+	}
+
+	private List<Path> files() throws IOException {
+		try (var files = Files.list(directory)) {
+			return files.collect(Collectors.toList());
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertThat(System.nanoTime()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+
+}
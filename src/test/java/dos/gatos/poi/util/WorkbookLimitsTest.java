@@ -0,0 +1,184 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dos.gatos.poi.util.WorkbookConfig.LimitsConfig;
+import dos.gatos.poi.util.WorkbookLimitException.Limit;
+
+class WorkbookLimitsTest {
+
+	@TempDir
+	Path directory;
+
+	@AfterEach
+	void clearInterrupt() {
+		Thread.interrupted();
+	}
+
+	@Test
+	void writerStopsPastTheRows() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxRows(100L).build());
+
+		assertThatThrownBy(() -> WorkbookWriter.write(config, rows(1000), OutputStream.nullOutputStream()))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> {
+					assertThat(e.getLimit()).isEqualTo(Limit.ROWS);
+					assertThat(e.getWorkbook()).isEqualTo("limited");
+				});
+	}
+
+	@Test
+	void writerStopsPastTheCells() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxCells(150L).build());
+
+		assertThatThrownBy(() -> WorkbookWriter.write(config, rows(1000), OutputStream.nullOutputStream()))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> assertThat(e.getLimit()).isEqualTo(Limit.CELLS));
+	}
+
+	@Test
+	void writerStopsPastTheBytes() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxBytes(10_000L).build());
+
+		assertThatThrownBy(() -> WorkbookWriter.write(config, rows(100_000), OutputStream.nullOutputStream()))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> assertThat(e.getLimit()).isEqualTo(Limit.BYTES));
+	}
+
+	@Test
+	void writerStopsPastTheTimeout() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().timeout(Duration.ofMillis(50)).build());
+		Stream<Integer> slow = rows(10_000).peek(row -> {
+			if (row % WorkbookLimits.CHECK_INTERVAL == 0) {
+				sleep(20);
+			}
+		});
+
+		assertThatThrownBy(() -> WorkbookWriter.write(config, slow, OutputStream.nullOutputStream()))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> assertThat(e.getLimit()).isEqualTo(Limit.TIMEOUT));
+	}
+
+	@Test
+	void generatorStopsPastTheRows() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxRows(100L).build());
+
+		assertThatThrownBy(() -> WorkbookGenerator.of(config, rows(1000)))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> assertThat(e.getLimit()).isEqualTo(Limit.ROWS));
+	}
+
+	@Test
+	void concurrentSheetsStopPastTheBytes() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxBytes(100_000L).build());
+
+		assertThatThrownBy(() -> WorkbookGenerator.streaming(config, Map.of("a", rows(100_000)::iterator, "b", rows(100_000)::iterator)))
+				.isInstanceOfSatisfying(WorkbookLimitException.class, e -> assertThat(e.getLimit()).isEqualTo(Limit.BYTES));
+	}
+
+	@Test
+	void interruptingTheGeneratorStopsItsConcurrentSheets() throws Exception {
+		WorkbookConfig<Integer> config = config(LimitsConfig.NONE);
+		AtomicInteger generated = new AtomicInteger();
+		Iterable<Integer> slow = () -> rows(1_000_000).peek(row -> {
+			if (generated.incrementAndGet() % WorkbookLimits.CHECK_INTERVAL == 0) {
+				sleep(1);
+			}
+		}).iterator();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<?> generation = executor.submit(() -> WorkbookGenerator.streaming(config, Map.of("a", slow, "b", slow), executor));
+			while (generated.get() < 10_000) {
+				Thread.sleep(1);
+			}
+
+			generation.cancel(true);
+
+			executor.shutdown();
+			assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+			assertThat(generated.get()).isLessThan(1_000_000);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void failingSheetStopsTheOtherSheets() {
+		WorkbookConfig<Integer> config = config(LimitsConfig.NONE);
+		AtomicInteger generated = new AtomicInteger();
+		Iterable<Integer> failing = () -> rows(1000).peek(row -> {
+			if (row == 999) {
+				throw new IllegalStateException("row 999");
+			}
+		}).iterator();
+		Iterable<Integer> slow = () -> rows(1_000_000).peek(row -> {
+			if (generated.incrementAndGet() % WorkbookLimits.CHECK_INTERVAL == 0) {
+				sleep(1);
+			}
+		}).iterator();
+
+		assertThatThrownBy(() -> WorkbookGenerator.streaming(config, Map.of("failing", failing, "slow", slow)))
+				.isInstanceOf(IllegalStateException.class).hasMessage("row 999");
+		assertThat(generated.get()).isLessThan(1_000_000);
+	}
+
+	@Test
+	void rowsWithinTheLimitsAreWritten() throws IOException {
+		WorkbookConfig<Integer> config = config(LimitsConfig.builder().maxRows(1000L).maxCells(2000L).build());
+
+		WorkbookWriter.write(config, rows(1000), OutputStream.nullOutputStream());
+	}
+
+	@Test
+	void interruptedWriterIsCancelledAndDeletesItsStagedRows() throws IOException {
+		WorkbookConfig<Integer> config = config(LimitsConfig.NONE);
+		WorkbookSpill spill = new WorkbookSpill(directory, 64 * 1024, 64 * 1024 * 1024);
+		Stream<Integer> interrupted = rows(100_000).peek(row -> {
+			if (row == 50_000) {
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		assertThatThrownBy(() -> WorkbookWriter.write(config, config.getCompression(), spill, interrupted.spliterator(),
+				OutputStream.nullOutputStream())).isInstanceOf(CancellationException.class);
+
+		assertThat(spill.getUsed()).isZero();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(spill.getDirectory(), "*.spill")) {
+			assertThat(files).isEmpty();
+		}
+	}
+
+	private static WorkbookConfig<Integer> config(LimitsConfig limits) {
+		return WorkbookConfig.builder(Integer.class).name("limited").sheetName("Rows").defaultHeaderStyle().defaultBodyStyle()
+				.limits(limits).longCol("id", i -> i).stringCol("name", i -> "row " + i).build();
+	}
+
+	private static Stream<Integer> rows(int count) {
+		return IntStream.range(0, count).boxed();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.beans.ConstructorProperties;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+class WorkbookReaderTest {
+
+	@Test
+	void cellsOfUnboundColumnsAreIgnored() throws IOException {
+		WorkbookConfig<Bean> config = WorkbookConfig.builder(Bean.class).name("beans").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle()
+				.longCol("id", Bean::getId).stringCol("name", Bean::getName).stringCol("label", bean -> "#" + bean.getId()).build();
+		byte[] xlsx = workbook(sheet -> {
+			Row row = sheet.createRow(1);
+			row.createCell(0).setCellValue(1);
+			row.createCell(1).setCellValue("one");
+			row.createCell(2).setCellErrorValue(FormulaError.DIV0.getCode());
+		}, "id", "name", "label");
+
+		try (WorkbookReader<Bean> reader = WorkbookReader.open(config, new ByteArrayInputStream(xlsx));
+				Stream<Bean> rows = reader.rows()) {
+			List<Bean> beans = rows.collect(Collectors.toList());
+			assertThat(beans).hasSize(1);
+			assertThat(beans.get(0).getId()).isEqualTo(1L);
+			assertThat(beans.get(0).getName()).isEqualTo("one");
+			assertThat(reader.getErrorCount()).isZero();
+		}
+	}
+
+	@Test
+	void constructorParametersAreBoundByName() throws IOException {
+		WorkbookConfig<Named> config = WorkbookConfig.builder(Named.class).name("named").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle()
+				.longCol("ID", named -> named.id).stringCol("Name", named -> named.name).build();
+		byte[] xlsx = workbook(sheet -> {
+			Row row = sheet.createRow(1);
+			row.createCell(0).setCellValue("two");
+			row.createCell(1).setCellValue(2);
+		}, "Name", "ID");
+
+		try (WorkbookReader<Named> reader = WorkbookReader.open(config, new ByteArrayInputStream(xlsx));
+				Stream<Named> rows = reader.rows()) {
+			List<Named> named = rows.collect(Collectors.toList());
+			assertThat(reader.getErrors()).isEmpty();
+			assertThat(named).hasSize(1);
+			assertThat(named.get(0).id).isEqualTo(2L);
+			assertThat(named.get(0).name).isEqualTo("two");
+		}
+	}
+
+	@Test
+	void constructorWithoutAParameterPerColumnNameIsRejected() throws IOException {
+		WorkbookConfig<Named> config = WorkbookConfig.builder(Named.class).name("named").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle()
+				.longCol("Key", named -> named.id).stringCol("Name", named -> named.name).build();
+		byte[] xlsx = workbook(sheet -> {
+		}, "Key", "Name");
+
+		assertThatThrownBy(() -> WorkbookReader.open(config, new ByteArrayInputStream(xlsx)))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("no parameter named after column Key");
+	}
+
+	private static byte[] workbook(Consumer<Sheet> rows, String... header) throws IOException {
+		try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+			Sheet sheet = workbook.createSheet("Rows");
+			Row row = sheet.createRow(0);
+			for (int c = 0; c < header.length; c++) {
+				row.createCell(c).setCellValue(header[c]);
+			}
+			rows.accept(sheet);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			workbook.write(out);
+			return out.toByteArray();
+		}
+	}
+
+	public static class Bean {
+
+		private Long id;
+		private String name;
+
+		public Long getId() {
+			return id;
+		}
+
+		public void setId(Long id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+	}
+
+	public static class Named {
+
+		final String name;
+		final long id;
+
+		@ConstructorProperties({ "name", "id" })
+		public Named(String name, long id) {
+			this.name = name;
+			this.id = id;
+		}
+
+	}
+
+}
@@ -0,0 +1,41 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class WorkbookRegistryTest {
+
+	private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+	@AfterEach
+	void removeMeters() {
+		Metrics.removeRegistry(meters);
+	}
+
+	@Test
+	void warmUpIsLeftOutOfTheMetrics() throws IOException {
+		WorkbookConfig<Integer> config = WorkbookConfig.builder(Integer.class).name("warmed").sheetName("Rows")
+				.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).build();
+		Metrics.addRegistry(meters);
+		WorkbookRegistry registry = new WorkbookRegistry(List.of(config));
+
+		registry.warmUp().join();
+
+		assertThat(meters.find("workbook.phase").tag("workbook", "warmed").timers()).isEmpty();
+		assertThat(meters.find("workbook.bytes").tag("workbook", "warmed").summaries()).isEmpty();
+
+		WorkbookWriter.write(config, List.of(1, 2), new ByteArrayOutputStream());
+
+		assertThat(meters.find("workbook.phase").tag("workbook", "warmed").timers()).isNotEmpty();
+	}
+
+}
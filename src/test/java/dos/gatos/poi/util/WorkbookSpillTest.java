@@ -0,0 +1,193 @@
+package dos.gatos.poi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorkbookSpillTest {
+
+	private static final int SEGMENT = 4096;
+	private static final WorkbookConfig<Integer> CONFIG = WorkbookConfig.builder(Integer.class).name("spilled").sheetName("Rows")
+			.defaultHeaderStyle().defaultBodyStyle().longCol("id", i -> i).stringCol("name", i -> "row " + i).build();
+	private static final List<Integer> ROWS = IntStream.range(0, 20000).boxed().collect(Collectors.toList());
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void deletingUnmapsTheSegmentsAndGivesTheQuotaBack() throws IOException {
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, 4 * SEGMENT);
+		WorkbookSpill.SpillFile file = spill.create("test");
+		byte[] bytes = bytes(3 * SEGMENT - 10);
+		file.write(bytes);
+		assertThat(spill.getUsed()).isEqualTo(3 * SEGMENT);
+		try (InputStream in = file.getInputStream()) {
+			assertThat(in.readAllBytes()).isEqualTo(bytes);
+		}
+
+		assertThat(file.delete()).isTrue();
+
+		assertThat(spill.getUsed()).isZero();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(spill.getDirectory(), "*.spill")) {
+			assertThat(files).isEmpty();
+		}
+		assertThat(file.delete()).isFalse();
+		assertThat(spill.getUsed()).isZero();
+	}
+
+	@Test
+	void quotaIsReusableOnceDeleted() throws IOException {
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, 2 * SEGMENT);
+		WorkbookSpill.SpillFile first = spill.create("test");
+		first.write(bytes(2 * SEGMENT));
+		WorkbookSpill.SpillFile second = spill.create("test");
+
+		assertThatThrownBy(() -> second.write(1)).isInstanceOf(IOException.class).hasMessageContaining("quota");
+		assertThat(spill.getUsed()).isEqualTo(2 * SEGMENT);
+
+		first.delete();
+		second.write(bytes(2 * SEGMENT));
+		assertThat(spill.getUsed()).isEqualTo(2 * SEGMENT);
+		second.delete();
+		assertThat(spill.getUsed()).isZero();
+	}
+
+	@Test
+	void readingAfterDeleteFails() throws IOException {
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+		WorkbookSpill.SpillFile file = spill.create("test");
+		file.write(bytes(100));
+		InputStream in = file.getInputStream();
+		assertThat(in.read()).isZero();
+
+		file.delete();
+
+		assertThatThrownBy(in::read).isInstanceOf(IOException.class).hasMessageContaining("deleted");
+		assertThatThrownBy(() -> in.read(new byte[10])).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> file.write(1)).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void deletingWhileWritingAndReadingFailsThemInsteadOfUnmappingUnderneath() throws Exception {
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, 1024 * SEGMENT);
+		WorkbookSpill.SpillFile file = spill.create("test");
+		file.write(bytes(SEGMENT));
+		InputStream in = file.getInputStream();
+		byte[] chunk = bytes(100);
+		CountDownLatch started = new CountDownLatch(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> writing = executor.submit(() -> {
+				started.countDown();
+				while (true) {
+					file.write(chunk);
+					LockSupport.parkNanos(10_000);
+				}
+			});
+			Future<?> reading = executor.submit(() -> {
+				started.countDown();
+				while (true) {
+					in.read();
+				}
+			});
+			started.await();
+			Thread.sleep(20);
+
+			assertThat(file.delete()).isTrue();
+
+			assertThatThrownBy(() -> writing.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class).hasMessageContaining("deleted");
+			assertThatThrownBy(() -> reading.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class).hasMessageContaining("deleted");
+		} finally {
+			executor.shutdownNow();
+		}
+		assertThat(spill.getUsed()).isZero();
+	}
+
+	@Test
+	void storesSharingADirectoryKeepTheirFiles() throws IOException {
+		WorkbookSpill first = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+		WorkbookSpill.SpillFile file = first.create("test");
+		file.write(bytes(100));
+
+		WorkbookSpill second = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+
+		assertThat(second.getDirectory()).isNotEqualTo(first.getDirectory()).hasParent(directory);
+		try (InputStream in = file.getInputStream()) {
+			assertThat(in.readAllBytes()).isEqualTo(bytes(100));
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(first.getDirectory(), "*.spill")) {
+			assertThat(files).hasSize(1);
+		}
+	}
+
+	@Test
+	void directoriesOfClosedOrDeadStoresAreDeletedOnStartup() throws IOException {
+		Path dead = Files.createDirectory(directory.resolve("instance-dead"));
+		Files.createFile(dead.resolve(".lock"));
+		Files.createFile(dead.resolve("workbook-sheet-1-0.spill"));
+		Path creating = Files.createDirectory(directory.resolve("instance-creating"));
+		WorkbookSpill closed = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+		closed.create("test").write(1);
+		closed.close();
+
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+
+		assertThat(dead).doesNotExist();
+		assertThat(closed.getDirectory()).doesNotExist();
+		assertThat(creating).exists();
+		assertThat(spill.getDirectory()).exists();
+		spill.close();
+		assertThat(spill.getDirectory()).doesNotExist();
+	}
+
+	@Test
+	void writerStagesAFullSheetToTheSpillItIsGiven() throws IOException {
+		WorkbookSpill spill = new WorkbookSpill(directory, 64 * 1024, 64 * 1024 * 1024);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		WorkbookWriter.write(CONFIG, CONFIG.getCompression(), spill, ROWS.spliterator(), out);
+
+		assertThat(spill.getUsed()).isZero();
+		try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+			assertThat(workbook.getSheet("Rows").getLastRowNum()).isEqualTo(ROWS.size());
+		}
+	}
+
+	@Test
+	void writerFailsWhenTheStagedSheetExceedsTheQuota() {
+		WorkbookSpill spill = new WorkbookSpill(directory, SEGMENT, SEGMENT);
+
+		assertThatThrownBy(() -> WorkbookWriter.write(CONFIG, CONFIG.getCompression(), spill, ROWS.spliterator(), new ByteArrayOutputStream()))
+				.isInstanceOf(IOException.class).hasMessageContaining("quota");
+		assertThat(spill.getUsed()).isZero();
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+}
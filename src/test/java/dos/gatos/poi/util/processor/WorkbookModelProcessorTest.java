@@ -0,0 +1,190 @@
+package dos.gatos.poi.util.processor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dos.gatos.poi.util.WorkbookConfig;
+import dos.gatos.poi.util.WorkbookWriter;
+
+class WorkbookModelProcessorTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void generatesTheConfigAndExtractorOfAModel() throws Exception {
+		Result result = compile("models/Person.java", "package models;\n"
+				+ "import dos.gatos.poi.util.*;\n"
+				+ "import org.apache.poi.ss.usermodel.HorizontalAlignment;\n"
+				+ "@WorkbookModel(name = \"People\", sheetName = \"List\")\n"
+				+ "public class Person {\n"
+				+ "  @WorkbookColumn(order = 2, name = \"Born\", format = \"yyyy-mm-dd\") java.time.LocalDate born;\n"
+				+ "  @WorkbookColumn(order = 1, horizontalAlignment = HorizontalAlignment.RIGHT) private long id;\n"
+				+ "  @WorkbookColumn(order = 1, name = \"Name \\\"quoted\\\"\") private String name;\n"
+				+ "  @WorkbookColumn(order = 3) private boolean active;\n"
+				+ "  @WorkbookColumn(order = 4) Double score;\n"
+				+ "  String ignored;\n"
+				+ "  public Person(long id, String name, java.time.LocalDate born, boolean active, Double score) {\n"
+				+ "    this.id = id; this.name = name; this.born = born; this.active = active; this.score = score;\n"
+				+ "  }\n"
+				+ "  public long getId() { return id; }\n"
+				+ "  public String getName() { return name; }\n"
+				+ "  public boolean isActive() { return active; }\n"
+				+ "}\n");
+		assertThat(result.errors()).isEmpty();
+		assertThat(Files.readString(result.generated.resolve("models/PersonWorkbook.java"))).contains("Person::getId", "data -> data.born");
+
+		try (URLClassLoader loader = result.loader()) {
+			Class<?> model = loader.loadClass("models.Person");
+			WorkbookConfig<?> config = ((WorkbookConfig.WorkbookConfigBuilder<?>) loader.loadClass("models.PersonWorkbook")
+					.getMethod("builder").invoke(null)).build();
+			assertThat(config.getName()).isEqualTo("People");
+			assertThat(config.getSheetName()).isEqualTo("List");
+			assertThat(config.getRowExtractor()).isNotNull();
+			assertThat(config.getColumns()).extracting(WorkbookConfig.ColumnConfig::getName)
+					.containsExactly("id", "Name \"quoted\"", "Born", "active", "score");
+			assertThat(config.getColumns().get(0).getStyle().getHorizontalAlignment()).contains(HorizontalAlignment.RIGHT);
+			assertThat(config.getColumns().get(2).getStyle().getDataFormat()).contains("yyyy-mm-dd");
+
+			Object first = model.getConstructors()[0].newInstance(7L, "Ada", java.time.LocalDate.of(2019, 12, 10), true, 1.5);
+			Object second = model.getConstructors()[0].newInstance(8L, null, null, false, null);
+			try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(write(config, List.of(first, second))))) {
+				Sheet sheet = workbook.getSheet("List");
+				Row row = sheet.getRow(1);
+				assertThat(row.getCell(0).getNumericCellValue()).isEqualTo(7);
+				assertThat(row.getCell(1).getStringCellValue()).isEqualTo("Ada");
+				assertThat(row.getCell(2).getDateCellValue()).isEqualTo(java.sql.Date.valueOf("2019-12-10"));
+				assertThat(row.getCell(3).getBooleanCellValue()).isTrue();
+				assertThat(row.getCell(4).getNumericCellValue()).isEqualTo(1.5);
+				Row blanks = sheet.getRow(2);
+				assertThat(blanks.getCell(0).getNumericCellValue()).isEqualTo(8);
+				assertThat(blanks.getCell(1).getCellType()).isEqualTo(CellType.BLANK);
+				assertThat(blanks.getCell(4).getCellType()).isEqualTo(CellType.BLANK);
+			}
+		}
+	}
+
+	@Test
+	void nestedModelIsNamedAfterItsEnclosingClass() throws Exception {
+		Result result = compile("models/Outer.java", "package models;\n"
+				+ "import dos.gatos.poi.util.*;\n"
+				+ "public class Outer {\n"
+				+ "  @WorkbookModel public static class Inner {\n"
+				+ "    @WorkbookColumn public String name;\n"
+				+ "  }\n"
+				+ "}\n");
+		assertThat(result.errors()).isEmpty();
+
+		try (URLClassLoader loader = result.loader()) {
+			WorkbookConfig<?> config = ((WorkbookConfig.WorkbookConfigBuilder<?>) loader.loadClass("models.Outer_InnerWorkbook")
+					.getMethod("builder").invoke(null)).build();
+			assertThat(config.getName()).isEqualTo("Inner");
+			assertThat(config.getSheetName()).isEqualTo("Inner");
+		}
+	}
+
+	@Test
+	void invalidColumnsAreReported() throws IOException {
+		Result result = compile("models/Broken.java", "package models;\n"
+				+ "import dos.gatos.poi.util.*;\n"
+				+ "@WorkbookModel\n"
+				+ "public class Broken {\n"
+				+ "  @WorkbookColumn public Object object;\n"
+				+ "  @WorkbookColumn public static String constant;\n"
+				+ "  @WorkbookColumn(name = \"a\") public String first;\n"
+				+ "  @WorkbookColumn(name = \"a\") public String second;\n"
+				+ "}\n");
+
+		assertThat(result.errors()).containsExactlyInAnyOrder("unsupported column type java.lang.Object", "@WorkbookColumn on a static field",
+				"duplicate column name 'a'");
+		assertThat(result.generated.resolve("models/BrokenWorkbook.java")).doesNotExist();
+	}
+
+	@Test
+	void modelsWithoutColumnsOrInstancesAreReported() throws IOException {
+		Result result = compile("models/Empty.java", "package models;\n"
+				+ "import dos.gatos.poi.util.*;\n"
+				+ "@WorkbookModel\n"
+				+ "public class Empty {\n"
+				+ "  String name;\n"
+				+ "  @WorkbookModel class Inner {\n"
+				+ "    @WorkbookColumn String name;\n"
+				+ "  }\n"
+				+ "}\n");
+
+		assertThat(result.errors()).containsExactlyInAnyOrder("@WorkbookModel without any @WorkbookColumn field",
+				"@WorkbookModel needs a top level or static nested class");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static byte[] write(WorkbookConfig<?> config, List<?> rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WorkbookWriter.write((WorkbookConfig<Object>) config, (List<Object>) rows, out);
+		return out.toByteArray();
+	}
+
+	private Result compile(String file, String source) throws IOException {
+		Path sources = Files.createDirectories(directory.resolve("src"));
+		Path generated = Files.createDirectories(directory.resolve("generated"));
+		Path classes = Files.createDirectories(directory.resolve("classes"));
+		Path path = sources.resolve(file);
+		Files.createDirectories(path.getParent());
+		Files.writeString(path, source);
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+			List<String> options = List.of("-classpath", System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")),
+					"-processor", WorkbookModelProcessor.class.getName(), "-s", generated.toString(), "-d", classes.toString());
+			compiler.getTask(null, files, diagnostics, options, null, files.getJavaFileObjects(path)).call();
+		}
+		return new Result(diagnostics.getDiagnostics(), generated, classes);
+	}
+
+	private static final class Result {
+
+		private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+		private final Path generated;
+		private final Path classes;
+
+		Result(List<Diagnostic<? extends JavaFileObject>> diagnostics, Path generated, Path classes) {
+			this.diagnostics = diagnostics;
+			this.generated = generated;
+			this.classes = classes;
+		}
+
+		List<String> errors() {
+			return diagnostics.stream().filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+					.map(diagnostic -> diagnostic.getMessage(null)).collect(Collectors.toList());
+		}
+
+		URLClassLoader loader() throws IOException {
+			return new URLClassLoader(new URL[] { classes.toUri().toURL() }, WorkbookModelProcessorTest.class.getClassLoader());
+		}
+
+	}
+
+}